@@ -5,7 +5,12 @@
 
 package com.bestos.thebestcrawler;
 
+import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * The user preference class.
@@ -25,12 +30,96 @@ public class UserPrefs {
 	
 	private static final int UPPER_LIMIT_PAGES = 10000; // Capped to 10000 pages to retrieve and parse
 	
+	/**
+	 * The ways in which the url buffer can remember which urls it has already seen.
+	 */
+	public static enum DedupMode {
+		EXACT,	// Exact set of url fingerprints; memory grows with every url seen.
+		BLOOM	// Bloom filter in front of an exact set limited by the dedup memory budget.
+	}
+	
+	/**
+	 * The ways in which pages are retrieved.
+	 */
+	public static enum FetchMode {
+		THREADED,	// Each PageRetriever thread fetches one page at a time.
+		ASYNC,		// Each AsyncPageRetriever keeps many fetches in flight with a non-blocking http client.
+		VIRTUAL		// Each VirtualPageRetriever runs every fetch in its own (virtual, where available) thread.
+	}
+	
+	/**
+	 * The orders in which the url buffer can hand out pending urls.
+	 */
+	public static enum FrontierMode {
+		FIFO,	// Strictly in the order urls were found.
+		POLITE,		// Per host queues, honouring each host's Crawl-delay.
+		BEST_FIRST,	// Highest scoring urls first (see PageParser's UrlScorer).
+		SPILLING	// In order found, with all but the oldest urls kept on disk.
+	}
+	
 	private boolean debug_mode;
 	private int max_pages;
+	private DedupMode dedup_mode;
+	private long dedup_expected_urls;
+	private double dedup_false_positive_rate;
+	private long dedup_memory_budget;
+	private FrontierMode frontier_mode;
+	private long politeness_delay;
+	private int frontier_capacity;
+	private int frontier_hot_size;
+	private File spill_directory;
+	private File checkpoint_directory;
+	private long checkpoint_interval;
+	private boolean canonicalize_urls;
+	private List<String> stripped_query_params;
+	private boolean strip_index_pages;
+	private int arena_slab_size;
+	private int arena_pooled_slabs;
+	private long compression_high_water;
+	private long page_buffer_budget;
+	private boolean skip_near_duplicates;
+	private int max_body_size;
+	private FetchMode fetch_mode;
+	private int max_fetches_in_flight;
+	private int max_fetches_per_host;
+	private int max_idle_connections_per_host;
+	private long connection_idle_timeout;
+	private long dns_ttl;
+	private long dns_negative_ttl;
+	private File http_cache_directory;
 	
 	private UserPrefs() {
 		max_pages = UPPER_LIMIT_PAGES;
 		debug_mode = false;
+		dedup_mode = DedupMode.EXACT;
+		dedup_expected_urls = 10000000L;
+		dedup_false_positive_rate = 0.001;
+		dedup_memory_budget = 256L * 1024 * 1024;
+		frontier_mode = FrontierMode.POLITE;
+		politeness_delay = 0;
+		frontier_capacity = 1000000;
+		frontier_hot_size = 10000;
+		spill_directory = null;
+		checkpoint_directory = new File("checkpoint");
+		checkpoint_interval = 30000;
+		canonicalize_urls = true;
+		stripped_query_params = Collections.unmodifiableList(Arrays.asList(
+				"jsessionid", "phpsessid", "aspsessionid*", "sid", "sessionid", "utm_*", "gclid", "fbclid"));
+		strip_index_pages = true;
+		arena_slab_size = 64 * 1024;
+		arena_pooled_slabs = 512;
+		compression_high_water = 32L * 1024 * 1024;
+		page_buffer_budget = 128L * 1024 * 1024;
+		skip_near_duplicates = false;
+		max_body_size = 8 * 1024 * 1024;
+		fetch_mode = FetchMode.THREADED;
+		max_fetches_in_flight = 256;
+		max_fetches_per_host = 4;
+		max_idle_connections_per_host = 4;
+		connection_idle_timeout = 15000;
+		dns_ttl = 5 * 60 * 1000;
+		dns_negative_ttl = 60 * 1000;
+		http_cache_directory = new File("httpcache");
 	}
 
 	/**
@@ -65,6 +154,490 @@ public class UserPrefs {
 		max_pages = new_max <= UPPER_LIMIT_PAGES ? new_max : UPPER_LIMIT_PAGES;
 	}
 	
+	/**
+	 * Get the way in which new url buffers remember seen urls.
+	 * @return The current DedupMode.
+	 */
+	public final DedupMode getDedupMode() {
+		return dedup_mode;
+	}
+	
+	/**
+	 * Set the way in which new url buffers remember seen urls. Only affects buffers created after the call.
+	 * @param mode The new DedupMode (null is ignored).
+	 */
+	public final void setDedupMode(final DedupMode mode) {
+		if (mode != null)
+			dedup_mode = mode;
+	}
+	
+	/**
+	 * Get the number of distinct urls the Bloom dedup mode is sized for.
+	 * @return The expected number of urls.
+	 */
+	public final long getDedupExpectedUrls() {
+		return dedup_expected_urls;
+	}
+	
+	/**
+	 * Set the number of distinct urls the Bloom dedup mode is sized for.
+	 * @param expected_urls The expected number of urls (must be positive).
+	 */
+	public final void setDedupExpectedUrls(final long expected_urls) {
+		if (expected_urls > 0)
+			dedup_expected_urls = expected_urls;
+	}
+	
+	/**
+	 * Get the target false positive rate of the Bloom dedup mode.
+	 * @return The false positive rate.
+	 */
+	public final double getDedupFalsePositiveRate() {
+		return dedup_false_positive_rate;
+	}
+	
+	/**
+	 * Set the target false positive rate of the Bloom dedup mode.
+	 * @param rate The false positive rate, between 0 and 1 exclusive.
+	 */
+	public final void setDedupFalsePositiveRate(final double rate) {
+		if (rate > 0 && rate < 1)
+			dedup_false_positive_rate = rate;
+	}
+	
+	/**
+	 * Get the number of bytes the Bloom dedup mode may use for both of its tiers.
+	 * @return The memory budget in bytes.
+	 */
+	public final long getDedupMemoryBudget() {
+		return dedup_memory_budget;
+	}
+	
+	/**
+	 * Set the number of bytes the Bloom dedup mode may use for both of its tiers.
+	 * @param bytes The memory budget in bytes (must be positive).
+	 */
+	public final void setDedupMemoryBudget(final long bytes) {
+		if (bytes > 0)
+			dedup_memory_budget = bytes;
+	}
+	
+	/**
+	 * Get the order in which new url buffers hand out pending urls.
+	 * @return The current FrontierMode.
+	 */
+	public final FrontierMode getFrontierMode() {
+		return frontier_mode;
+	}
+	
+	/**
+	 * Set the order in which new url buffers hand out pending urls. Only affects buffers created after the call.
+	 * @param mode The new FrontierMode (null is ignored).
+	 */
+	public final void setFrontierMode(final FrontierMode mode) {
+		if (mode != null)
+			frontier_mode = mode;
+	}
+	
+	/**
+	 * Get the minimum number of milliseconds between fetches from the same host in POLITE mode,
+	 * applied even to hosts which do not specify a Crawl-delay.
+	 * @return The politeness delay in milliseconds.
+	 */
+	public final long getPolitenessDelay() {
+		return politeness_delay;
+	}
+	
+	/**
+	 * Set the minimum number of milliseconds between fetches from the same host in POLITE mode.
+	 * @param delay_millis The politeness delay in milliseconds (negative values are ignored).
+	 */
+	public final void setPolitenessDelay(final long delay_millis) {
+		if (delay_millis >= 0)
+			politeness_delay = delay_millis;
+	}
+	
+	/**
+	 * Get the maximum number of pending urls a BEST_FIRST url buffer will hold in memory. Once full, new urls
+	 * are only admitted if they outrank (and evict) the worst pending url; the rest are spilled to disk.
+	 * @return The frontier capacity.
+	 */
+	public final int getFrontierCapacity() {
+		return frontier_capacity;
+	}
+	
+	/**
+	 * Set the maximum number of pending urls a BEST_FIRST url buffer will hold.
+	 * @param capacity The frontier capacity (must be positive).
+	 */
+	public final void setFrontierCapacity(final int capacity) {
+		if (capacity > 0)
+			frontier_capacity = capacity;
+	}
+	
+	/**
+	 * Get the number of pending urls a SPILLING url buffer keeps in memory.
+	 * @return The hot head size.
+	 */
+	public final int getFrontierHotSize() {
+		return frontier_hot_size;
+	}
+	
+	/**
+	 * Set the number of pending urls a SPILLING url buffer keeps in memory.
+	 * @param hot_size The hot head size (must be positive).
+	 */
+	public final void setFrontierHotSize(final int hot_size) {
+		if (hot_size > 0)
+			frontier_hot_size = hot_size;
+	}
+	
+	/**
+	 * Get the directory SPILLING url buffers, and the overflow of BEST_FIRST url buffers, write their segment files to.
+	 * @return The spill directory, or null to use a new directory under the system temporary directory.
+	 */
+	public final File getSpillDirectory() {
+		return spill_directory;
+	}
+	
+	/**
+	 * Set the directory SPILLING url buffers, and the overflow of BEST_FIRST url buffers, write their segment files to.
+	 * @param directory The spill directory, or null to use a new directory under the system temporary directory.
+	 */
+	public final void setSpillDirectory(final File directory) {
+		spill_directory = directory;
+	}
+	
+	/**
+	 * Get the directory crawl checkpoints are written to, and resumed from.
+	 * @return The checkpoint directory.
+	 */
+	public final File getCheckpointDirectory() {
+		return checkpoint_directory;
+	}
+	
+	/**
+	 * Set the directory crawl checkpoints are written to, and resumed from.
+	 * @param directory The checkpoint directory (must not be null).
+	 */
+	public final void setCheckpointDirectory(final File directory) {
+		if (directory != null)
+			checkpoint_directory = directory;
+	}
+	
+	/**
+	 * Get the number of milliseconds between crawl checkpoints.
+	 * @return The checkpoint interval in milliseconds.
+	 */
+	public final long getCheckpointInterval() {
+		return checkpoint_interval;
+	}
+	
+	/**
+	 * Set the number of milliseconds between crawl checkpoints.
+	 * @param interval_millis The checkpoint interval in milliseconds (must be positive).
+	 */
+	public final void setCheckpointInterval(final long interval_millis) {
+		if (interval_millis > 0)
+			checkpoint_interval = interval_millis;
+	}
+	
+	/**
+	 * Check whether url buffers rewrite urls to their canonical spelling before dropping duplicates.
+	 * @return True if urls are canonicalized, false otherwise.
+	 */
+	public final boolean isCanonicalizeUrls() {
+		return canonicalize_urls;
+	}
+	
+	/**
+	 * Set whether url buffers rewrite urls to their canonical spelling before dropping duplicates.
+	 * @param canonicalize True to canonicalize urls.
+	 */
+	public final void setCanonicalizeUrls(final boolean canonicalize) {
+		canonicalize_urls = canonicalize;
+	}
+	
+	/**
+	 * Get the names of the query parameters (e.g. session ids and tracking parameters) dropped
+	 * from urls when they are canonicalized. A name ending in '*' matches every name starting with it.
+	 * @return An unmodifiable list of parameter names.
+	 */
+	public final List<String> getStrippedQueryParams() {
+		return stripped_query_params;
+	}
+	
+	/**
+	 * Set the names of the query parameters dropped from urls when they are canonicalized.
+	 * @param params The parameter names, case-insensitive; a name ending in '*' matches every name starting with it.
+	 */
+	public final void setStrippedQueryParams(final List<String> params) {
+		stripped_query_params = Collections.unmodifiableList(params != null ? new ArrayList<String>(params) : new ArrayList<String>());
+	}
+	
+	/**
+	 * Check whether index pages such as index.html are stripped from urls when they are canonicalized.
+	 * @return True if index pages are stripped, false otherwise.
+	 */
+	public final boolean isStripIndexPages() {
+		return strip_index_pages;
+	}
+	
+	/**
+	 * Set whether index pages such as index.html are stripped from urls when they are canonicalized.
+	 * @param strip True to strip index pages.
+	 */
+	public final void setStripIndexPages(final boolean strip) {
+		strip_index_pages = strip;
+	}
+	
+	/**
+	 * Get the size of the off-heap slabs page bodies are stored in.
+	 * @return The slab size in bytes.
+	 */
+	public final int getArenaSlabSize() {
+		return arena_slab_size;
+	}
+	
+	/**
+	 * Set the size of the off-heap slabs page bodies are stored in. Only takes effect
+	 * before the page arena is first used.
+	 * @param bytes The slab size in bytes (must be at least 4096).
+	 */
+	public final void setArenaSlabSize(final int bytes) {
+		if (bytes >= 4096)
+			arena_slab_size = bytes;
+	}
+	
+	/**
+	 * Get the number of free slabs the page arena keeps for reuse; slabs freed beyond
+	 * this are given back to the system.
+	 * @return The number of pooled slabs.
+	 */
+	public final int getArenaPooledSlabs() {
+		return arena_pooled_slabs;
+	}
+	
+	/**
+	 * Set the number of free slabs the page arena keeps for reuse. Only takes effect
+	 * before the page arena is first used.
+	 * @param slabs The number of pooled slabs (must not be negative).
+	 */
+	public final void setArenaPooledSlabs(final int slabs) {
+		if (slabs >= 0)
+			arena_pooled_slabs = slabs;
+	}
+	
+	/**
+	 * Get the number of queued body bytes above which the page buffer compresses the pages added to it.
+	 * @return The high-water mark in bytes.
+	 */
+	public final long getCompressionHighWater() {
+		return compression_high_water;
+	}
+	
+	/**
+	 * Set the number of queued body bytes above which the page buffer compresses the pages added to it.
+	 * Use {@link Long#MAX_VALUE} to never compress, or 0 to always compress.
+	 * @param bytes The high-water mark in bytes (must not be negative).
+	 */
+	public final void setCompressionHighWater(final long bytes) {
+		if (bytes >= 0)
+			compression_high_water = bytes;
+	}
+	
+	/**
+	 * Get the number of stored body bytes the page buffer may hold before retrievers wait for the parsers.
+	 * @return The budget in bytes.
+	 */
+	public final long getPageBufferBudget() {
+		return page_buffer_budget;
+	}
+	
+	/**
+	 * Set the number of stored body bytes the page buffer may hold before retrievers wait for the parsers.
+	 * @param bytes The budget in bytes (must be positive).
+	 */
+	public final void setPageBufferBudget(final long bytes) {
+		if (bytes > 0)
+			page_buffer_budget = bytes;
+	}
+	
+	/**
+	 * Check whether retrieved pages which are near-duplicates of pages already retrieved are skipped instead of parsed.
+	 * @return True if near-duplicates are skipped, false otherwise.
+	 */
+	public final boolean isSkipNearDuplicates() {
+		return skip_near_duplicates;
+	}
+	
+	/**
+	 * Set whether retrieved pages which are near-duplicates of pages already retrieved are skipped instead of parsed.
+	 * @param skip True to skip near-duplicates.
+	 */
+	public final void setSkipNearDuplicates(final boolean skip) {
+		skip_near_duplicates = skip;
+	}
+	
+	/**
+	 * Get the largest response body retrieved; longer pages are skipped.
+	 * @return The maximum body size in bytes.
+	 */
+	public final int getMaxBodySize() {
+		return max_body_size;
+	}
+	
+	/**
+	 * Set the largest response body retrieved; longer pages are skipped.
+	 * @param bytes The maximum body size in bytes (must be positive).
+	 */
+	public final void setMaxBodySize(final int bytes) {
+		if (bytes > 0)
+			max_body_size = bytes;
+	}
+	
+	/**
+	 * Get the way pages are retrieved.
+	 * @return The fetch mode.
+	 */
+	public final FetchMode getFetchMode() {
+		return fetch_mode;
+	}
+	
+	/**
+	 * Set the way pages are retrieved.
+	 * @param mode The fetch mode (must not be null).
+	 */
+	public final void setFetchMode(final FetchMode mode) {
+		if (mode != null)
+			fetch_mode = mode;
+	}
+	
+	/**
+	 * Get the most fetches the AsyncPageRetrievers and VirtualPageRetrievers keep in flight at once, between them.
+	 * @return The number of fetches.
+	 */
+	public final int getMaxFetchesInFlight() {
+		return max_fetches_in_flight;
+	}
+	
+	/**
+	 * Set the most fetches the AsyncPageRetrievers and VirtualPageRetrievers keep in flight at once, between them.
+	 * Must be set before the first of them is created.
+	 * @param fetches The number of fetches (must be positive).
+	 */
+	public final void setMaxFetchesInFlight(final int fetches) {
+		if (fetches > 0)
+			max_fetches_in_flight = fetches;
+	}
+	
+	/**
+	 * Get the most fetches the VirtualPageRetrievers run at once to any one host.
+	 * @return The number of fetches.
+	 */
+	public final int getMaxFetchesPerHost() {
+		return max_fetches_per_host;
+	}
+	
+	/**
+	 * Set the most fetches the VirtualPageRetrievers run at once to any one host.
+	 * Must be set before the first VirtualPageRetriever is created.
+	 * @param fetches The number of fetches (must be positive).
+	 */
+	public final void setMaxFetchesPerHost(final int fetches) {
+		if (fetches > 0)
+			max_fetches_per_host = fetches;
+	}
+	
+	/**
+	 * Get the most idle connections kept open to each host, for the next fetch from it to reuse.
+	 * @return The number of connections.
+	 */
+	public final int getMaxIdleConnectionsPerHost() {
+		return max_idle_connections_per_host;
+	}
+	
+	/**
+	 * Set the most idle connections kept open to each host, for the next fetch from it to reuse.
+	 * Must be set before the first page is fetched.
+	 * @param connections The number of connections (0 to never reuse a connection).
+	 */
+	public final void setMaxIdleConnectionsPerHost(final int connections) {
+		if (connections >= 0)
+			max_idle_connections_per_host = connections;
+	}
+	
+	/**
+	 * Get the longest a connection is kept open while idle.
+	 * @return The timeout in milliseconds.
+	 */
+	public final long getConnectionIdleTimeout() {
+		return connection_idle_timeout;
+	}
+	
+	/**
+	 * Set the longest a connection is kept open while idle.
+	 * Must be set before the first page is fetched.
+	 * @param millis The timeout in milliseconds (must be positive).
+	 */
+	public final void setConnectionIdleTimeout(final long millis) {
+		if (millis > 0)
+			connection_idle_timeout = millis;
+	}
+	
+	/**
+	 * Get how long the addresses of a host are cached.
+	 * @return The time to live in milliseconds.
+	 */
+	public final long getDnsTtl() {
+		return dns_ttl;
+	}
+	
+	/**
+	 * Set how long the addresses of a host are cached.
+	 * Must be set before the first host is looked up.
+	 * @param millis The time to live in milliseconds (0 to never cache).
+	 */
+	public final void setDnsTtl(final long millis) {
+		if (millis >= 0)
+			dns_ttl = millis;
+	}
+	
+	/**
+	 * Get how long a host which could not be found is remembered as not found.
+	 * @return The time to live in milliseconds.
+	 */
+	public final long getDnsNegativeTtl() {
+		return dns_negative_ttl;
+	}
+	
+	/**
+	 * Set how long a host which could not be found is remembered as not found.
+	 * Must be set before the first host is looked up.
+	 * @param millis The time to live in milliseconds (0 to never cache failures).
+	 */
+	public final void setDnsNegativeTtl(final long millis) {
+		if (millis >= 0)
+			dns_negative_ttl = millis;
+	}
+	
+	/**
+	 * Get the directory in which pages are cached between crawls, to be revalidated with conditional GETs.
+	 * @return The directory, or null if pages are not cached.
+	 */
+	public final File getHttpCacheDirectory() {
+		return http_cache_directory;
+	}
+	
+	/**
+	 * Set the directory in which pages are cached between crawls, to be revalidated with conditional GETs.
+	 * Must be set before the first page is fetched.
+	 * @param directory The directory, or null to not cache pages.
+	 */
+	public final void setHttpCacheDirectory(final File directory) {
+		http_cache_directory = directory;
+	}
+	
 	/**
 	 * Print, using System.out, the message formatted to use the <code>tag</code>
 	 * and <code>msg</code> array. <BR><BR>
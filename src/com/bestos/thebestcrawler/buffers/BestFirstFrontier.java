@@ -0,0 +1,185 @@
+// BestFirstFrontier.java
+// BestFirstFrontier
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * The BestFirstFrontier hands out the highest scoring url first, so that under a fixed
+ * page budget the most promising pages are retrieved before the rest. Urls with equal
+ * scores are handed out in the order they were added.<BR><BR>
+ * The frontier holds at most <code>capacity</code> urls in memory. Once full, a new url is only
+ * admitted if it outranks the current worst url, which is then evicted; otherwise the new url is
+ * refused. Both are counted so that the capacity can be tuned. Since the url buffer has already
+ * marked them seen, and will never queue them again, refused and evicted urls are not dropped but
+ * spilled to an overflow {@link SpillingFrontier} on disk, which refills the frontier as it drains.
+ * Spilled urls lose their scores, so once read back they rank below every scored url.
+ * @author Michael Morris
+ * @version 5/11/2013
+ *
+ */
+public class BestFirstFrontier implements Frontier {
+
+	/**
+	 * A pending url and its score.
+	 */
+	private static final class Entry {
+		final String url;
+		final double score;
+		final long sequence;
+
+		Entry(final String url, final double score, final long sequence) {
+			this.url = url;
+			this.score = score;
+			this.sequence = sequence;
+		}
+	}
+
+	/** Highest score first, then oldest first. **/
+	private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry a, final Entry b) {
+			final int by_score = Double.compare(b.score, a.score);
+			if (by_score != 0)
+				return by_score;
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	/** The score of urls read back from the overflow, below that of any scored url. **/
+	private static final double SPILLED_SCORE = Double.NEGATIVE_INFINITY;
+
+	/** The number of overflow urls kept in memory before the rest go to disk. **/
+	private static final int OVERFLOW_HOT_SIZE = 1024;
+
+	/** Ordered best first, so the first entry is handed out next and the last is evicted first. **/
+	private final TreeSet<Entry> urls_pending;
+
+	private final int capacity;
+
+	/** The directory of the overflow's segment files, or null for a temporary one. **/
+	private final File spill_directory;
+
+	/** The urls refused or evicted, created when first needed. **/
+	private SpillingFrontier overflow = null;
+
+	private long next_sequence;
+
+	/** Read without the url buffer's lock, e.g. by the gui. **/
+	private volatile long num_refused;
+
+	private volatile long num_evicted;
+
+	/**
+	 * Construct an empty BestFirstFrontier, which spills to a new directory under the system temporary directory.
+	 * @param capacity The maximum number of urls the frontier will hold in memory.
+	 */
+	public BestFirstFrontier(final int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * Construct an empty BestFirstFrontier.
+	 * @param capacity The maximum number of urls the frontier will hold in memory.
+	 * @param spill_directory The directory to spill refused and evicted urls to, or null for a new
+	 * directory under the system temporary directory.
+	 */
+	public BestFirstFrontier(final int capacity, final File spill_directory) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive; capacity[" + capacity + "]");
+
+		this.capacity = capacity;
+		this.spill_directory = spill_directory;
+		urls_pending = new TreeSet<Entry>(BEST_FIRST);
+		next_sequence = 0;
+		num_refused = 0;
+		num_evicted = 0;
+	}
+
+	@Override
+	public boolean offer(final String url, final double score) {
+		if (urls_pending.size() >= capacity) {
+			// Only admit the url if it strictly outranks the worst pending url.
+			if (score <= urls_pending.last().score) {
+				num_refused++;
+				return spill(url);
+			}
+			spill(urls_pending.pollLast().url);
+			num_evicted++;
+		}
+		urls_pending.add(new Entry(url, score, next_sequence++));
+		return true;
+	}
+
+	@Override
+	public String poll() {
+		refill();
+		final Entry entry = urls_pending.pollFirst();
+		return entry != null ? entry.url : null;
+	}
+
+	@Override
+	public String peek() {
+		refill();
+		return urls_pending.isEmpty() ? null : urls_pending.first().url;
+	}
+
+	@Override
+	public long getNanosUntilReady() {
+		return size() == 0 ? Long.MAX_VALUE : 0L;
+	}
+
+	@Override
+	public void setHostDelay(final String url, final long delay_millis) {
+		// Hosts are not scheduled separately.
+	}
+
+	@Override
+	public int size() {
+		return urls_pending.size() + (overflow != null ? overflow.size() : 0);
+	}
+
+	/**
+	 * Get the number of urls spilled on arrival because the frontier was full and they did not
+	 * outrank the worst pending url.
+	 * @return The number of refused urls.
+	 */
+	public long getNumRefused() {
+		return num_refused;
+	}
+
+	/**
+	 * Get the number of pending urls evicted, and spilled, to make room for better ones.
+	 * @return The number of evicted urls.
+	 */
+	public long getNumEvicted() {
+		return num_evicted;
+	}
+
+	/**
+	 * Keep a url which does not fit in memory in the overflow.
+	 * @return False if it could not be written, and is lost.
+	 */
+	private boolean spill(final String url) {
+		if (overflow == null)
+			overflow = new SpillingFrontier(spill_directory, OVERFLOW_HOT_SIZE);
+		return overflow.offer(url, SPILLED_SCORE);
+	}
+
+	/**
+	 * Move urls from the overflow back in to any room the frontier has.
+	 */
+	private void refill() {
+		if (overflow == null)
+			return;
+		String url;
+		while (urls_pending.size() < capacity && (url = overflow.poll()) != null)
+			urls_pending.add(new Entry(url, SPILLED_SCORE, next_sequence++));
+	}
+
+}
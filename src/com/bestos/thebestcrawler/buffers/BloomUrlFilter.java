@@ -0,0 +1,132 @@
+// BloomUrlFilter.java
+// BloomUrlFilter
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.bestos.thebestcrawler.utils.FingerprintUtil;
+
+/**
+ * A lock-free, blocked Bloom filter over 64-bit url fingerprints.<BR><BR>
+ * Every fingerprint maps to a single 512 bit block (one cache line) and all of its
+ * bits are set within that block, so a lookup touches one cache line no matter how
+ * many hash functions are in use. Bits are set with compare-and-set, so concurrent
+ * writers never block one another.
+ * @author Michael Morris
+ * @version 5/7/2013
+ *
+ */
+public class BloomUrlFilter {
+
+	/** The number of longs (64 bits each) in a block; 8 longs = 512 bits = 64 bytes. **/
+	private static final int LONGS_PER_BLOCK = 8;
+	private static final int BITS_PER_BLOCK = LONGS_PER_BLOCK * 64;
+
+	/** Blocked filters need a few extra bits per entry to match the rate of a standard filter. **/
+	private static final double BLOCKING_OVERHEAD = 1.2;
+
+	private final AtomicLongArray bits;
+
+	private final int num_blocks;
+
+	private final int num_hashes;
+
+	/**
+	 * Construct a BloomUrlFilter sized for the expected number of urls at the desired false positive
+	 * rate, but never using more than max_bytes of memory.
+	 * @param expected_urls The expected number of distinct urls.
+	 * @param false_positive_rate The desired false positive rate (0 < rate < 1).
+	 * @param max_bytes The maximum number of bytes the bit array may use.
+	 */
+	public BloomUrlFilter(final long expected_urls, final double false_positive_rate, final long max_bytes) {
+		if (expected_urls <= 0 || false_positive_rate <= 0 || false_positive_rate >= 1 || max_bytes < LONGS_PER_BLOCK * 8)
+			throw new IllegalArgumentException("invalid bloom filter sizing; expected[" + expected_urls + "], rate[" + false_positive_rate + "], max_bytes[" + max_bytes + "]");
+
+		// m = -n * ln(p) / ln(2)^2, capped by the memory budget and the limits of an int indexed array.
+		final double ideal_bits = -expected_urls * Math.log(false_positive_rate) / (Math.log(2) * Math.log(2)) * BLOCKING_OVERHEAD;
+		final long budget_bits = Math.min(max_bytes * 8, (long)Integer.MAX_VALUE / LONGS_PER_BLOCK * BITS_PER_BLOCK);
+		final long total_bits = Math.max(BITS_PER_BLOCK, Math.min((long)Math.ceil(ideal_bits), budget_bits));
+
+		num_blocks = (int)((total_bits + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK);
+		bits = new AtomicLongArray(num_blocks * LONGS_PER_BLOCK);
+
+		// k = (m / n) * ln(2)
+		final double bits_per_url = (double)num_blocks * BITS_PER_BLOCK / expected_urls;
+		num_hashes = (int)Math.max(1, Math.min(16, Math.round(bits_per_url / BLOCKING_OVERHEAD * Math.log(2))));
+	}
+
+	/**
+	 * (Thread-Safe) Set the bits of the fingerprint.
+	 * @param fingerprint The url fingerprint.
+	 * @return True if at least one bit changed (the fingerprint was definitely not present), false
+	 * if every bit was already set (the fingerprint may have been present).
+	 */
+	public boolean put(final long fingerprint) {
+		final int base = blockFor(fingerprint) * LONGS_PER_BLOCK;
+		final long hash = FingerprintUtil.mix(fingerprint);
+		boolean changed = false;
+		for (int i = 0; i < num_hashes; i++) {
+			final int bit = bitFor(hash, i);
+			final int index = base + (bit >>> 6);
+			final long mask = 1L << bit;
+			long word;
+			while (((word = bits.get(index)) & mask) == 0) {
+				if (bits.compareAndSet(index, word, word | mask)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * (Thread-Safe) Check whether the fingerprint may have been put in to the filter.
+	 * @param fingerprint The url fingerprint.
+	 * @return False if the fingerprint was definitely never put, true if it may have been.
+	 */
+	public boolean mightContain(final long fingerprint) {
+		final int base = blockFor(fingerprint) * LONGS_PER_BLOCK;
+		final long hash = FingerprintUtil.mix(fingerprint);
+		for (int i = 0; i < num_hashes; i++) {
+			final int bit = bitFor(hash, i);
+			if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of bytes used by the bit array.
+	 * @return The size of the filter in bytes.
+	 */
+	public long getSizeInBytes() {
+		return (long)bits.length() * 8;
+	}
+
+	/**
+	 * Get the number of bits set per fingerprint.
+	 * @return The number of hash functions.
+	 */
+	public int getNumHashes() {
+		return num_hashes;
+	}
+
+	private int blockFor(final long fingerprint) {
+		// The high bits pick the block, the mixed bits pick the bits within the block.
+		return (int)(((fingerprint >>> 32) * num_blocks) >>> 32);
+	}
+
+	/**
+	 * Derive the i-th bit position within a block by double hashing the two halves of the hash.
+	 */
+	private static int bitFor(final long hash, final int i) {
+		final int h1 = (int)hash;
+		final int h2 = (int)(hash >>> 32) | 1;
+		return (h1 + i * h2) & (BITS_PER_BLOCK - 1);
+	}
+
+}
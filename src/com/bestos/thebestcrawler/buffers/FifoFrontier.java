@@ -0,0 +1,59 @@
+// FifoFrontier.java
+// FifoFrontier
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The FifoFrontier hands out urls strictly in the order they were added, with no regard
+ * for hosts or crawl delays.
+ * @author Michael Morris
+ * @version 5/8/2013
+ *
+ */
+public class FifoFrontier implements Frontier {
+
+	private final Queue<String> urls_pending;
+
+	/**
+	 * Construct an empty FifoFrontier.
+	 */
+	public FifoFrontier() {
+		urls_pending = new ArrayDeque<String>();
+	}
+
+	@Override
+	public boolean offer(final String url, final double score) {
+		return urls_pending.add(url);
+	}
+
+	@Override
+	public String poll() {
+		return urls_pending.poll();
+	}
+
+	@Override
+	public String peek() {
+		return urls_pending.peek();
+	}
+
+	@Override
+	public long getNanosUntilReady() {
+		return urls_pending.isEmpty() ? Long.MAX_VALUE : 0L;
+	}
+
+	@Override
+	public void setHostDelay(final String url, final long delay_millis) {
+		// Hosts are not scheduled separately.
+	}
+
+	@Override
+	public int size() {
+		return urls_pending.size();
+	}
+
+}
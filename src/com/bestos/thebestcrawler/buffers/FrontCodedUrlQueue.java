@@ -0,0 +1,235 @@
+// FrontCodedUrlQueue.java
+// FrontCodedUrlQueue
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The FrontCodedUrlQueue is a compact FIFO queue of urls. Urls are stored as utf-8 bytes and
+ * front-coded: each url only stores the length of the prefix it shares with the url added before
+ * it, and the rest of its bytes. Urls from the same host share long prefixes, so a queue per host
+ * holds them in a fraction of the memory a queue of Strings would.<BR><BR>
+ * The encoded urls are appended to byte blocks of up to {@value #MAX_BLOCK_BYTES} bytes, and each
+ * block is freed as soon as every url in it has been polled. A url only becomes a String again
+ * when it is polled (or peeked).<BR><BR>
+ * <strong>NOTE: FrontCodedUrlQueues are not thread-safe.</strong>
+ * @author Michael Morris
+ * @version 5/15/2013
+ *
+ */
+public class FrontCodedUrlQueue {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The size blocks grow to before a new block is started. **/
+	private static final int MAX_BLOCK_BYTES = 4096;
+
+	/** The size of a new block; most hosts only ever have a few pending urls. **/
+	private static final int INITIAL_BLOCK_BYTES = 64;
+
+	/**
+	 * A block of encoded urls.
+	 */
+	private static final class Block {
+		byte[] bytes;
+		int length;
+
+		Block(final int capacity) {
+			bytes = new byte[capacity];
+		}
+	}
+
+	/** Oldest first; urls are read from the head block and appended to the tail block. **/
+	private final Queue<Block> blocks;
+	private Block tail;
+
+	/** The bytes of the last url added, which the next url is coded against. **/
+	private byte[] last_added;
+
+	/** The read position in the head block, and the bytes of the last url polled. **/
+	private int read_position;
+	private byte[] last_read;
+	private int last_read_length;
+
+	private int size;
+
+	private long encoded_bytes;
+
+	/**
+	 * Construct an empty FrontCodedUrlQueue.
+	 */
+	public FrontCodedUrlQueue() {
+		blocks = new ArrayDeque<Block>(2);
+		size = 0;
+		encoded_bytes = 0;
+	}
+
+	/**
+	 * Add a url to the end of the queue.
+	 * @param url The url.
+	 */
+	public void add(final String url) {
+		final byte[] bytes = url.getBytes(UTF8);
+
+		int shared = 0;
+		if (last_added != null) {
+			final int max_shared = Math.min(bytes.length, last_added.length);
+			while (shared < max_shared && bytes[shared] == last_added[shared])
+				shared++;
+		}
+		final int suffix = bytes.length - shared;
+		final int needed = varIntLength(shared) + varIntLength(suffix) + suffix;
+
+		if (tail == null || (tail.length + needed > MAX_BLOCK_BYTES && tail.length > 0)) {
+			tail = new Block(Math.max(INITIAL_BLOCK_BYTES, needed));
+			blocks.add(tail);
+		} else if (tail.length + needed > tail.bytes.length) {
+			final byte[] grown = new byte[Math.min(MAX_BLOCK_BYTES, Math.max(tail.bytes.length * 2, tail.length + needed))];
+			System.arraycopy(tail.bytes, 0, grown, 0, tail.length);
+			tail.bytes = grown;
+		}
+
+		tail.length = writeVarInt(tail.bytes, tail.length, shared);
+		tail.length = writeVarInt(tail.bytes, tail.length, suffix);
+		System.arraycopy(bytes, shared, tail.bytes, tail.length, suffix);
+		tail.length += suffix;
+
+		last_added = bytes;
+		encoded_bytes += needed;
+		size++;
+	}
+
+	/**
+	 * Remove and return the url at the head of the queue.
+	 * @return The url, or null if the queue is empty.
+	 */
+	public String poll() {
+		if (size == 0)
+			return null;
+
+		final Block head = blocks.peek();
+		int position = read_position;
+
+		final int shared = readVarInt(head.bytes, position);
+		position += varIntLength(shared);
+		final int suffix = readVarInt(head.bytes, position);
+		final int header = varIntLength(suffix) + position - read_position;
+		position += varIntLength(suffix);
+
+		final int length = shared + suffix;
+		if (last_read == null || last_read.length < length) {
+			final byte[] grown = new byte[Math.max(length, last_read != null ? last_read.length * 2 : 128)];
+			if (last_read != null)
+				System.arraycopy(last_read, 0, grown, 0, shared);
+			last_read = grown;
+		}
+		System.arraycopy(head.bytes, position, last_read, shared, suffix);
+		last_read_length = length;
+		position += suffix;
+
+		encoded_bytes -= header + suffix;
+		size--;
+
+		// Free the head block as soon as it has been read.
+		if (position == head.length && (head != tail || size == 0)) {
+			blocks.poll();
+			read_position = 0;
+			if (head == tail) {
+				tail = null;
+				last_added = null;
+			}
+		} else {
+			read_position = position;
+		}
+
+		final String rtn = new String(last_read, 0, last_read_length, UTF8);
+		if (size == 0)
+			last_read = null;
+		return rtn;
+	}
+
+	/**
+	 * Return the url at the head of the queue, without removing it.
+	 * @return The url, or null if the queue is empty.
+	 */
+	public String peek() {
+		if (size == 0)
+			return null;
+
+		final Block head = blocks.peek();
+		int position = read_position;
+		final int shared = readVarInt(head.bytes, position);
+		position += varIntLength(shared);
+		final int suffix = readVarInt(head.bytes, position);
+		position += varIntLength(suffix);
+
+		final byte[] bytes = new byte[shared + suffix];
+		if (shared > 0)
+			System.arraycopy(last_read, 0, bytes, 0, shared);
+		System.arraycopy(head.bytes, position, bytes, shared, suffix);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Get the number of urls in the queue.
+	 * @return The number of urls.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check whether the queue is empty.
+	 * @return True if there are no urls in the queue, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the number of bytes the pending urls are encoded in (not counting unused block space).
+	 * @return The number of encoded bytes.
+	 */
+	public long getEncodedBytes() {
+		return encoded_bytes;
+	}
+
+	private static int varIntLength(final int value) {
+		if (value < 0x80)
+			return 1;
+		if (value < 0x4000)
+			return 2;
+		if (value < 0x200000)
+			return 3;
+		if (value < 0x10000000)
+			return 4;
+		return 5;
+	}
+
+	private static int writeVarInt(final byte[] bytes, int position, int value) {
+		while (value >= 0x80) {
+			bytes[position++] = (byte)(value | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte)value;
+		return position;
+	}
+
+	private static int readVarInt(final byte[] bytes, int position) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[position++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+}
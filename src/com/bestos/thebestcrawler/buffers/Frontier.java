@@ -0,0 +1,62 @@
+// Frontier.java
+// Frontier
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+/**
+ * A Frontier is the storage and ordering policy behind a {@link StringQueue}: it decides
+ * which pending url is handed out next, and when.<BR><BR>
+ * <strong>NOTE: Frontiers are NOT thread-safe on their own. The owning StringQueue calls every
+ * method while holding its lock.</strong>
+ * @author Michael Morris
+ * @version 5/8/2013
+ *
+ */
+public interface Frontier {
+
+	/**
+	 * Add a url to the frontier. Dedup has already been done by the caller.
+	 * @param url The url to add (never null or empty).
+	 * @param score How promising the url is; higher is better. Frontiers that do not
+	 * order by score may ignore this.
+	 * @return True if the url was stored, false if the frontier refused it.
+	 */
+	public boolean offer(final String url, final double score);
+
+	/**
+	 * Remove and return the next url which may be fetched right now.
+	 * @return The next url, or null if no url is ready (or the frontier is empty).
+	 */
+	public String poll();
+
+	/**
+	 * Get the url which would be handed out next, without removing it, whether or not
+	 * it may be fetched right now.
+	 * @return The next url, or null if the frontier is empty.
+	 */
+	public String peek();
+
+	/**
+	 * Get the number of nanoseconds until {@link #poll()} could return a url.
+	 * @return 0 if a url is ready now, Long.MAX_VALUE if the frontier is empty.
+	 */
+	public long getNanosUntilReady();
+
+	/**
+	 * Tell the frontier the minimum delay between fetches from the host of the given url,
+	 * e.g. as read from the host's robots.txt Crawl-delay. Frontiers that do not
+	 * schedule by host may ignore this.
+	 * @param url Any url of the host.
+	 * @param delay_millis The delay in milliseconds.
+	 */
+	public void setHostDelay(final String url, final long delay_millis);
+
+	/**
+	 * Get the number of urls within the frontier.
+	 * @return The number of pending urls.
+	 */
+	public int size();
+
+}
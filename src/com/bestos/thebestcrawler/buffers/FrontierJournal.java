@@ -0,0 +1,222 @@
+// FrontierJournal.java
+// FrontierJournal
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.bestos.thebestcrawler.utils.FingerprintUtil;
+
+/**
+ * The FrontierJournal records every string a {@link StringQueue} accepts and every string
+ * whose handling is done (its page parsed, or the attempt given up), in a compact binary form,
+ * so that the queue (and its seen filter) can be rebuilt after a restart by replaying the journal.
+ * Strings handed out but not done, e.g. pages still waiting to be parsed, are queued again.<BR><BR>
+ * Records are buffered in memory and moved to disk in batches by {@link #flushTo(OutputStream)},
+ * so recording costs the queue no I/O. A journal on disk can be shrunk by {@link #compact(InputStream,
+ * InputStream, OutputStream)}, which keeps only the fingerprint of each done string.
+ * @author Michael Morris
+ * @version 5/13/2013
+ *
+ */
+public class FrontierJournal {
+
+	private static final byte RECORD_ADDED = 'A';
+	private static final byte RECORD_DONE = 'T';
+	private static final byte RECORD_SEEN = 'S';
+
+	/**
+	 * The longest string (in the modified utf-8 bytes of {@link DataOutputStream#writeUTF(String)}) that can be
+	 * recorded. Those take at most 3 bytes a char, so strings up to a third of this many chars are recorded.
+	 */
+	private static final int MAX_STRING_BYTES = 65535;
+
+	private ByteArrayOutputStream buffer;
+	private DataOutputStream out;
+
+	/**
+	 * Construct an empty FrontierJournal.
+	 */
+	public FrontierJournal() {
+		buffer = new ByteArrayOutputStream();
+		out = new DataOutputStream(buffer);
+	}
+
+	/**
+	 * (Thread-Safe) Record that a string was accepted by the queue's seen filter.
+	 * @param str The string.
+	 * @param score The score it was added with.
+	 */
+	public synchronized void recordAdded(final String str, final double score) {
+		if (str.length() * 3 > MAX_STRING_BYTES)
+			return;
+		try {
+			out.writeByte(RECORD_ADDED);
+			out.writeUTF(str);
+			out.writeDouble(score);
+		} catch (IOException ioe) {
+			// Cannot happen when writing to memory.
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Record that a string handed out by the queue is done with.
+	 * @param str The string.
+	 */
+	public synchronized void recordDone(final String str) {
+		try {
+			out.writeByte(RECORD_DONE);
+			out.writeLong(FingerprintUtil.fingerprint(str));
+		} catch (IOException ioe) {
+			// Cannot happen when writing to memory.
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * Move every record buffered so far to the given stream. Only the swap of the buffer is
+	 * done while holding the journal's lock; the write itself is not.
+	 * @param to The stream to write the records to.
+	 * @return The number of bytes written.
+	 * @throws IOException If the stream throws.
+	 */
+	public int flushTo(final OutputStream to) throws IOException {
+		final ByteArrayOutputStream full;
+		synchronized (this) {
+			full = buffer;
+			buffer = new ByteArrayOutputStream(Math.max(32, full.size()));
+			out = new DataOutputStream(buffer);
+		}
+		full.writeTo(to);
+		return full.size();
+	}
+
+	/**
+	 * Rebuild a queue from a journal written by {@link #flushTo(OutputStream)}. Strings that are
+	 * done are only marked as seen; the rest are added back to the queue with their scores.
+	 * The journal stream is read twice, so two streams over the same records are needed.
+	 * @param done_pass A stream over the journal, used to find the strings that are done.
+	 * @param added_pass A second stream over the journal, used to re-add the strings.
+	 * @param queue The (empty) queue to rebuild. It must not have a journal attached yet.
+	 * @return The number of strings added back as pending.
+	 * @throws IOException If either stream throws, or the journal is corrupt.
+	 */
+	public static int replay(final InputStream done_pass, final InputStream added_pass, final StringQueue queue) throws IOException {
+
+		final UrlSeenSet done = readDone(done_pass);
+
+		int pending = 0;
+		final DataInputStream in = new DataInputStream(added_pass);
+		byte type;
+		while ((type = readType(in)) != -1) {
+			if (type == RECORD_ADDED) {
+				final String str = in.readUTF();
+				final double score = in.readDouble();
+				if (done.contains(FingerprintUtil.fingerprint(str))) {
+					queue.markSeen(str);
+				} else {
+					queue.addPending(str, score);
+					pending++;
+				}
+			} else if (type == RECORD_SEEN) {
+				queue.markSeen(in.readLong());
+			} else {
+				skipFingerprint(in, type);
+			}
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Rewrite a journal written by {@link #flushTo(OutputStream)} as a shorter one which replays the
+	 * same: each done string is kept only as its fingerprint, and strings not done are kept as they are.
+	 * The journal stream is read twice, so two streams over the same records are needed.
+	 * @param done_pass A stream over the journal, used to find the strings that are done.
+	 * @param added_pass A second stream over the journal, used to rewrite the strings.
+	 * @param to The stream to write the compacted journal to.
+	 * @return The number of bytes written.
+	 * @throws IOException If any stream throws, or the journal is corrupt.
+	 */
+	public static int compact(final InputStream done_pass, final InputStream added_pass, final OutputStream to) throws IOException {
+
+		final UrlSeenSet done = readDone(done_pass);
+
+		final DataInputStream in = new DataInputStream(added_pass);
+		final DataOutputStream out = new DataOutputStream(to);
+		byte type;
+		while ((type = readType(in)) != -1) {
+			if (type == RECORD_ADDED) {
+				final String str = in.readUTF();
+				final double score = in.readDouble();
+				final long fingerprint = FingerprintUtil.fingerprint(str);
+				if (done.contains(fingerprint)) {
+					out.writeByte(RECORD_SEEN);
+					out.writeLong(fingerprint);
+				} else {
+					out.writeByte(RECORD_ADDED);
+					out.writeUTF(str);
+					out.writeDouble(score);
+				}
+			} else if (type == RECORD_SEEN) {
+				out.writeByte(RECORD_SEEN);
+				out.writeLong(in.readLong());
+			} else {
+				// Done records are folded in to the strings they are for.
+				skipFingerprint(in, type);
+			}
+		}
+		out.flush();
+		return out.size();
+	}
+
+	/**
+	 * Read a journal's done records.
+	 * @return The fingerprints of the strings which are done.
+	 */
+	private static UrlSeenSet readDone(final InputStream done_pass) throws IOException {
+		final UrlSeenSet done = new UrlSeenSet();
+		final DataInputStream in = new DataInputStream(done_pass);
+		byte type;
+		while ((type = readType(in)) != -1) {
+			if (type == RECORD_DONE)
+				done.add(in.readLong());
+			else if (type == RECORD_SEEN)
+				in.readLong();
+			else
+				skipAdded(in, type);
+		}
+		return done;
+	}
+
+	private static byte readType(final DataInputStream in) throws IOException {
+		try {
+			return in.readByte();
+		} catch (EOFException eof) {
+			return -1;
+		}
+	}
+
+	private static void skipFingerprint(final DataInputStream in, final byte type) throws IOException {
+		if (type != RECORD_DONE)
+			throw new IOException("corrupt frontier journal; unknown record type[" + type + "]");
+		in.readLong();
+	}
+
+	private static void skipAdded(final DataInputStream in, final byte type) throws IOException {
+		if (type != RECORD_ADDED)
+			throw new IOException("corrupt frontier journal; unknown record type[" + type + "]");
+		in.readUTF();
+		in.readDouble();
+	}
+
+}
@@ -0,0 +1,248 @@
+// HostPartitionedFrontier.java
+// HostPartitionedFrontier
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HostPartitionedFrontier keeps a separate FIFO queue of urls for every host and
+ * only hands out a url from a host once that host's crawl delay has passed since its
+ * previous url was handed out.<BR><BR>
+ * Hosts with pending urls sit in a ready-heap ordered by the time they may next be
+ * fetched from, so {@link #poll()} is O(log hosts) and retrievers are spread over every
+ * host that is ready instead of bursting against whichever host dominates the queue.<BR><BR>
+ * Each host's urls are kept front-coded in a {@link FrontCodedUrlQueue}, since they all share
+ * at least the host's prefix, and are only turned back in to Strings when handed out. A host
+ * whose queue has emptied is forgotten once its crawl delay has passed, so a long crawl over
+ * many hosts only keeps the hosts it is still crawling.
+ * @author Michael Morris
+ * @version 5/8/2013
+ *
+ */
+public class HostPartitionedFrontier implements Frontier {
+
+	/**
+	 * The pending urls and schedule of a single host.
+	 */
+	private static final class HostQueue {
+		final String key;
+		final FrontCodedUrlQueue urls = new FrontCodedUrlQueue();
+		long delay_nanos;
+		long last_fetch_nanos;
+		boolean fetched;
+		boolean in_heap;
+		boolean in_emptied;
+
+		HostQueue(final String key, final long delay_nanos) {
+			this.key = key;
+			this.delay_nanos = delay_nanos;
+		}
+
+		long nextFetchNanos() {
+			return fetched ? last_fetch_nanos + delay_nanos : Long.MIN_VALUE;
+		}
+	}
+
+	private static final Comparator<HostQueue> BY_NEXT_FETCH = new Comparator<HostQueue>() {
+		@Override
+		public int compare(final HostQueue a, final HostQueue b) {
+			// Compare by difference; nanoTime values may wrap.
+			final long next_a = a.nextFetchNanos();
+			final long next_b = b.nextFetchNanos();
+			if (next_a == next_b)
+				return 0;
+			if (next_a == Long.MIN_VALUE)
+				return -1;
+			if (next_b == Long.MIN_VALUE)
+				return 1;
+			return next_a - next_b < 0 ? -1 : 1;
+		}
+	};
+
+	private final Map<String, HostQueue> hosts;
+
+	private final PriorityQueue<HostQueue> ready_heap;
+
+	/** Hosts whose queues have emptied, roughly in the order they may be forgotten. **/
+	private final ArrayDeque<HostQueue> emptied;
+
+	private final long min_delay_nanos;
+
+	private int size;
+
+	private long pending_bytes;
+
+	/**
+	 * Construct an empty HostPartitionedFrontier.
+	 * @param min_delay_millis The delay enforced between fetches from every host, even those
+	 * which do not specify a Crawl-delay.
+	 */
+	public HostPartitionedFrontier(final long min_delay_millis) {
+		hosts = new HashMap<String, HostQueue>();
+		ready_heap = new PriorityQueue<HostQueue>(64, BY_NEXT_FETCH);
+		emptied = new ArrayDeque<HostQueue>();
+		min_delay_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, min_delay_millis));
+		size = 0;
+	}
+
+	@Override
+	public boolean offer(final String url, final double score) {
+		final String key = getHostKey(url);
+		HostQueue host = hosts.get(key);
+		if (host == null) {
+			host = new HostQueue(key, min_delay_nanos);
+			hosts.put(key, host);
+		}
+		final long bytes_before = host.urls.getEncodedBytes();
+		host.urls.add(url);
+		pending_bytes += host.urls.getEncodedBytes() - bytes_before;
+		if (!host.in_heap) {
+			host.in_heap = true;
+			ready_heap.add(host);
+		}
+		size++;
+		return true;
+	}
+
+	@Override
+	public String poll() {
+		final HostQueue host = ready_heap.peek();
+		if (host == null)
+			return null;
+
+		final long now = System.nanoTime();
+		if (host.fetched && now - host.nextFetchNanos() < 0)
+			return null;
+
+		ready_heap.poll();
+		final long bytes_before = host.urls.getEncodedBytes();
+		final String rtn = host.urls.poll();
+		pending_bytes -= bytes_before - host.urls.getEncodedBytes();
+		host.fetched = true;
+		host.last_fetch_nanos = now;
+		if (host.urls.isEmpty()) {
+			host.in_heap = false;
+			if (!host.in_emptied) {
+				host.in_emptied = true;
+				emptied.add(host);
+			}
+		} else {
+			ready_heap.add(host);
+		}
+		size--;
+
+		forgetIdleHosts(now);
+		return rtn;
+	}
+
+	@Override
+	public String peek() {
+		final HostQueue host = ready_heap.peek();
+		return host != null ? host.urls.peek() : null;
+	}
+
+	@Override
+	public long getNanosUntilReady() {
+		final HostQueue host = ready_heap.peek();
+		if (host == null)
+			return Long.MAX_VALUE;
+		if (!host.fetched)
+			return 0L;
+		return Math.max(0L, host.nextFetchNanos() - System.nanoTime());
+	}
+
+	@Override
+	public void setHostDelay(final String url, final long delay_millis) {
+		final HostQueue host = hosts.get(getHostKey(url));
+		final long delay_nanos = Math.max(min_delay_nanos, TimeUnit.MILLISECONDS.toNanos(delay_millis));
+		if (host == null || host.delay_nanos == delay_nanos)
+			return;
+
+		// The host's place in the heap depends on its delay, so re-seat it.
+		if (host.in_heap)
+			ready_heap.remove(host);
+		host.delay_nanos = delay_nanos;
+		if (host.in_heap)
+			ready_heap.add(host);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of hosts the frontier is keeping: those with pending urls, and those emptied
+	 * whose crawl delay has not yet passed.
+	 * @return The number of hosts.
+	 */
+	public int numHosts() {
+		return hosts.size();
+	}
+
+	/**
+	 * Get the number of bytes the pending urls are encoded in.
+	 * @return The number of encoded bytes.
+	 */
+	public long getPendingBytes() {
+		return pending_bytes;
+	}
+
+	/**
+	 * Forget the emptied hosts whose crawl delay has passed, so that a new url for one of them may be
+	 * fetched at once anyway. Stops at the first host still waiting out its delay; the ones behind it
+	 * are forgotten on a later call.
+	 * @param now The current System.nanoTime().
+	 */
+	private void forgetIdleHosts(final long now) {
+		HostQueue host;
+		while ((host = emptied.peek()) != null) {
+			if (host.urls.isEmpty() && now - host.nextFetchNanos() < 0)
+				return;
+			emptied.poll();
+			host.in_emptied = false;
+			if (host.urls.isEmpty())
+				hosts.remove(host.key);
+		}
+	}
+
+	/**
+	 * Get the key used to group urls by host: the protocol and host name, matching the keys
+	 * robots.txt rules are stored under. Any user info and port are dropped.
+	 * @param url The url.
+	 * @return The host key, or the url itself if it has no recognizable host.
+	 */
+	public static String getHostKey(final String url) {
+		final int scheme_end = url.indexOf("://");
+		if (scheme_end < 0)
+			return url;
+
+		final int host_start = scheme_end + 3;
+		int host_end = url.length();
+		for (int i = host_start; i < url.length(); i++) {
+			final char c = url.charAt(i);
+			if (c == '/' || c == '?' || c == '#') {
+				host_end = i;
+				break;
+			}
+		}
+
+		int start = url.lastIndexOf('@', host_end - 1);
+		start = start >= host_start ? start + 1 : host_start;
+		int end = host_end;
+		final int port = url.lastIndexOf(':', host_end - 1);
+		if (port >= start && url.indexOf(']', port) < 0)
+			end = port;
+
+		return url.substring(0, host_start) + url.substring(start, end);
+	}
+
+}
@@ -0,0 +1,519 @@
+// HttpCache.java
+// HttpCache
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.utils.ContentDecoder;
+import com.bestos.thebestcrawler.utils.FingerprintUtil;
+
+/**
+ * The HttpCache keeps the pages of earlier crawls on disk, with the ETag and Last-Modified headers they
+ * were served with, so that a re-crawl can ask each server whether a page has changed (a conditional GET)
+ * and, if not, hand the parser the stored copy instead of downloading it again.<BR><BR>
+ * Bodies are deflated and appended to a data file, and each page's fingerprint, place in the data file
+ * and validators are appended to an index file, which is read back in to memory when the cache is opened.
+ * Neither file is ever rewritten: a changed page is appended again and the index's later entry wins, and a
+ * record cut short by a crash is never indexed, so it is simply ignored. An index entry cut short by a crash
+ * is cut off the index when the cache is opened, so that new entries follow the last whole one. Since neither
+ * file is synced, a crash can also leave entries pointing past the end of the data, which are dropped when
+ * the cache is opened; a record found unreadable later is {@link #invalidate(String, Entry) invalidated} by
+ * appending an entry which removes it.
+ * @author Michael Morris
+ * @version 5/27/2013
+ *
+ */
+public class HttpCache {
+
+	private static final String TAG = "HttpCache";
+
+	private static final String DATA_FILE = "pages.dat";
+	private static final String INDEX_FILE = "pages.idx";
+
+	/** Starts every record in the data file. **/
+	private static final int RECORD_MAGIC = 0x48435231;	// "HCR1"
+
+	/** The offset of an index entry which removes the page's earlier entries. **/
+	private static final long INVALIDATED = -1;
+
+	/** The longest string (in the modified utf-8 bytes of writeUTF, at most 3 a char) that can be stored. **/
+	private static final int MAX_STRING_BYTES = 65535;
+
+	private static HttpCache http_cache = null;
+	private static boolean http_cache_opened = false;
+
+	private final File directory;
+
+	private final RandomAccessFile data_file;
+	private final FileChannel data;
+
+	private final DataOutputStream index;
+
+	/** The newest entry of each page, by url fingerprint. Guarded by this. **/
+	private final Map<Long, Entry> entries;
+
+	private long num_stored;
+	private long num_served;
+	private long bytes_served;
+
+	/**
+	 * Open the cache in a directory, creating it if need be.
+	 * @param directory The directory of the cache files.
+	 * @throws IOException If the files cannot be opened or the index cannot be read.
+	 */
+	public HttpCache(final File directory) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("must specify a directory; directory[" + directory + "]");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("could not create the cache directory[" + directory + "]");
+		this.directory = directory;
+
+		entries = new HashMap<Long, Entry>();
+		final File index_file = new File(directory, INDEX_FILE);
+		final Set<Long> torn = new HashSet<Long>();
+		if (index_file.exists()) {
+			final long index_length = readIndex(index_file, new File(directory, DATA_FILE).length(), torn);
+			if (index_length < index_file.length()) {
+				UserPrefs.errorTxt(TAG, "index ends with a partial entry; truncating it.", "index = " + index_file,
+								   "length = " + index_file.length(), "whole entries = " + index_length);
+				final RandomAccessFile truncate = new RandomAccessFile(index_file, "rw");
+				try {
+					truncate.setLength(index_length);
+				} finally {
+					truncate.close();
+				}
+			}
+		}
+
+		data_file = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+		data = data_file.getChannel();
+		index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index_file, true)));
+
+		// Invalidate the entries whose records were lost, before new records are appended where they were.
+		for (Long fingerprint : torn)
+			if (!entries.containsKey(fingerprint))
+				writeInvalidation(fingerprint);
+		index.flush();
+	}
+
+	/**
+	 * Get the shared HttpCache, opened in {@link UserPrefs#getHttpCacheDirectory()} when first used.
+	 * @return The HttpCache, or null if caching is turned off or the cache could not be opened.
+	 */
+	public static final synchronized HttpCache getHttpCache() {
+		if (!http_cache_opened) {
+			http_cache_opened = true;
+			final File directory = UserPrefs.getUserPrefs().getHttpCacheDirectory();
+			if (directory != null) {
+				try {
+					http_cache = new HttpCache(directory);
+					UserPrefs.debugTxt(TAG, "opened with " + http_cache.size() + " pages.", "directory = " + directory);
+				} catch (IOException ioe) {
+					UserPrefs.errorTxt(TAG, "could not open the cache; pages will not be cached.", "directory = " + directory, ioe.getMessage());
+				}
+			}
+		}
+		return http_cache;
+	}
+
+	/**
+	 * Read the index entries in to memory, dropping those whose record starts past the end of the data.
+	 * @param data_length The length of the data file.
+	 * @param torn Given the fingerprint of each page whose record was past the end of the data.
+	 * @return The length of the whole entries, which is less than the file's if the last entry was cut short.
+	 */
+	private long readIndex(final File index_file, final long data_length, final Set<Long> torn) throws IOException {
+		final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(index_file)));
+		final DataInputStream in = new DataInputStream(counter);
+		long whole_length = 0;
+		try {
+			while (true) {
+				final long fingerprint = in.readLong();
+				final long offset = in.readLong();
+				final String etag = in.readUTF();
+				final String last_modified = in.readUTF();
+				final String content_type = in.readUTF();
+				final int length = in.readInt();
+				if (length < 0)
+					break;
+				whole_length = counter.getCount();
+				if (offset == INVALIDATED || offset >= data_length) {
+					// Invalidated, or the data file lost its record in a crash.
+					entries.remove(fingerprint);
+					if (offset != INVALIDATED)
+						torn.add(fingerprint);
+					else
+						torn.remove(fingerprint);
+				} else {
+					entries.put(fingerprint, new Entry(offset, emptyToNull(etag), emptyToNull(last_modified), emptyToNull(content_type), length));
+				}
+			}
+		} catch (EOFException eofe) {
+			// The end of the index, or an entry cut short by a crash.
+		} catch (UTFDataFormatException udfe) {
+			// An entry cut short by a crash, and partly overwritten by the next run's.
+		} finally {
+			in.close();
+		}
+		if (!torn.isEmpty())
+			UserPrefs.errorTxt(TAG, "dropped " + torn.size() + " entries past the end of the data file.", "index = " + index_file);
+		return whole_length;
+	}
+
+	/**
+	 * (Thread-Safe) Find the stored copy of a page.
+	 * @param url The page's url.
+	 * @return The entry, whose validators can be sent with a conditional GET, or null if not stored.
+	 */
+	public synchronized Entry lookup(final String url) {
+		return entries.get(FingerprintUtil.fingerprint(url));
+	}
+
+	/**
+	 * (Thread-Safe) Store a page, if it has an ETag or Last-Modified header to revalidate it with later.
+	 * The body is only read; the caller keeps its reference.
+	 * @param url The page's url.
+	 * @param etag The ETag header, or null.
+	 * @param last_modified The Last-Modified header, or null.
+	 * @param content_type The Content-Type header, or null.
+	 * @param body The body, which must be live.
+	 * @return True if the page was stored.
+	 * @throws IOException If the body cannot be read or the cache files cannot be written.
+	 */
+	public boolean store(final String url, final String etag, final String last_modified, final String content_type,
+						 final PageBody body) throws IOException {
+		if (etag == null && last_modified == null)
+			return false;
+		if (!fits(url) || !fits(etag) || !fits(last_modified) || !fits(content_type))
+			return false;
+
+		// Build and deflate the record before taking the lock.
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(Math.max(64, body.length() / 3));
+		final DataOutputStream record_out = new DataOutputStream(record);
+		record_out.writeInt(RECORD_MAGIC);
+		record_out.writeLong(FingerprintUtil.fingerprint(url));
+		record_out.writeUTF(url);
+		record_out.writeInt(body.length());
+		final Deflater deflater = PageBody.takeDeflater();
+		try {
+			final DeflaterOutputStream deflated = new DeflaterOutputStream(record, deflater, 8 * 1024);
+			final InputStream in = body.openStream();
+			try {
+				final byte[] buffer = new byte[8 * 1024];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					deflated.write(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+			deflated.finish();
+		} finally {
+			PageBody.giveDeflater(deflater);
+		}
+
+		synchronized (this) {
+			final long offset = data.size();
+			final ByteBuffer bytes = ByteBuffer.wrap(record.toByteArray());
+			long position = offset;
+			while (bytes.hasRemaining())
+				position += data.write(bytes, position);
+
+			// Index the record only once it is whole.
+			index.writeLong(FingerprintUtil.fingerprint(url));
+			index.writeLong(offset);
+			index.writeUTF(nullToEmpty(etag));
+			index.writeUTF(nullToEmpty(last_modified));
+			index.writeUTF(nullToEmpty(content_type));
+			index.writeInt(body.length());
+			index.flush();
+
+			entries.put(FingerprintUtil.fingerprint(url), new Entry(offset, etag, last_modified, content_type, body.length()));
+			num_stored++;
+		}
+		return true;
+	}
+
+	/**
+	 * (Thread-Safe) Forget the stored copy of a page, e.g. after {@link #readBody(String, Entry)} found its
+	 * record unreadable, so that it is fetched unconditionally from now on. An entry which has since been
+	 * replaced is kept.
+	 * @param url The page's url.
+	 * @param entry The entry found unreadable.
+	 * @throws IOException If the index cannot be written.
+	 */
+	public synchronized void invalidate(final String url, final Entry entry) throws IOException {
+		final long fingerprint = FingerprintUtil.fingerprint(url);
+		if (entries.get(fingerprint) != entry)
+			return;
+		entries.remove(fingerprint);
+		writeInvalidation(fingerprint);
+		index.flush();
+	}
+
+	private void writeInvalidation(final long fingerprint) throws IOException {
+		index.writeLong(fingerprint);
+		index.writeLong(INVALIDATED);
+		index.writeUTF("");
+		index.writeUTF("");
+		index.writeUTF("");
+		index.writeInt(0);
+	}
+
+	/**
+	 * (Thread-Safe) Read the stored body of a page in to the {@link PageArena}, e.g. after the server has
+	 * answered a conditional GET with 304 Not Modified.
+	 * @param url The page's url.
+	 * @param entry The page's entry, from {@link #lookup(String)}.
+	 * @return The body, holding one reference for the caller.
+	 * @throws IOException If the record cannot be read or is not the page's.
+	 */
+	public PageBody readBody(final String url, final Entry entry) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new RegionStream(entry.offset), 8 * 1024));
+		final PageArena.BodyWriter writer = PageArena.getPageArena().newWriter();
+		try {
+			if (in.readInt() != RECORD_MAGIC || in.readLong() != FingerprintUtil.fingerprint(url) || !in.readUTF().equals(url))
+				throw new IOException("record at offset[" + entry.offset + "] is not the page[" + url + "]");
+			final int length = in.readInt();
+			final InputStream inflated = ContentDecoder.decode(in, "deflate");
+			try {
+				if (writer.readFrom(inflated, length, length) != length)
+					throw new IOException("record at offset[" + entry.offset + "] does not hold " + length + " bytes");
+			} finally {
+				inflated.close();
+			}
+			synchronized (this) {
+				num_served++;
+				bytes_served += length;
+			}
+			return writer.finish();
+		} catch (IOException ioe) {
+			writer.abort();
+			throw ioe;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Close the cache files. Pages can no longer be stored or read afterwards.
+	 */
+	public synchronized void close() {
+		try {
+			index.close();
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "could not close the index.", ioe.getMessage());
+		}
+		try {
+			data_file.close();
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "could not close the data file.", ioe.getMessage());
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of pages in the cache.
+	 * @return The number of pages.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of pages stored since the cache was opened.
+	 * @return The number of pages.
+	 */
+	public synchronized long getNumStored() {
+		return num_stored;
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of unchanged pages served from the cache instead of downloaded.
+	 * @return The number of pages.
+	 */
+	public synchronized long getNumServed() {
+		return num_served;
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of bytes of unchanged pages served from the cache instead of downloaded.
+	 * @return The number of bytes.
+	 */
+	public synchronized long getBytesServed() {
+		return bytes_served;
+	}
+
+	/**
+	 * Get the directory of the cache files.
+	 * @return The directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	private static boolean fits(final String str) {
+		return str == null || str.length() * 3 <= MAX_STRING_BYTES;
+	}
+
+	private static String nullToEmpty(final String str) {
+		return str == null ? "" : str;
+	}
+
+	private static String emptyToNull(final String str) {
+		return str.isEmpty() ? null : str;
+	}
+
+	/**
+	 * The stored copy of a page: where it is in the data file, and the headers it was served with.
+	 */
+	public static final class Entry {
+		private final long offset;
+		private final String etag;
+		private final String last_modified;
+		private final String content_type;
+		private final int length;
+
+		Entry(final long offset, final String etag, final String last_modified, final String content_type, final int length) {
+			this.offset = offset;
+			this.etag = etag;
+			this.last_modified = last_modified;
+			this.content_type = content_type;
+			this.length = length;
+		}
+
+		/**
+		 * Get the ETag header the page was served with.
+		 * @return The ETag, or null.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Get the Last-Modified header the page was served with.
+		 * @return The date, or null.
+		 */
+		public String getLastModified() {
+			return last_modified;
+		}
+
+		/**
+		 * Get the Content-Type header the page was served with.
+		 * @return The content type, or null.
+		 */
+		public String getContentType() {
+			return content_type;
+		}
+
+		/**
+		 * Get the length of the page's body.
+		 * @return The length in bytes.
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Get the headers which ask the server for the page only if it has changed since it was stored.
+		 * @return The If-None-Match and If-Modified-Since headers, by name.
+		 */
+		public Map<String, String> getConditionalHeaders() {
+			final Map<String, String> headers = new HashMap<String, String>(4);
+			if (etag != null)
+				headers.put("If-None-Match", etag);
+			if (last_modified != null)
+				headers.put("If-Modified-Since", last_modified);
+			return headers;
+		}
+	}
+
+	/**
+	 * An InputStream which counts the bytes read through it.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Reads the data file from an offset, with positional reads so many readers can share the file.
+	 */
+	private final class RegionStream extends InputStream {
+		private long position;
+
+		RegionStream(final long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int count) throws IOException {
+			if (count == 0)
+				return 0;
+			final int read = data.read(ByteBuffer.wrap(bytes, offset, count), position);
+			if (read > 0)
+				position += read;
+			return read;
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+// NearDuplicateIndex.java
+// NearDuplicateIndex
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import com.bestos.thebestcrawler.utils.SimHash;
+
+/**
+ * The NearDuplicateIndex remembers the {@link SimHash} of every distinct page crawled, and finds
+ * whether a new page is within a small Hamming distance (at most 3 bits) of one seen before.<BR><BR>
+ * The 64-bit SimHashes are split in to four 16-bit blocks, and each SimHash is filed under each of
+ * its blocks in a separate table. Two SimHashes at most 3 bits apart must agree exactly on at least
+ * one of the four blocks, so only the SimHashes sharing a block with the new one are compared,
+ * instead of every SimHash seen.
+ * @author Michael Morris
+ * @version 5/20/2013
+ *
+ */
+public class NearDuplicateIndex {
+
+	private static final int NUM_BLOCKS = 4;
+	private static final int BLOCK_BITS = 16;
+	private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+
+	/** The largest distance four blocks can guarantee to find. **/
+	public static final int MAX_DISTANCE = NUM_BLOCKS - 1;
+
+	private static NearDuplicateIndex near_duplicate_index = null;
+
+	/**
+	 * tables[block][key] holds the SimHashes whose block equals key; created as first needed.
+	 */
+	private final long[][][] tables;
+	private final int[][] counts;
+
+	private final int max_distance;
+
+	private long size;
+
+	private long num_duplicates;
+
+	/**
+	 * Construct an empty NearDuplicateIndex.
+	 * @param max_distance The largest Hamming distance counted as a near-duplicate, from 0 to {@link #MAX_DISTANCE}.
+	 */
+	public NearDuplicateIndex(final int max_distance) {
+		if (max_distance < 0 || max_distance > MAX_DISTANCE)
+			throw new IllegalArgumentException("must specify a distance from 0 to " + MAX_DISTANCE + "; max_distance[" + max_distance + "]");
+		this.max_distance = max_distance;
+		tables = new long[NUM_BLOCKS][1 << BLOCK_BITS][];
+		counts = new int[NUM_BLOCKS][1 << BLOCK_BITS];
+	}
+
+	/**
+	 * Get the shared NearDuplicateIndex, finding pages up to {@link #MAX_DISTANCE} bits apart.
+	 * @return The NearDuplicateIndex.
+	 */
+	public static final synchronized NearDuplicateIndex getNearDuplicateIndex() {
+		if (near_duplicate_index == null)
+			near_duplicate_index = new NearDuplicateIndex(MAX_DISTANCE);
+		return near_duplicate_index;
+	}
+
+	/**
+	 * (Thread-Safe) Add the SimHash of a page unless a near-duplicate of it has been added before.
+	 * @param simhash The page's SimHash.
+	 * @return True if the page is distinct and was added, false if it is a near-duplicate.
+	 */
+	public synchronized boolean addIfDistinct(final long simhash) {
+		if (containsNear(simhash)) {
+			num_duplicates++;
+			return false;
+		}
+
+		for (int block = 0; block < NUM_BLOCKS; block++) {
+			final int key = key(simhash, block);
+			long[] bucket = tables[block][key];
+			final int count = counts[block][key];
+			if (bucket == null) {
+				bucket = new long[2];
+				tables[block][key] = bucket;
+			} else if (count == bucket.length) {
+				final long[] grown = new long[count * 2];
+				System.arraycopy(bucket, 0, grown, 0, count);
+				bucket = grown;
+				tables[block][key] = bucket;
+			}
+			bucket[count] = simhash;
+			counts[block][key] = count + 1;
+		}
+		size++;
+		return true;
+	}
+
+	/**
+	 * (Thread-Safe) Check whether a near-duplicate of the page has been added.
+	 * @param simhash The page's SimHash.
+	 * @return True if a SimHash within the distance has been added.
+	 */
+	public synchronized boolean containsNear(final long simhash) {
+		for (int block = 0; block < NUM_BLOCKS; block++) {
+			final int key = key(simhash, block);
+			final long[] bucket = tables[block][key];
+			final int count = counts[block][key];
+			for (int i = 0; i < count; i++)
+				if (SimHash.distance(bucket[i], simhash) <= max_distance)
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of distinct pages added.
+	 * @return The number of SimHashes held.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of near-duplicates found by {@link #addIfDistinct(long)}.
+	 * @return The number of near-duplicates.
+	 */
+	public synchronized long getNumDuplicates() {
+		return num_duplicates;
+	}
+
+	private static int key(final long simhash, final int block) {
+		return (int)(simhash >>> (block * BLOCK_BITS)) & BLOCK_MASK;
+	}
+
+}
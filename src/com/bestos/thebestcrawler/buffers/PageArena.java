@@ -0,0 +1,344 @@
+// PageArena.java
+// PageArena
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.utils.ReadBufferPool;
+
+/**
+ * The PageArena stores page bodies off the Java heap, in pooled direct {@link ByteBuffer} slabs
+ * of a fixed size. A body is written through a {@link BodyWriter}, which takes slabs from the pool
+ * as it fills them, and is handed on as a small {@link PageBody} handle; when the handle's last
+ * reference is released its slabs go back to the pool for the next page.<BR><BR>
+ * Free slabs beyond {@link UserPrefs#getArenaPooledSlabs()} are not kept, so the arena shrinks
+ * again after a burst of large pages.
+ * @author Michael Morris
+ * @version 5/18/2013
+ *
+ */
+public class PageArena {
+
+	private static PageArena page_arena = null;
+
+	private final int slab_size;
+
+	private final int max_pooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> free_slabs;
+
+	private final AtomicInteger num_pooled;
+
+	private final AtomicInteger slabs_in_use;
+
+	private final AtomicLong slabs_allocated;
+
+	/**
+	 * Construct a PageArena.
+	 * @param slab_size The size of each slab in bytes.
+	 * @param max_pooled The number of free slabs to keep for reuse.
+	 */
+	public PageArena(final int slab_size, final int max_pooled) {
+		if (slab_size <= 0 || max_pooled < 0)
+			throw new IllegalArgumentException("must specify a positive slab size and pool size; slab_size[" + slab_size + "], max_pooled[" + max_pooled + "]");
+		this.slab_size = slab_size;
+		this.max_pooled = max_pooled;
+		free_slabs = new ConcurrentLinkedQueue<ByteBuffer>();
+		num_pooled = new AtomicInteger();
+		slabs_in_use = new AtomicInteger();
+		slabs_allocated = new AtomicLong();
+	}
+
+	/**
+	 * Get the shared PageArena, sized by the {@link UserPrefs} when first used.
+	 * @return The PageArena.
+	 */
+	public static final synchronized PageArena getPageArena() {
+		if (page_arena == null)
+			page_arena = new PageArena(UserPrefs.getUserPrefs().getArenaSlabSize(), UserPrefs.getUserPrefs().getArenaPooledSlabs());
+		return page_arena;
+	}
+
+	/**
+	 * (Thread-Safe) Start writing a new body into this arena.
+	 * @return The writer, which must be either finished or aborted.
+	 */
+	public BodyWriter newWriter() {
+		return new BodyWriter();
+	}
+
+	/**
+	 * Get the size of each slab.
+	 * @return The slab size in bytes.
+	 */
+	public int getSlabSize() {
+		return slab_size;
+	}
+
+	/**
+	 * Get the number of slabs currently holding page bodies.
+	 * @return The number of slabs in use.
+	 */
+	public int getSlabsInUse() {
+		return slabs_in_use.get();
+	}
+
+	/**
+	 * Get the number of free slabs waiting to be reused.
+	 * @return The number of pooled slabs.
+	 */
+	public int getSlabsPooled() {
+		return num_pooled.get();
+	}
+
+	/**
+	 * Get the number of slabs ever allocated from the system; a count which keeps growing
+	 * means the pool is too small for the crawl.
+	 * @return The number of slabs allocated.
+	 */
+	public long getSlabsAllocated() {
+		return slabs_allocated.get();
+	}
+
+	private ByteBuffer takeSlab() {
+		slabs_in_use.incrementAndGet();
+		final ByteBuffer slab = free_slabs.poll();
+		if (slab != null) {
+			num_pooled.decrementAndGet();
+			slab.clear();
+			return slab;
+		}
+		slabs_allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(slab_size);
+	}
+
+	private void giveSlab(final ByteBuffer slab) {
+		slabs_in_use.decrementAndGet();
+		if (num_pooled.incrementAndGet() <= max_pooled)
+			free_slabs.offer(slab);
+		else
+			num_pooled.decrementAndGet();	// Let the collector hand the memory back.
+	}
+
+	/**
+	 * A BodyWriter fills slabs with one page body. It is used by a single thread, and is ended by
+	 * either {@link #finish()}, which hands the slabs over to a PageBody, or {@link #abort()}, which
+	 * gives them straight back.
+	 */
+	public final class BodyWriter extends OutputStream {
+
+		private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>(4);
+
+		private ByteBuffer current = null;
+
+		private int length = 0;
+
+		private boolean ended = false;
+
+		private BodyWriter() { }
+
+		@Override
+		public void write(final int b) {
+			room().put((byte)b);
+			length++;
+		}
+
+		@Override
+		public void write(final byte[] bytes, int offset, int count) {
+			if (offset < 0 || count < 0 || offset + count > bytes.length)
+				throw new IndexOutOfBoundsException("offset[" + offset + "], count[" + count + "], length[" + bytes.length + "]");
+			while (count > 0) {
+				final ByteBuffer slab = room();
+				final int n = Math.min(count, slab.remaining());
+				slab.put(bytes, offset, n);
+				offset += n;
+				count -= n;
+				length += n;
+			}
+		}
+
+		/**
+		 * Copy the remaining bytes of a buffer into this body.
+		 * @param buffer The buffer, whose position is moved to its limit.
+		 */
+		public void write(final ByteBuffer buffer) {
+			while (buffer.hasRemaining()) {
+				final ByteBuffer slab = room();
+				final int n = Math.min(buffer.remaining(), slab.remaining());
+				final ByteBuffer chunk = buffer.duplicate();
+				chunk.limit(chunk.position() + n);
+				slab.put(chunk);
+				buffer.position(buffer.position() + n);
+				length += n;
+			}
+		}
+
+		/**
+		 * Copy the rest of a stream into this body in large chunks, through an array from the
+		 * {@link ReadBufferPool} sized from the expected length.
+		 * @param in The stream to read until it ends.
+		 * @param expected_length The length of the stream, e.g. its Content-Length, or -1 if not known.
+		 * @param max_bytes The most bytes wanted; reading stops once one byte more than this has been read.
+		 * @return The number of bytes read; more than max_bytes if the stream was too long.
+		 * @throws IOException If the stream cannot be read.
+		 */
+		public long readFrom(final InputStream in, final long expected_length, final long max_bytes) throws IOException {
+			final byte[] transfer = ReadBufferPool.acquire(expected_length);
+			long total = 0;
+			try {
+				int read;
+				while (total <= max_bytes
+					   && (read = in.read(transfer, 0, (int)Math.min(transfer.length, max_bytes + 1 - total))) != -1) {
+					write(transfer, 0, read);
+					total += read;
+				}
+			} finally {
+				ReadBufferPool.release(transfer);
+			}
+			return total;
+		}
+
+		/**
+		 * Get the number of bytes written so far.
+		 * @return The length in bytes.
+		 */
+		public int length() {
+			return length;
+		}
+
+		/**
+		 * End the body, handing its slabs over to a PageBody holding one reference.
+		 * @return The body.
+		 */
+		public PageBody finish() {
+			checkOpen();
+			ended = true;
+			final ByteBuffer[] filled = new ByteBuffer[slabs.size()];
+			for (int i = 0; i < filled.length; i++) {
+				filled[i] = slabs.get(i);
+				filled[i].flip();
+			}
+			return new ArenaBody(filled, length);
+		}
+
+		/**
+		 * End the body, giving its slabs back to the arena. Does nothing if already ended.
+		 */
+		public void abort() {
+			if (ended)
+				return;
+			ended = true;
+			for (ByteBuffer slab : slabs)
+				giveSlab(slab);
+			slabs.clear();
+		}
+
+		@Override
+		public void close() {
+			// Ended only by finish() or abort().
+		}
+
+		private ByteBuffer room() {
+			checkOpen();
+			if (current == null || !current.hasRemaining()) {
+				current = takeSlab();
+				slabs.add(current);
+			}
+			return current;
+		}
+
+		private void checkOpen() {
+			if (ended)
+				throw new IllegalStateException("body writer already finished or aborted");
+		}
+	}
+
+	/**
+	 * A body held in this arena's slabs.
+	 */
+	private final class ArenaBody extends PageBody {
+		private final ByteBuffer[] slabs;
+		private final int length;
+
+		ArenaBody(final ByteBuffer[] slabs, final int length) {
+			this.slabs = slabs;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		protected InputStream newStream() {
+			return new SlabInputStream(this);
+		}
+
+		@Override
+		protected void free() {
+			for (ByteBuffer slab : slabs)
+				giveSlab(slab);
+		}
+	}
+
+	/**
+	 * Reads an ArenaBody's slabs in order, through its own views of them.
+	 */
+	private static final class SlabInputStream extends InputStream {
+		private final ArenaBody body;
+		private int index = 0;
+		private ByteBuffer view = null;
+
+		SlabInputStream(final ArenaBody body) {
+			this.body = body;
+		}
+
+		@Override
+		public int read() {
+			final ByteBuffer slab = next();
+			return slab == null ? -1 : slab.get() & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int count) {
+			if (count == 0)
+				return 0;
+			final ByteBuffer slab = next();
+			if (slab == null)
+				return -1;
+			final int n = Math.min(count, slab.remaining());
+			slab.get(bytes, offset, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			final ByteBuffer slab = next();
+			return slab == null ? 0 : slab.remaining();
+		}
+
+		private ByteBuffer next() {
+			body.checkLive();
+			while (view == null || !view.hasRemaining()) {
+				if (index >= body.slabs.length)
+					return null;
+				view = body.slabs[index++].duplicate();
+			}
+			return view;
+		}
+	}
+
+}
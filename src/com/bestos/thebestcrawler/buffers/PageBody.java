@@ -0,0 +1,286 @@
+// PageBody.java
+// PageBody
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A PageBody is a handle to the raw bytes of a retrieved page, wherever they are stored.
+ * Bodies are reference counted: a new body holds one reference, which its last user gives
+ * up with {@link #release()} so that any storage behind it can be reused. A body must not be
+ * read once released.<BR><BR>
+ * A body may be stored compressed (see {@link #compress(PageBody, PageArena)}); it is still read
+ * as the original bytes, decompressed as the stream is read.
+ * @author Michael Morris
+ * @version 5/19/2013
+ *
+ */
+public abstract class PageBody {
+
+	/** The smallest body worth compressing. **/
+	private static final int MIN_COMPRESS_LENGTH = 512;
+
+	/** The number of free deflaters kept; each holds native memory until ended. **/
+	private static final int MAX_POOLED_DEFLATERS = 64;
+
+	/** Free deflaters, reset, shared by every thread compressing bodies. **/
+	private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private static final AtomicInteger num_deflaters = new AtomicInteger();
+
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * Wrap a byte array as a PageBody.
+	 * @param bytes The body. NOTE: The array is NOT copied and must not be modified afterwards.
+	 * @return The body.
+	 */
+	public static PageBody wrap(final byte[] bytes) {
+		if (bytes == null)
+			throw new IllegalArgumentException("must specify the bytes");
+		return new HeapBody(bytes);
+	}
+
+	/**
+	 * Compress a body with {@link Deflater} into the given arena. Bodies which are already
+	 * compressed, too small, or which do not shrink are returned as they are.
+	 * @param body The body; on success the caller's reference is released.
+	 * @param arena The arena to store the compressed bytes in.
+	 * @return The compressed body, holding one reference, or the original body.
+	 * @throws IOException If the body cannot be read.
+	 */
+	public static PageBody compress(final PageBody body, final PageArena arena) throws IOException {
+		if (body instanceof CompressedBody || body.length() < MIN_COMPRESS_LENGTH)
+			return body;
+
+		final Deflater deflater = takeDeflater();
+		final PageArena.BodyWriter writer = arena.newWriter();
+		final InputStream in = body.openStream();
+		try {
+			final DeflaterOutputStream out = new DeflaterOutputStream(writer, deflater, 4096);
+			final byte[] transfer = new byte[4096];
+			int read;
+			while ((read = in.read(transfer, 0, transfer.length)) != -1)
+				out.write(transfer, 0, read);
+			out.finish();
+		} catch (IOException ioe) {
+			writer.abort();
+			throw ioe;
+		} finally {
+			in.close();
+			giveDeflater(deflater);
+		}
+
+		if (writer.length() >= body.length()) {
+			writer.abort();
+			return body;
+		}
+		final PageBody compressed = new CompressedBody(writer.finish(), body.length());
+		body.release();
+		return compressed;
+	}
+
+	/**
+	 * (Thread-Safe) Take a free deflater, at {@link Deflater#BEST_SPEED}, from the pool shared with
+	 * the {@link HttpCache}. Give it back with {@link #giveDeflater(Deflater)}.
+	 * @return The deflater.
+	 */
+	static Deflater takeDeflater() {
+		final Deflater deflater = deflaters.poll();
+		if (deflater != null) {
+			num_deflaters.decrementAndGet();
+			return deflater;
+		}
+		return new Deflater(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * (Thread-Safe) Reset a deflater and give it back to the pool, or end it if the pool is full.
+	 * @param deflater The deflater, from {@link #takeDeflater()}.
+	 */
+	static void giveDeflater(final Deflater deflater) {
+		deflater.reset();
+		if (num_deflaters.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+			deflaters.offer(deflater);
+		} else {
+			num_deflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Get the length of the body.
+	 * @return The length in bytes.
+	 */
+	public abstract int length();
+
+	/**
+	 * Get the number of bytes the body takes to store, which is less than its length if compressed.
+	 * @return The stored length in bytes.
+	 */
+	public int storedLength() {
+		return length();
+	}
+
+	/**
+	 * Check whether the body is stored compressed.
+	 * @return True if compressed.
+	 */
+	public boolean isCompressed() {
+		return false;
+	}
+
+	/**
+	 * Open a stream over the body, from its first byte. Several streams may be open at once.
+	 * @return The stream.
+	 * @throws IllegalStateException If the body has been released.
+	 */
+	public final InputStream openStream() {
+		checkLive();
+		return newStream();
+	}
+
+	/**
+	 * Copy the body into a new byte array.
+	 * @return The bytes.
+	 * @throws IOException If the body cannot be read.
+	 */
+	public byte[] toByteArray() throws IOException {
+		final byte[] bytes = new byte[length()];
+		final InputStream in = openStream();
+		try {
+			int offset = 0, read;
+			while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1)
+				offset += read;
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * (Thread-Safe) Take another reference to this body, which must be given up with its own
+	 * call to {@link #release()}.
+	 * @return This body.
+	 * @throws IllegalStateException If the body has already been released.
+	 */
+	public final PageBody retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0)
+				throw new IllegalStateException("page body already released");
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/**
+	 * (Thread-Safe) Give up a reference to this body; the storage is freed when the last is given up.
+	 * @throws IllegalStateException If the body has already been released.
+	 */
+	public final void release() {
+		final int count = references.decrementAndGet();
+		if (count == 0)
+			free();
+		else if (count < 0)
+			throw new IllegalStateException("page body already released");
+	}
+
+	/**
+	 * Check whether this body is still readable.
+	 * @return True until the last reference has been released.
+	 */
+	public final boolean isLive() {
+		return references.get() > 0;
+	}
+
+	/**
+	 * Open a stream over the body; only called while the body is live.
+	 * @return The stream.
+	 */
+	protected abstract InputStream newStream();
+
+	/**
+	 * Free the storage behind the body, once the last reference is released.
+	 */
+	protected void free() { }
+
+	protected final void checkLive() {
+		if (references.get() <= 0)
+			throw new IllegalStateException("page body already released");
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[bytes=" + length() + "]";
+	}
+
+	/**
+	 * A body stored deflated in another body, inflated as it is read.
+	 */
+	private static final class CompressedBody extends PageBody {
+		private final PageBody deflated;
+		private final int length;
+
+		CompressedBody(final PageBody deflated, final int length) {
+			this.deflated = deflated;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public int storedLength() {
+			return deflated.length();
+		}
+
+		@Override
+		public boolean isCompressed() {
+			return true;
+		}
+
+		@Override
+		protected InputStream newStream() {
+			return new InflaterInputStream(deflated.openStream());
+		}
+
+		@Override
+		protected void free() {
+			deflated.release();
+		}
+	}
+
+	/**
+	 * A body held in an ordinary byte array.
+	 */
+	private static final class HeapBody extends PageBody {
+		private final byte[] bytes;
+
+		HeapBody(final byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int length() {
+			return bytes.length;
+		}
+
+		@Override
+		protected InputStream newStream() {
+			return new ByteArrayInputStream(bytes);
+		}
+	}
+
+}
@@ -0,0 +1,632 @@
+// PageBuffer.java
+// PageBuffer
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.utils.EventBus;
+
+/**
+ * The PageBuffer is a thread-safe FIFO queue of retrieved pages waiting to be parsed, with
+ * callbacks. Each page is a single {@link PageRecord} holding its raw body bytes, so adding
+ * and taking a page are O(1) and a page costs no more heap than its body.<BR><BR>
+ * Pages are not checked for duplicates; the url buffer already hands out each url only once.<BR><BR>
+ * Once the pages waiting pass a high-water mark of stored bytes, because the parsers have fallen
+ * behind, the bodies of further pages are compressed before they are queued. Pages below the mark
+ * are queued as they are, and a compressed body is only inflated as its parser reads it.<BR><BR>
+ * The stored bytes waiting are also held to a budget: {@link #put(PageRecord)} waits for the parsers
+ * to make room, and the time spent waiting is recorded so the retriever and parser pools can be sized.
+ * @author Michael Morris
+ * @version 5/19/2013
+ *
+ */
+public class PageBuffer {
+
+	private static final String TAG = "PageBuffer";
+
+	/**
+	 * Internal enumeration used to depict which type of callback should
+	 * be used.
+	 */
+	private static enum PBCallbackType {
+		RETRIEVAL,
+		ADDITION,
+		PEEK
+	}
+
+	/**
+	 * The pages waiting to be parsed, oldest first.
+	 */
+	private final Queue<PageRecord> pages_pending;
+
+	/**
+	 * The lock guarding pages_pending, the condition waiting parsers park on until a page is added,
+	 * and the condition waiting retrievers park on until a page is taken.
+	 */
+	private final ReentrantLock pending_lock = new ReentrantLock();
+	private final Condition not_empty = pending_lock.newCondition();
+	private final Condition not_full = pending_lock.newCondition();
+
+	/**
+	 * The total stored body bytes of the pending pages; only changed under the lock, but read without it
+	 * to decide whether to compress.
+	 */
+	private volatile long queued_bytes;
+
+	/**
+	 * The queued bytes above which added pages are compressed.
+	 */
+	private final long compression_high_water;
+
+	/**
+	 * The queued bytes put(..) waits to stay within.
+	 */
+	private final long max_queued_bytes;
+
+	/**
+	 * The number of times put(..) had to wait for room, and the total time it waited.
+	 */
+	private long num_put_waits;
+	private long put_wait_nanos;
+
+	/**
+	 * The number of pages compressed, and the body bytes that saved.
+	 */
+	private long num_compressed;
+	private long compression_saved_bytes;
+
+	/**
+	 * The list of listeners which will be notified of changes and method calls.
+	 */
+	private final CopyOnWriteArrayList<PageBufferListener> listeners = new CopyOnWriteArrayList<PageBufferListener>();
+
+	/**
+	 * Construct an empty PageBuffer, compressing above the {@link UserPrefs#getCompressionHighWater()}
+	 * and limited to the {@link UserPrefs#getPageBufferBudget()}.
+	 */
+	public PageBuffer() {
+		this(UserPrefs.getUserPrefs().getCompressionHighWater(), UserPrefs.getUserPrefs().getPageBufferBudget());
+	}
+
+	/**
+	 * Construct an empty PageBuffer.
+	 * @param compression_high_water The queued bytes above which added pages are compressed.
+	 * @param max_queued_bytes The queued bytes {@link #put(PageRecord)} waits to stay within.
+	 */
+	public PageBuffer(final long compression_high_water, final long max_queued_bytes) {
+		if (compression_high_water < 0 || max_queued_bytes <= 0)
+			throw new IllegalArgumentException("must specify a high-water mark of at least 0 and a positive budget; compression_high_water["
+											   + compression_high_water + "], max_queued_bytes[" + max_queued_bytes + "]");
+		pages_pending = new ArrayDeque<PageRecord>();
+		queued_bytes = 0;
+		this.compression_high_water = compression_high_water;
+		this.max_queued_bytes = max_queued_bytes;
+	}
+
+	/**
+	 * (Thread-Safe) method of checking whether there are pending pages to parse.
+	 * @return True if there are pending pages, false otherwise.
+	 */
+	public boolean hasPending() {
+		PageRecord page = null;
+		pending_lock.lock();
+		try {
+			page = pages_pending.peek();
+		} finally {
+			pending_lock.unlock();
+		}
+		executeCallback(PBCallbackType.PEEK, page != null ? page.getUrl() : null, page != null);
+		return page != null;
+	}
+
+	/**
+	 * (Thread-Safe) method of retrieving a pending page, without waiting.
+	 * @return The next pending page, or null if none pending.
+	 */
+	public PageRecord getNextPending() {
+		PageRecord rtn = null;
+		pending_lock.lock();
+		try {
+			rtn = poll();
+		} finally {
+			pending_lock.unlock();
+		}
+		executeCallback(PBCallbackType.RETRIEVAL, rtn != null ? rtn.getUrl() : null, rtn != null);
+		return rtn;
+	}
+
+	/**
+	 * (Thread-Safe) method of retrieving a pending page, waiting up to the given time for one
+	 * to be added if none are pending. The waiting thread is parked and woken as soon as a page
+	 * is added, so there is no polling delay.
+	 * @param timeout_millis The maximum number of milliseconds to wait.
+	 * @return The next pending page, or null if none was added in time.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public PageRecord take(final long timeout_millis) throws InterruptedException {
+		PageRecord rtn = null;
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout_millis);
+		pending_lock.lockInterruptibly();
+		try {
+			while (pages_pending.isEmpty() && nanos > 0)
+				nanos = not_empty.awaitNanos(nanos);
+			rtn = poll();
+		} finally {
+			pending_lock.unlock();
+		}
+		executeCallback(PBCallbackType.RETRIEVAL, rtn != null ? rtn.getUrl() : null, rtn != null);
+		return rtn;
+	}
+
+	/**
+	 * (Thread-Safe) method of retrieving up to max pending pages at once, without waiting.
+	 * @param batch The collection the retrieved pages are added to.
+	 * @param max The maximum number of pages to retrieve.
+	 * @return The number of pages added to the batch.
+	 */
+	public int drainTo(final Collection<? super PageRecord> batch, final int max) {
+		final List<PageRecord> drained = drainPending(max);
+		batch.addAll(drained);
+		return drained.size();
+	}
+
+	/**
+	 * (Thread-Safe) method of retrieving up to max pending pages at once, without waiting. The
+	 * lock is taken once for the whole batch, and listeners are sent a single
+	 * {@link PageBufferListener#onPagesRetrieved(List)} callback.
+	 * @param max The maximum number of pages to retrieve.
+	 * @return The retrieved pages, oldest first (possibly empty).
+	 */
+	public List<PageRecord> drainPending(final int max) {
+		final List<PageRecord> drained = new ArrayList<PageRecord>(Math.max(0, Math.min(max, 64)));
+		pending_lock.lock();
+		try {
+			PageRecord page;
+			while (drained.size() < max && (page = poll()) != null)
+				drained.add(page);
+		} finally {
+			pending_lock.unlock();
+		}
+		if (!drained.isEmpty())
+			executeBatchCallback(PBCallbackType.RETRIEVAL, drained, drained.size());
+		return drained;
+	}
+
+	/**
+	 * (Thread-Safe) method for adding a page to the end of the queue, waiting while the queue is
+	 * over its byte budget. A page larger than the whole budget is added once the queue is empty.
+	 * The waiting thread is parked and woken as soon as a page is taken.
+	 * @param page The page to be added; must not be null or empty.
+	 * @throws InterruptedException If the thread is interrupted while waiting, in which case the page
+	 * is dropped and its body released.
+	 */
+	public void put(PageRecord page) throws InterruptedException {
+		if (page == null || page.getBodyLength() <= 0)
+			throw new IllegalArgumentException("must specify a page with a body; page[" + page + "]");
+
+		if (queued_bytes >= compression_high_water)
+			page = compress(page);
+		final long stored = page.getBody().storedLength();
+
+		try {
+			pending_lock.lockInterruptibly();
+		} catch (InterruptedException ie) {
+			page.getBody().release();
+			throw ie;
+		}
+		try {
+			if (!hasRoom(stored)) {
+				final long wait_start = System.nanoTime();
+				try {
+					while (!hasRoom(stored))
+						not_full.await();
+				} catch (InterruptedException ie) {
+					page.getBody().release();
+					throw ie;
+				} finally {
+					num_put_waits++;
+					put_wait_nanos += System.nanoTime() - wait_start;
+				}
+			}
+			offer(page);
+			not_empty.signal();
+		} finally {
+			pending_lock.unlock();
+		}
+		executeCallback(PBCallbackType.ADDITION, page.getUrl(), true);
+	}
+
+	/**
+	 * (Thread-Safe) method for adding a page to the end of the queue, without waiting; the
+	 * page is added even if the queue is over its byte budget.
+	 * @param page The page to be added. Note: null pages, and pages with empty bodies, will not be added.
+	 * @return True if the page was added, false otherwise.
+	 */
+	public boolean addPending(PageRecord page) {
+		boolean success = false;
+		if (page != null && page.getBodyLength() > 0) {
+			if (queued_bytes >= compression_high_water)
+				page = compress(page);
+			pending_lock.lock();
+			try {
+				offer(page);
+				not_empty.signal();
+				success = true;
+			} finally {
+				pending_lock.unlock();
+			}
+		}
+		executeCallback(PBCallbackType.ADDITION, page != null ? page.getUrl() : null, success);
+		return success;
+	}
+
+	/**
+	 * (Thread-Safe) method for adding many pages to the queue at once, without waiting; the pages
+	 * are added even if the queue is over its byte budget. Pages are dropped as
+	 * {@link #addPending(PageRecord)} would drop them. The lock is taken once for the whole batch,
+	 * and listeners are sent a single {@link PageBufferListener#onPagesAdded(List, int)} callback.
+	 * @param pages The pages to be added.
+	 * @return The number of pages added.
+	 */
+	public int addAllPending(final Collection<PageRecord> pages) {
+		if (pages == null || pages.isEmpty())
+			return 0;
+
+		// Compress outside the lock, counting the pages ahead of each toward the mark.
+		final List<PageRecord> added = new ArrayList<PageRecord>(pages.size());
+		long queued = queued_bytes;
+		for (PageRecord page : pages) {
+			if (page != null && page.getBodyLength() > 0) {
+				if (queued >= compression_high_water)
+					page = compress(page);
+				queued += page.getBody().storedLength();
+				added.add(page);
+			}
+		}
+
+		pending_lock.lock();
+		try {
+			for (PageRecord page : added)
+				offer(page);
+			if (added.size() == 1)
+				not_empty.signal();
+			else if (added.size() > 1)
+				not_empty.signalAll();
+		} finally {
+			pending_lock.unlock();
+		}
+
+		executeBatchCallback(PBCallbackType.ADDITION, added, pages.size());
+		return added.size();
+	}
+
+	/**
+	 * (Thread-Safe) Returns the number of pending pages within this buffer.
+	 * @return The number of pending pages.
+	 */
+	public int numPending() {
+		pending_lock.lock();
+		try {
+			return pages_pending.size();
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Returns the total stored body bytes of the pending pages within this buffer;
+	 * compressed pages count their compressed size.
+	 * @return The number of queued bytes.
+	 */
+	public long getQueuedBytes() {
+		pending_lock.lock();
+		try {
+			return queued_bytes;
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Returns the number of pages whose bodies have been compressed because the
+	 * buffer was above its high-water mark.
+	 * @return The number of compressed pages.
+	 */
+	public long getNumCompressed() {
+		pending_lock.lock();
+		try {
+			return num_compressed;
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Returns the body bytes saved by compressing pages.
+	 * @return The number of bytes saved.
+	 */
+	public long getCompressionSavedBytes() {
+		pending_lock.lock();
+		try {
+			return compression_saved_bytes;
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the queued bytes put(..) waits to stay within.
+	 * @return The budget in bytes.
+	 */
+	public long getMaxQueuedBytes() {
+		return max_queued_bytes;
+	}
+
+	/**
+	 * (Thread-Safe) Returns the number of times put(..) had to wait for the queue to drop below its budget.
+	 * @return The number of waits.
+	 */
+	public long getNumPutWaits() {
+		pending_lock.lock();
+		try {
+			return num_put_waits;
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Returns the total time put(..) callers have spent waiting for room. Time spent by
+	 * callers still waiting is not yet included.
+	 * @return The time waited in milliseconds.
+	 */
+	public long getPutWaitMillis() {
+		pending_lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(put_wait_nanos);
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+
+	/**
+	 * Check whether a page of the given stored size fits in the budget; the caller must hold the lock.
+	 */
+	private boolean hasRoom(final long stored) {
+		return pages_pending.isEmpty() || queued_bytes + stored <= max_queued_bytes;
+	}
+
+	/**
+	 * Compress a page's body, keeping the page as it is if the body cannot be compressed.
+	 */
+	private PageRecord compress(final PageRecord page) {
+		final PageBody body = page.getBody();
+		try {
+			final PageBody compressed = PageBody.compress(body, PageArena.getPageArena());
+			return compressed != body ? page.withBody(compressed) : page;
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "IOException thrown while attempting to compress a page; queueing it uncompressed.", "url = " + page.getUrl(), ioe.getMessage());
+			return page;
+		}
+	}
+
+	/**
+	 * Add a page; the caller must hold the lock.
+	 */
+	private void offer(final PageRecord page) {
+		final PageBody body = page.getBody();
+		pages_pending.add(page);
+		queued_bytes += body.storedLength();
+		if (body.isCompressed()) {
+			num_compressed++;
+			compression_saved_bytes += body.length() - body.storedLength();
+		}
+	}
+
+	/**
+	 * Take the oldest page; the caller must hold the lock.
+	 */
+	private PageRecord poll() {
+		final PageRecord page = pages_pending.poll();
+		if (page != null) {
+			queued_bytes -= page.getBody().storedLength();
+			not_full.signalAll();
+		}
+		return page;
+	}
+
+	/**
+	 * (Thread-Safe) Add the specified PageBufferListener to this PageBuffer,
+	 * which will be notified of method calls on the {@link EventBus}'s dispatcher thread.
+	 * @param listener The listener to add.
+	 */
+	public void addListener(final PageBufferListener listener) {
+		if (listener == null)
+			return;
+		// Locked so that the subscription always matches whether there are listeners.
+		synchronized (listeners) {
+			if (listeners.addIfAbsent(listener) && listeners.size() == 1)
+				EventBus.getEventBus().subscribe(this, subscriber);
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Remove the specified PageBufferListener from this PageBuffer.
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(final PageBufferListener listener) {
+		if (listener == null)
+			return;
+		synchronized (listeners) {
+			if (listeners.remove(listener) && listeners.isEmpty())
+				EventBus.getEventBus().unsubscribe(this);
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Remove ALL registered listeners from this PageBuffer.
+	 */
+	public void removeAllListeners() {
+		synchronized (listeners) {
+			listeners.clear();
+			EventBus.getEventBus().unsubscribe(this);
+		}
+	}
+
+	/**
+	 * Publish the desired callback with the given values, to be delivered to the listeners
+	 * on the {@link EventBus}'s dispatcher thread.
+	 * @param type The type of callback to initiate.
+	 * @param url The url of the page to send with the callback.
+	 * @param success A success value to send with the callback.
+	 */
+	private void executeCallback(final PBCallbackType type, final String url, final boolean success) {
+
+		// Don't bother if there is no one listening.
+		if (listeners.isEmpty())
+			return;
+
+		EventBus.getEventBus().publish(new PageEvent(type, url, success, null, 0));
+	}
+
+	/**
+	 * Publish the desired callback for a batch of pages, to be delivered to the listeners
+	 * on the {@link EventBus}'s dispatcher thread.
+	 * @param type The type of callback to initiate; RETRIEVAL or ADDITION.
+	 * @param pages The pages retrieved or added.
+	 * @param attempted The number of pages that were attempted.
+	 */
+	private void executeBatchCallback(final PBCallbackType type, final List<PageRecord> pages, final int attempted) {
+
+		// Don't bother if there is no one listening.
+		if (listeners.isEmpty())
+			return;
+
+		final List<String> urls = new ArrayList<String>(pages.size());
+		for (PageRecord page : pages)
+			urls.add(page.getUrl());
+		EventBus.getEventBus().publish(new PageEvent(type, null, true, Collections.unmodifiableList(urls), attempted));
+	}
+
+	/**
+	 * Delivers this buffer's events to its listeners, on the EventBus's dispatcher thread.
+	 */
+	private final EventBus.Subscriber subscriber = new EventBus.Subscriber() {
+		@Override
+		public void onEvents(final List<EventBus.Event> events) {
+			for (EventBus.Event event : events)
+				((PageEvent)event).deliver();
+		}
+	};
+
+	/**
+	 * A callback waiting to be delivered to this buffer's listeners.
+	 */
+	private final class PageEvent extends EventBus.Event {
+		private final PBCallbackType type;
+		private final String url;
+		private final boolean success;
+		private final List<String> urls;
+		private final int attempted;
+
+		PageEvent(final PBCallbackType type, final String url, final boolean success, final List<String> urls, final int attempted) {
+			super(PageBuffer.this);
+			this.type = type;
+			this.url = url;
+			this.success = success;
+			this.urls = urls;
+			this.attempted = attempted;
+		}
+
+		void deliver() {
+			for (PageBufferListener pbl : listeners) {
+				switch (type) {
+					case RETRIEVAL:
+						if (urls != null)
+							pbl.onPagesRetrieved(urls);
+						else
+							pbl.onPageRetrieved(url, success);
+						break;
+					case ADDITION:
+						if (urls != null)
+							pbl.onPagesAdded(urls, attempted);
+						else
+							pbl.onPageAddition(url, success);
+						break;
+					case PEEK:
+						pbl.onPagePeek(success, url);
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The PageBufferListener is a very simple listener object which will be called
+	 * for each of the thread-safe methods within the PageBuffer.<BR><BR>
+	 * Main purpose is for debugging and gui component updates.
+	 * @author Michael Morris
+	 * @version 5/17/2013
+	 *
+	 */
+	public static class PageBufferListener {
+
+		/**
+		 * Called when an attempt is made to retrieve a pending page from the buffer.
+		 * @param url The url of the page retrieved, or null if there was none.
+		 * @param success True if a page was retrieved.
+		 */
+		public void onPageRetrieved(final String url, final boolean success) { }
+
+		/**
+		 * Called when an attempt is made to add a page to the buffer.
+		 * @param url The url of the page, or null if the page was null.
+		 * @param success True if the page was added.
+		 */
+		public void onPageAddition(final String url, final boolean success) { }
+
+		/**
+		 * Called when a call to hasPending(..) method is executed.
+		 * @param result The value that was returned by the method.
+		 * @param url The url of the next page, or null if the buffer was empty.
+		 */
+		public void onPagePeek(final boolean result, final String url) { }
+
+		/**
+		 * Called once for a batch of pages retrieved by drainPending(..) or drainTo(..),
+		 * instead of onPageRetrieved for each. By default calls onPageRetrieved for every page.
+		 * @param urls The urls of the pages that were retrieved.
+		 */
+		public void onPagesRetrieved(final List<String> urls) {
+			for (String url : urls)
+				onPageRetrieved(url, true);
+		}
+
+		/**
+		 * Called once for a batch of pages added by addAllPending(..), instead of onPageAddition
+		 * for each. By default calls onPageAddition for every added page.
+		 * @param urls The urls of the pages that were added; dropped pages are not included.
+		 * @param attempted The number of pages in the batch, including those dropped.
+		 */
+		public void onPagesAdded(final List<String> urls, final int attempted) {
+			for (String url : urls)
+				onPageAddition(url, true);
+		}
+
+	}
+
+}
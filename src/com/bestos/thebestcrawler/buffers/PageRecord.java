@@ -0,0 +1,148 @@
+// PageRecord.java
+// PageRecord
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A PageRecord is a single retrieved page waiting to be parsed: its url, response headers,
+ * raw (undecoded) body and fetch timings. PageRecords are immutable once built; the body is a
+ * {@link PageBody} handle whose reference belongs to whoever takes the record from the page buffer.
+ * @author Michael Morris
+ * @version 5/17/2013
+ *
+ */
+public final class PageRecord {
+
+	private final String url;
+
+	private final Map<String, List<String>> headers;
+
+	private final PageBody body;
+
+	private final long fetch_start_millis;
+
+	private final long fetch_end_millis;
+
+	/**
+	 * Construct a PageRecord.
+	 * @param url The url the page was retrieved from.
+	 * @param headers The response headers, e.g. from {@link java.net.URLConnection#getHeaderFields()};
+	 * copied, with names compared case-insensitively. Entries with a null name (the status line) are dropped. May be null.
+	 * @param body The raw response body; the record takes over the caller's reference.
+	 * @param fetch_start_millis The time the fetch started, from {@link System#currentTimeMillis()}.
+	 * @param fetch_end_millis The time the fetch finished, from {@link System#currentTimeMillis()}.
+	 */
+	public PageRecord(final String url, final Map<String, List<String>> headers, final PageBody body,
+					  final long fetch_start_millis, final long fetch_end_millis) {
+		if (url == null || url.isEmpty() || body == null)
+			throw new IllegalArgumentException("must specify a url and body; url[" + url + "], body[" + body + "]");
+
+		final Map<String, List<String>> copy = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+		if (headers != null)
+			for (Map.Entry<String, List<String>> header : headers.entrySet())
+				if (header.getKey() != null && header.getValue() != null)
+					copy.put(header.getKey(), Collections.unmodifiableList(header.getValue()));
+
+		this.url = url;
+		this.headers = Collections.unmodifiableMap(copy);
+		this.body = body;
+		this.fetch_start_millis = fetch_start_millis;
+		this.fetch_end_millis = fetch_end_millis;
+	}
+
+	private PageRecord(final PageRecord record, final PageBody body) {
+		this.url = record.url;
+		this.headers = record.headers;
+		this.body = body;
+		this.fetch_start_millis = record.fetch_start_millis;
+		this.fetch_end_millis = record.fetch_end_millis;
+	}
+
+	/**
+	 * Copy this record with another body holding the same bytes, e.g. once compressed.
+	 * @param body The new body; the copy takes over the caller's reference.
+	 * @return The copy.
+	 */
+	PageRecord withBody(final PageBody body) {
+		return new PageRecord(this, body);
+	}
+
+	/**
+	 * Get the url the page was retrieved from.
+	 * @return The url.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Get the response headers, keyed case-insensitively.
+	 * @return An unmodifiable map of header names to values.
+	 */
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Get the first value of a response header.
+	 * @param name The header name, case-insensitive.
+	 * @return The value, or null if the header was not sent.
+	 */
+	public String getHeader(final String name) {
+		final List<String> values = headers.get(name);
+		return values != null && !values.isEmpty() ? values.get(0) : null;
+	}
+
+	/**
+	 * Get the raw response body. It must be released by whoever took this record from the page buffer.
+	 * @return The body.
+	 */
+	public PageBody getBody() {
+		return body;
+	}
+
+	/**
+	 * Get the length of the body in bytes.
+	 * @return The body length.
+	 */
+	public int getBodyLength() {
+		return body.length();
+	}
+
+	/**
+	 * Get the time the fetch started.
+	 * @return The time in milliseconds, from {@link System#currentTimeMillis()}.
+	 */
+	public long getFetchStartMillis() {
+		return fetch_start_millis;
+	}
+
+	/**
+	 * Get the time the fetch finished.
+	 * @return The time in milliseconds, from {@link System#currentTimeMillis()}.
+	 */
+	public long getFetchEndMillis() {
+		return fetch_end_millis;
+	}
+
+	/**
+	 * Get the time the fetch took.
+	 * @return The fetch time in milliseconds.
+	 */
+	public long getFetchMillis() {
+		return fetch_end_millis - fetch_start_millis;
+	}
+
+	@Override
+	public String toString() {
+		return "PageRecord[url=" + url + ", bytes=" + body.length() + ", fetch_millis=" + getFetchMillis() + "]";
+	}
+
+}
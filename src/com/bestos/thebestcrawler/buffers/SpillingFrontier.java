@@ -0,0 +1,293 @@
+// SpillingFrontier.java
+// SpillingFrontier
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import com.bestos.thebestcrawler.UserPrefs;
+
+/**
+ * The SpillingFrontier is a FIFO frontier whose heap use stays flat no matter how many
+ * urls are pending.<BR><BR>
+ * Only a small hot head of the oldest urls is kept in memory. Once the head is full, newer
+ * urls are appended to segment files on disk. When the head runs dry the oldest segment is
+ * memory-mapped and read back in to the head, and the segment file is deleted as soon as
+ * every url in it has been read. A segment whose mapping cannot be deleted yet (Windows refuses
+ * until the mapping is collected) is retried each time a segment is finished, and any segments
+ * left when the JVM exits are deleted along with the directory.
+ * @author Michael Morris
+ * @version 5/29/2013
+ *
+ */
+public class SpillingFrontier implements Frontier {
+
+	private static final String TAG = "SpillingFrontier";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Segments are sealed (and become readable) once they reach this size. **/
+	private static final long MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	/**
+	 * A segment file of length-prefixed utf-8 urls.
+	 */
+	private static final class Segment {
+		final File file;
+		int count;
+		long bytes;
+
+		Segment(final File file) {
+			this.file = file;
+		}
+	}
+
+	private final File directory;
+
+	private final int hot_capacity;
+
+	/** The oldest pending urls. **/
+	private final Queue<String> head;
+
+	/** Sealed segments, oldest first, waiting to be read back. **/
+	private final Queue<Segment> sealed;
+
+	/** The segment currently being appended to, and its output stream. **/
+	private Segment writing;
+	private DataOutputStream writer;
+
+	/** The segment currently being read back, its mapping, and the urls left in it. **/
+	private Segment reading;
+	private MappedByteBuffer reader;
+	private int reading_left;
+
+	/** Consumed segments whose delete failed, to retry once their mapping has been collected. **/
+	private final Queue<File> undeleted;
+
+	private int next_segment_id;
+
+	private int size;
+
+	/**
+	 * Construct an empty SpillingFrontier.
+	 * @param directory The directory to write segment files to; created if missing. Null to use a
+	 * new directory in the system temporary directory.
+	 * @param hot_capacity The maximum number of urls kept in memory.
+	 */
+	public SpillingFrontier(final File directory, final int hot_capacity) {
+		if (hot_capacity <= 0)
+			throw new IllegalArgumentException("hot capacity must be positive; hot_capacity[" + hot_capacity + "]");
+
+		this.directory = directory != null ? directory
+				: new File(System.getProperty("java.io.tmpdir"), "thebestcrawler-frontier-" + System.nanoTime());
+		if (!this.directory.isDirectory() && !this.directory.mkdirs())
+			throw new IllegalArgumentException("could not create spill directory[" + this.directory + "]");
+		// One hook for the whole directory, rather than a deleteOnExit() per segment, which is never forgotten.
+		this.directory.deleteOnExit();
+		final File spill_directory = this.directory;
+		Runtime.getRuntime().addShutdownHook(new Thread(TAG + "-cleanup") {
+			@Override
+			public void run() {
+				deleteSegments(spill_directory);
+			}
+		});
+
+		this.hot_capacity = hot_capacity;
+		head = new ArrayDeque<String>();
+		sealed = new ArrayDeque<Segment>();
+		undeleted = new ArrayDeque<File>();
+		next_segment_id = 0;
+		size = 0;
+	}
+
+	@Override
+	public boolean offer(final String url, final double score) {
+
+		// Urls may only go straight to the head while nothing older is waiting on disk.
+		if (!hasSpilled() && head.size() < hot_capacity) {
+			head.add(url);
+			size++;
+			return true;
+		}
+
+		try {
+			append(url);
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "IOException thrown while attempting to spill url to disk; url dropped.", "url = " + url, ioe.getMessage());
+			return false;
+		}
+		size++;
+		return true;
+	}
+
+	@Override
+	public String poll() {
+		if (head.isEmpty() && hasSpilled())
+			refill();
+		final String rtn = head.poll();
+		if (rtn != null)
+			size--;
+		return rtn;
+	}
+
+	@Override
+	public String peek() {
+		if (head.isEmpty() && hasSpilled())
+			refill();
+		return head.peek();
+	}
+
+	@Override
+	public long getNanosUntilReady() {
+		return size == 0 ? Long.MAX_VALUE : 0L;
+	}
+
+	@Override
+	public void setHostDelay(final String url, final long delay_millis) {
+		// Hosts are not scheduled separately.
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of urls currently held on disk rather than in memory.
+	 * @return The number of spilled urls.
+	 */
+	public int numSpilled() {
+		return size - head.size();
+	}
+
+	private boolean hasSpilled() {
+		return reading_left > 0 || !sealed.isEmpty() || (writing != null && writing.count > 0);
+	}
+
+	private void append(final String url) throws IOException {
+		if (writing == null) {
+			writing = new Segment(new File(directory, SEGMENT_PREFIX + (next_segment_id++) + SEGMENT_SUFFIX));
+			writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(writing.file), 64 * 1024));
+		}
+
+		final byte[] bytes = url.getBytes(UTF8);
+		writer.writeInt(bytes.length);
+		writer.write(bytes);
+		writing.count++;
+		writing.bytes += 4 + bytes.length;
+
+		if (writing.bytes >= MAX_SEGMENT_BYTES)
+			seal();
+	}
+
+	/**
+	 * Close the segment being written so that it can be read back.
+	 */
+	private void seal() throws IOException {
+		if (writing == null)
+			return;
+		writer.close();
+		sealed.add(writing);
+		writing = null;
+		writer = null;
+	}
+
+	/**
+	 * Fill the (empty) head with the oldest spilled urls.
+	 */
+	private void refill() {
+		while (head.size() < hot_capacity) {
+
+			if (reading_left == 0 && !openNextSegment())
+				return;
+
+			final byte[] bytes = new byte[reader.getInt()];
+			reader.get(bytes);
+			head.add(new String(bytes, UTF8));
+
+			if (--reading_left == 0)
+				finishSegment();
+		}
+	}
+
+	/**
+	 * Map the oldest sealed segment for reading, sealing the current write segment first if it is the only one.
+	 * @return True if a segment was opened, false if there is nothing on disk.
+	 */
+	private boolean openNextSegment() {
+		Segment next = null;
+		try {
+			if (sealed.isEmpty() && writing != null && writing.count > 0)
+				seal();
+			next = sealed.poll();
+			if (next == null)
+				return false;
+
+			final RandomAccessFile file = new RandomAccessFile(next.file, "r");
+			try {
+				reader = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, next.bytes);
+			} finally {
+				// The mapping stays valid after the channel is closed.
+				file.close();
+			}
+			reading = next;
+			reading_left = next.count;
+			return true;
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "IOException thrown while attempting to read a spilled segment; its urls are lost.", ioe.getMessage());
+			if (next != null)
+				size -= next.count;
+			return false;
+		}
+	}
+
+	private void finishSegment() {
+		// Drop the mapping first; the file can only be deleted on Windows once the mapping is collected.
+		reader = null;
+		undeleted.add(reading.file);
+		reading = null;
+		deleteUndeleted();
+	}
+
+	/**
+	 * Delete the consumed segments, keeping those which still cannot be deleted for the next try.
+	 */
+	private void deleteUndeleted() {
+		for (int i = undeleted.size(); i > 0; i--) {
+			final File file = undeleted.poll();
+			if (!file.delete() && file.exists()) {
+				UserPrefs.debugTxt(TAG, "could not delete consumed segment[" + file + "] yet; will retry");
+				undeleted.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Delete every segment file in a spill directory.
+	 * @param directory The spill directory.
+	 */
+	private static void deleteSegments(final File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX))
+				file.delete();
+	}
+
+}
@@ -6,11 +6,18 @@
 package com.bestos.thebestcrawler.buffers;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.utils.EventBus;
+import com.bestos.thebestcrawler.utils.FingerprintUtil;
+import com.bestos.thebestcrawler.utils.UrlCanonicalizer;
 
 /**
  * The StringQueue is a thread-safe storage queue for
@@ -35,21 +42,120 @@ public class StringQueue {
 	}
 	
 	/**
-	 * The queue used for pending strings.
+	 * The score given to strings added without one.
 	 */
-	private Queue<String> strings_pending = null;
+	public static final double DEFAULT_SCORE = 0.0;
+	
+	/**
+	 * The frontier used for pending strings, which decides the order they are retrieved in.
+	 */
+	private Frontier strings_pending = null;
+	
+	/**
+	 * The lock guarding strings_pending, and the condition waiting retrievers park on
+	 * until a string is added.
+	 */
+	private final ReentrantLock pending_lock = new ReentrantLock();
+	private final Condition not_empty = pending_lock.newCondition();
+	
+	/**
+	 * Every string ever accepted by this queue, kept for the life of the queue so that
+	 * already retrieved strings are not queued again.
+	 */
+	private UrlSeenFilter strings_seen = null;
+	
+	/**
+	 * Rewrites added strings to their canonical spelling before they are checked against
+	 * strings_seen, or null to add strings as they are.
+	 */
+	private final UrlCanonicalizer canonicalizer;
 	
 	/**
 	 * The list of listeners which will be notified of changes and method calls.
 	 */
-	private List<StringQueueListener> listeners = null;
+	private final CopyOnWriteArrayList<StringQueueListener> listeners = new CopyOnWriteArrayList<StringQueueListener>();
 	
 	/**
-	 * Construct a StringQueue.
+	 * The journal every accepted and done string is recorded in, or null if none.
+	 */
+	private volatile FrontierJournal journal = null;
+	
+	/**
+	 * Construct a StringQueue, which remembers seen strings using the {@link UserPrefs#getDedupMode()}
+	 * and orders pending strings using the {@link UserPrefs#getFrontierMode()}.
 	 */
 	public StringQueue() {	
-		strings_pending = new ConcurrentLinkedQueue<String>();
-		listeners = new ArrayList<StringQueueListener>();
+		this(createSeenFilter(), createFrontier());
+	}
+	
+	/**
+	 * Construct a StringQueue which remembers seen strings using the given filter, and canonicalizes
+	 * added strings as described by {@link UserPrefs#isCanonicalizeUrls()}.
+	 * @param seen_filter The filter used to drop strings that have already been added.
+	 * @param frontier The frontier used to store and order pending strings.
+	 */
+	public StringQueue(final UrlSeenFilter seen_filter, final Frontier frontier) {
+		this(seen_filter, frontier, createCanonicalizer());
+	}
+	
+	/**
+	 * Construct a StringQueue which remembers seen strings using the given filter.
+	 * @param seen_filter The filter used to drop strings that have already been added.
+	 * @param frontier The frontier used to store and order pending strings.
+	 * @param canonicalizer Rewrites added strings to their canonical spelling, or null to add them as they are.
+	 */
+	public StringQueue(final UrlSeenFilter seen_filter, final Frontier frontier, final UrlCanonicalizer canonicalizer) {
+		if (seen_filter == null || frontier == null)
+			throw new IllegalArgumentException("must specify a seen filter and frontier; seen[" + seen_filter + "], frontier[" + frontier + "]");
+		
+		strings_pending = frontier;
+		strings_seen = seen_filter;
+		this.canonicalizer = canonicalizer;
+	}
+	
+	/**
+	 * Create the url canonicalizer described by the current user preferences.
+	 * @return A new UrlCanonicalizer, or null if urls are not canonicalized.
+	 */
+	private static UrlCanonicalizer createCanonicalizer() {
+		final UserPrefs prefs = UserPrefs.getUserPrefs();
+		if (!prefs.isCanonicalizeUrls())
+			return null;
+		return new UrlCanonicalizer(prefs.getStrippedQueryParams(), prefs.isStripIndexPages());
+	}
+	
+	/**
+	 * Create the seen filter described by the current user preferences.
+	 * @return A new UrlSeenFilter.
+	 */
+	private static UrlSeenFilter createSeenFilter() {
+		final UserPrefs prefs = UserPrefs.getUserPrefs();
+		switch (prefs.getDedupMode()) {
+			case BLOOM:
+				return new TieredUrlFilter(prefs.getDedupExpectedUrls(), prefs.getDedupFalsePositiveRate(), prefs.getDedupMemoryBudget());
+			case EXACT:
+			default:
+				return new UrlSeenSet();
+		}
+	}
+	
+	/**
+	 * Create the frontier described by the current user preferences.
+	 * @return A new Frontier.
+	 */
+	private static Frontier createFrontier() {
+		final UserPrefs prefs = UserPrefs.getUserPrefs();
+		switch (prefs.getFrontierMode()) {
+			case FIFO:
+				return new FifoFrontier();
+			case BEST_FIRST:
+				return new BestFirstFrontier(prefs.getFrontierCapacity(), prefs.getSpillDirectory());
+			case SPILLING:
+				return new SpillingFrontier(prefs.getSpillDirectory(), prefs.getFrontierHotSize());
+			case POLITE:
+			default:
+				return new HostPartitionedFrontier(prefs.getPolitenessDelay());
+		}
 	}
 	
 	/**
@@ -60,9 +166,12 @@ public class StringQueue {
 	public boolean hasPending() {
 		boolean rtn = false;
 		String str = null;
-		synchronized (strings_pending) {
+		pending_lock.lock();
+		try {
 			str = strings_pending.peek();
 			rtn = str != null;
+		} finally {
+			pending_lock.unlock();
 		}
 		executeCallback(SQCallbackType.PEEK, str, rtn);
 		return rtn;
@@ -71,44 +180,273 @@ public class StringQueue {
 	/**
 	 * (Thread-Safe) method of retrieving a pending string. NOTE: This method
 	 * blocks if there is ANY method currently being executed on the internal queue.
-	 * @return The next pending {@link String} object, or null if none pending.
+	 * @return The next pending {@link String} object, or null if none pending (or none
+	 * which may be retrieved yet, as decided by the frontier).
 	 */
 	public String getNextPending() {
 		String rtn = null;
-		synchronized (strings_pending) {
+		pending_lock.lock();
+		try {
 			rtn = strings_pending.poll();
+		} finally {
+			pending_lock.unlock();
+		}
+		executeCallback(SQCallbackType.RETRIEVAL, rtn, (rtn!=null) );
+		return rtn;
+	}
+	
+	/**
+	 * (Thread-Safe) method of retrieving a pending string, waiting up to the given time for one
+	 * to be added (or become ready) if none are pending. The waiting thread is parked and woken as soon
+	 * as a string is added or the frontier's next string becomes ready, so there is no polling delay.
+	 * @param timeout_millis The maximum number of milliseconds to wait.
+	 * @return The next pending {@link String} object, or null if none was added in time.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public String take(final long timeout_millis) throws InterruptedException {
+		String rtn = null;
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout_millis);
+		pending_lock.lockInterruptibly();
+		try {
+			while ((rtn = strings_pending.poll()) == null && nanos > 0) {
+				final long wait = Math.min(nanos, strings_pending.getNanosUntilReady());
+				nanos -= wait - not_empty.awaitNanos(wait);
+			}
+		} finally {
+			pending_lock.unlock();
 		}
 		executeCallback(SQCallbackType.RETRIEVAL, rtn, (rtn!=null) );
 		return rtn;
 	}
 	
+	/**
+	 * (Thread-Safe) method of retrieving up to max pending strings at once, without waiting.
+	 * @param batch The collection the retrieved strings are added to.
+	 * @param max The maximum number of strings to retrieve.
+	 * @return The number of strings added to the batch.
+	 */
+	public int drainTo(final Collection<? super String> batch, final int max) {
+		final List<String> drained = drainPending(max);
+		batch.addAll(drained);
+		return drained.size();
+	}
+	
+	/**
+	 * (Thread-Safe) method of retrieving up to max pending strings at once, without waiting. The
+	 * lock is taken once for the whole batch, and listeners are sent a single
+	 * {@link StringQueueListener#onStringsRetrieved(List)} callback.
+	 * @param max The maximum number of strings to retrieve.
+	 * @return The retrieved strings, in the order they were handed out (possibly empty).
+	 */
+	public List<String> drainPending(final int max) {
+		final List<String> drained = new ArrayList<String>(Math.max(0, Math.min(max, 64)));
+		pending_lock.lock();
+		try {
+			String str;
+			while (drained.size() < max && (str = strings_pending.poll()) != null)
+				drained.add(str);
+		} finally {
+			pending_lock.unlock();
+		}
+		if (!drained.isEmpty())
+			executeBatchCallback(SQCallbackType.RETRIEVAL, drained, drained.size());
+		return drained;
+	}
+	
 	/**
 	 * (Thread-Safe) method for adding a {@link String} object to the end of the queue. NOTE: This method
 	 * blocks if there is ANY method currently being executed on the internal queue.
-	 * @param pending_str The String to be added. Note: null or empty values will
-	 * not be added.
+	 * @param pending_str The String to be added. Note: null or empty values, and values
+	 * that have ever been added before, will not be added.
 	 */
 	public void addPending(final String pending_str) {
+		addPending(pending_str, DEFAULT_SCORE);
+	}
+	
+	/**
+	 * (Thread-Safe) method for adding a {@link String} object to the queue with a score. A
+	 * best-first frontier hands out higher scoring strings first; other frontiers ignore the score.
+	 * @param str The String to be added. Note: null or empty values, and values
+	 * that have ever been added before (in any spelling with the same canonical form), will not be added.
+	 * @param score How promising the string is; higher is better.
+	 */
+	public void addPending(final String str, final double score) {
+		final String pending_str = canonicalizer != null ? canonicalizer.canonicalize(str) : str;
 		boolean success = false;
-		if (pending_str != null && !pending_str.isEmpty() && !strings_pending.contains(pending_str)) {
-			synchronized (strings_pending) {
-				strings_pending.add(pending_str);
+		if (pending_str != null && !pending_str.isEmpty() && strings_seen.add(FingerprintUtil.fingerprint(pending_str))) {
+			pending_lock.lock();
+			try {
+				success = strings_pending.offer(pending_str, score);
+				if (success)
+					not_empty.signal();
+				final FrontierJournal jrnl = journal;
+				if (jrnl != null)
+					jrnl.recordAdded(pending_str, score);
+			} finally {
+				pending_lock.unlock();
 			}
-			success = true;
 		}
 		executeCallback(SQCallbackType.ADDITION, pending_str, success);
 	}
 	
+	/**
+	 * (Thread-Safe) method for adding many {@link String} objects to the queue at once, with the default score.
+	 * @param strs The Strings to be added.
+	 * @return The number of strings added.
+	 * @see #addAllPending(List, double[])
+	 */
+	public int addAllPending(final Collection<String> strs) {
+		return addPendingBatch(strs, null).size();
+	}
+	
+	/**
+	 * (Thread-Safe) method for adding many {@link String} objects to the queue at once, e.g. every
+	 * link found on a page. Strings are dropped as {@link #addPending(String, double)} would drop them,
+	 * including repeats within the batch. The lock is taken once for the whole batch, and listeners are
+	 * sent a single {@link StringQueueListener#onStringsAdded(List, int)} callback.
+	 * @param strs The Strings to be added.
+	 * @param scores The score of each string, in the same order, or null for the default score.
+	 * @return The number of strings added.
+	 */
+	public int addAllPending(final List<String> strs, final double[] scores) {
+		return addAllPending(strs, scores, null);
+	}
+	
+	/**
+	 * (Thread-Safe) method for adding many {@link String} objects to the queue at once, as
+	 * {@link #addAllPending(List, double[])} does, also collecting the strings which were added.
+	 * @param strs The Strings to be added.
+	 * @param scores The score of each string, in the same order, or null for the default score.
+	 * @param added_strs Given the canonical spelling of each string added; null if not wanted.
+	 * @return The number of strings added.
+	 */
+	public int addAllPending(final List<String> strs, final double[] scores, final Collection<String> added_strs) {
+		if (strs != null && scores != null && scores.length < strs.size())
+			throw new IllegalArgumentException("must specify a score for every string; strs[" + strs.size() + "], scores[" + scores.length + "]");
+		final List<String> added = addPendingBatch(strs, scores);
+		if (added_strs != null)
+			added_strs.addAll(added);
+		return added.size();
+	}
+	
+	private List<String> addPendingBatch(final Collection<String> strs, final double[] scores) {
+		if (strs == null || strs.isEmpty())
+			return Collections.emptyList();
+		
+		// Drop seen strings before taking the lock. The seen filter also drops repeats within the batch,
+		// since the first of them has already been added to it.
+		final List<String> accepted = new ArrayList<String>(strs.size());
+		final double[] accepted_scores = new double[strs.size()];
+		int index = 0;
+		for (String str : strs) {
+			final String pending_str = canonicalizer != null ? canonicalizer.canonicalize(str) : str;
+			if (pending_str != null && !pending_str.isEmpty() && strings_seen.add(FingerprintUtil.fingerprint(pending_str))) {
+				accepted_scores[accepted.size()] = scores != null ? scores[index] : DEFAULT_SCORE;
+				accepted.add(pending_str);
+			}
+			index++;
+		}
+		
+		final List<String> added = new ArrayList<String>(accepted.size());
+		if (!accepted.isEmpty()) {
+			final FrontierJournal jrnl = journal;
+			pending_lock.lock();
+			try {
+				for (int i = 0; i < accepted.size(); i++) {
+					final String pending_str = accepted.get(i);
+					if (strings_pending.offer(pending_str, accepted_scores[i]))
+						added.add(pending_str);
+					if (jrnl != null)
+						jrnl.recordAdded(pending_str, accepted_scores[i]);
+				}
+				if (added.size() == 1)
+					not_empty.signal();
+				else if (added.size() > 1)
+					not_empty.signalAll();
+			} finally {
+				pending_lock.unlock();
+			}
+		}
+		
+		executeBatchCallback(SQCallbackType.ADDITION, added, strs.size());
+		return added;
+	}
+	
+	/**
+	 * (Thread-Safe) Mark a string as seen without queueing it, so that it will never be added.
+	 * Used when rebuilding a queue from a {@link FrontierJournal}.
+	 * @param str The string.
+	 */
+	public void markSeen(final String str) {
+		final String seen_str = canonicalizer != null ? canonicalizer.canonicalize(str) : str;
+		if (seen_str != null && !seen_str.isEmpty())
+			strings_seen.add(FingerprintUtil.fingerprint(seen_str));
+	}
+	
+	/**
+	 * (Thread-Safe) Mark a seen string by its fingerprint, as {@link #markSeen(String)} does.
+	 * @param fingerprint The fingerprint of the string's canonical spelling.
+	 */
+	void markSeen(final long fingerprint) {
+		strings_seen.add(fingerprint);
+	}
+	
+	/**
+	 * (Thread-Safe) Mark a string handed out by this queue as done with: its page has been parsed,
+	 * or the attempt to retrieve it given up. Strings handed out but never marked done are queued
+	 * again when the queue is rebuilt from its {@link FrontierJournal}.
+	 * @param str The string, as handed out.
+	 */
+	public void markDone(final String str) {
+		final FrontierJournal jrnl = journal;
+		if (str != null && jrnl != null)
+			jrnl.recordDone(str);
+	}
+	
+	/**
+	 * (Thread-Safe) Start (or stop) recording every string accepted and done with by this queue in
+	 * the given journal. Strings accepted before the journal was set are not recorded.
+	 * @param journal The journal, or null to stop recording.
+	 */
+	public void setJournal(final FrontierJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Get the journal this queue records its strings in.
+	 * @return The journal, or null if none.
+	 */
+	public FrontierJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * (Thread-Safe) Tell the frontier the minimum delay between retrievals from the host of the
+	 * given string, e.g. the Crawl-delay from the host's robots.txt.
+	 * @param url Any url of the host.
+	 * @param delay_millis The delay in milliseconds.
+	 */
+	public void setHostDelay(final String url, final long delay_millis) {
+		pending_lock.lock();
+		try {
+			strings_pending.setHostDelay(url, delay_millis);
+		} finally {
+			pending_lock.unlock();
+		}
+	}
+	
 	/**
 	 * (Thread-Safe) Add the specified StringQueueListener to this StringQueue,
-	 * which will be notified of method calls.
+	 * which will be notified of method calls on the {@link EventBus}'s dispatcher thread.
 	 * @param listener The listener to add.
 	 */
 	public void addListener(final StringQueueListener listener) {
-		if (!listeners.contains(listener)) {
-			synchronized (listeners) {
-				listeners.add(listener);
-			}
+		if (listener == null)
+			return;
+		// Locked so that the subscription always matches whether there are listeners.
+		synchronized (listeners) {
+			if (listeners.addIfAbsent(listener) && listeners.size() == 1)
+				EventBus.getEventBus().subscribe(this, subscriber);
 		}
 	}
 	
@@ -117,10 +455,11 @@ public class StringQueue {
 	 * @param listener The listener to remove.
 	 */
 	public void removeListener(final StringQueueListener listener) {
-		if (listener != null) {
-			synchronized (listeners) {
-				listeners.remove(listener);
-			}
+		if (listener == null)
+			return;
+		synchronized (listeners) {
+			if (listeners.remove(listener) && listeners.isEmpty())
+				EventBus.getEventBus().unsubscribe(this);
 		}
 	}
 	
@@ -130,25 +469,60 @@ public class StringQueue {
 	public void removeAllListeners() {
 		synchronized (listeners) {
 			listeners.clear();
+			EventBus.getEventBus().unsubscribe(this);
 		}
 	}
 	
 	/**
-	 * (Thread-Safe) Returns the number of pending strings within this queue.<BR>
-	 * <strong><em>NOTE: StringQueue uses an internal queue that requires a sequential
-	 * run through the entire linked list to calculate the size, this method WILL block for all
-	 * but the accessor, however this method may be VERY expensive for long queues. Use with
-	 * caution.</em></strong>
+	 * (Thread-Safe) Returns the number of pending strings within this queue.
 	 * @return The number of pending strings within the queue.
 	 */
 	public int numPending() {
-		synchronized (strings_pending) {
+		pending_lock.lock();
+		try {
 			return strings_pending.size();
+		} finally {
+			pending_lock.unlock();
 		}
 	}
 	
 	/**
-	 * Execute the desired callback with the given values, on a separate thread.
+	 * (Thread-Safe) Returns the number of distinct strings ever accepted by this queue, whether
+	 * still pending or already retrieved.
+	 * @return The number of strings seen by the queue.
+	 */
+	public long numSeen() {
+		return strings_seen.size();
+	}
+	
+	/**
+	 * Get the frontier this queue stores pending strings in, e.g. to read its statistics.
+	 * <strong>NOTE: Frontiers are not thread-safe; do not modify it directly.</strong>
+	 * @return The frontier.
+	 */
+	public Frontier getFrontier() {
+		return strings_pending;
+	}
+	
+	/**
+	 * Get the canonicalizer this queue rewrites added strings with.
+	 * @return The canonicalizer, or null if strings are added as they are.
+	 */
+	public UrlCanonicalizer getCanonicalizer() {
+		return canonicalizer;
+	}
+	
+	/**
+	 * Get the filter this queue uses to drop strings that have already been added.
+	 * @return The seen filter.
+	 */
+	public UrlSeenFilter getSeenFilter() {
+		return strings_seen;
+	}
+	
+	/**
+	 * Publish the desired callback with the given values, to be delivered to the listeners
+	 * on the {@link EventBus}'s dispatcher thread.
 	 * @param type The type of callback to initiate.
 	 * @param str A string to send with the callback.
 	 * @param success A success value to send with the callback.
@@ -159,33 +533,78 @@ public class StringQueue {
 		if (listeners.isEmpty())
 			return;
 		
-		switch (type) {
-			case RETRIEVAL:
-				
-				// execute the onStringRetrieved method of all the callbacks.
-				for (StringQueueListener sql : listeners)
-					sql.onStringRetrieved(str, success);
-						
-				break;
-			case ADDITION:
-				
-				// execute the onStringAddition method of all the callbacks.
-				for (StringQueueListener sql : listeners)
-					sql.onStringAddition(str, success);
-				
-				break;
-			case PEEK:
-	
-				// execute the onStringPeek method of all the callbacks.
-				for (StringQueueListener sql : listeners)
-					sql.onStringPeek(success, str);
-						
-				break;
-			default:
-				// TODO: remove this
-				throw new IllegalArgumentException("StringQueue attempted to execute an invalid callback type[" + type + "]");
+		EventBus.getEventBus().publish(new QueueEvent(type, str, success, null, 0));
+	}
+	
+	/**
+	 * Publish the desired callback for a batch of strings, to be delivered to the listeners
+	 * on the {@link EventBus}'s dispatcher thread.
+	 * @param type The type of callback to initiate; RETRIEVAL or ADDITION.
+	 * @param strs The strings retrieved or added.
+	 * @param attempted The number of strings that were attempted.
+	 */
+	private void executeBatchCallback(final SQCallbackType type, final List<String> strs, final int attempted) {
+		
+		// Don't bother if there is no one listening.
+		if (listeners.isEmpty())
+			return;
+		
+		// Copy the batch, since the caller may go on to modify it.
+		final List<String> batch = Collections.unmodifiableList(new ArrayList<String>(strs));
+		EventBus.getEventBus().publish(new QueueEvent(type, null, true, batch, attempted));
+	}
+	
+	/**
+	 * Delivers this queue's events to its listeners, on the EventBus's dispatcher thread.
+	 */
+	private final EventBus.Subscriber subscriber = new EventBus.Subscriber() {
+		@Override
+		public void onEvents(final List<EventBus.Event> events) {
+			for (EventBus.Event event : events)
+				((QueueEvent)event).deliver();
+		}
+	};
+	
+	/**
+	 * A callback waiting to be delivered to this queue's listeners.
+	 */
+	private final class QueueEvent extends EventBus.Event {
+		private final SQCallbackType type;
+		private final String str;
+		private final boolean success;
+		private final List<String> strs;
+		private final int attempted;
+		
+		QueueEvent(final SQCallbackType type, final String str, final boolean success, final List<String> strs, final int attempted) {
+			super(StringQueue.this);
+			this.type = type;
+			this.str = str;
+			this.success = success;
+			this.strs = strs;
+			this.attempted = attempted;
 		}
 		
+		void deliver() {
+			for (StringQueueListener sql : listeners) {
+				switch (type) {
+					case RETRIEVAL:
+						if (strs != null)
+							sql.onStringsRetrieved(strs);
+						else
+							sql.onStringRetrieved(str, success);
+						break;
+					case ADDITION:
+						if (strs != null)
+							sql.onStringsAdded(strs, attempted);
+						else
+							sql.onStringAddition(str, success);
+						break;
+					case PEEK:
+						sql.onStringPeek(success, str);
+						break;
+				}
+			}
+		}
 	}
 	
 	/**
@@ -224,6 +643,27 @@ public class StringQueue {
 		 */
 		public void onStringPeek(final boolean result, final String str) { }
 		
+		/**
+		 * Called once for a batch of strings retrieved from the queue by drainPending(..) or drainTo(..),
+		 * instead of onStringRetrieved for each. By default calls onStringRetrieved for every string.
+		 * @param strs The strings that were retrieved.
+		 */
+		public void onStringsRetrieved(final List<String> strs) {
+			for (String str : strs)
+				onStringRetrieved(str, true);
+		}
+		
+		/**
+		 * Called once for a batch of strings added to the queue by addAllPending(..), instead of
+		 * onStringAddition for each. By default calls onStringAddition for every added string.
+		 * @param strs The strings that were added; dropped strings are not included.
+		 * @param attempted The number of strings in the batch, including those dropped.
+		 */
+		public void onStringsAdded(final List<String> strs, final int attempted) {
+			for (String str : strs)
+				onStringAddition(str, true);
+		}
+		
 	}
 	
 	// *********************** TEST *****************************//
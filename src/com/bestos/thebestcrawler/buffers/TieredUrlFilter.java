@@ -0,0 +1,114 @@
+// TieredUrlFilter.java
+// TieredUrlFilter
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bestos.thebestcrawler.UserPrefs;
+
+/**
+ * The TieredUrlFilter is a probabilistic {@link UrlSeenFilter} for very large crawls.<BR><BR>
+ * Every fingerprint is put in to a {@link BloomUrlFilter}. Fingerprints are also kept in an
+ * exact {@link UrlSeenSet} until that set reaches the capacity allowed by the memory budget;
+ * up to that point dedup is exact. Past it, the Bloom filter alone decides, and any url it
+ * reports as "maybe seen" that is not in the exact set is dropped and counted as a rejection.
+ * Some of those rejections are true duplicates, the rest are false positives, so the count
+ * is an upper bound on the urls lost to the approximation.
+ * @author Michael Morris
+ * @version 5/7/2013
+ *
+ */
+public class TieredUrlFilter implements UrlSeenFilter {
+
+	private static final String TAG = "TieredUrlFilter";
+
+	/** Rough number of bytes an exact set entry costs, including table slack. **/
+	private static final int EXACT_BYTES_PER_URL = 32;
+
+	private final BloomUrlFilter bloom;
+
+	private final UrlSeenSet exact;
+
+	private final long exact_capacity;
+
+	/** Set once the exact tier is full, after which the Bloom filter has the final say. **/
+	private volatile boolean exact_overflowed;
+
+	private final AtomicLong approximate_added;
+
+	private final AtomicLong rejected;
+
+	/**
+	 * Construct a TieredUrlFilter.
+	 * @param expected_urls The expected number of distinct urls in the crawl.
+	 * @param false_positive_rate The desired false positive rate of the Bloom filter.
+	 * @param memory_budget The total number of bytes both tiers may use.
+	 */
+	public TieredUrlFilter(final long expected_urls, final double false_positive_rate, final long memory_budget) {
+		bloom = new BloomUrlFilter(expected_urls, false_positive_rate, memory_budget);
+		exact = new UrlSeenSet();
+		exact_capacity = Math.max(0, (memory_budget - bloom.getSizeInBytes()) / EXACT_BYTES_PER_URL);
+		exact_overflowed = exact_capacity == 0;
+		approximate_added = new AtomicLong();
+		rejected = new AtomicLong();
+
+		UserPrefs.debugTxt(TAG, "created tiered url filter.",
+						   "bloom bytes = " + bloom.getSizeInBytes() + ", hashes = " + bloom.getNumHashes(),
+						   "exact capacity = " + exact_capacity);
+	}
+
+	@Override
+	public boolean add(final long fingerprint) {
+		final boolean bloom_changed = bloom.put(fingerprint);
+
+		// While every url seen so far fits in the exact tier, it decides (and Bloom false positives cost nothing).
+		if (!exact_overflowed) {
+			final boolean added = exact.add(fingerprint);
+			if (exact.size() >= exact_capacity) {
+				exact_overflowed = true;
+				UserPrefs.debugTxt(TAG, "exact tier full at " + exact.size() + " urls; dedup is now approximate.");
+			}
+			return added;
+		}
+
+		if (bloom_changed) {
+			approximate_added.incrementAndGet();
+			return true;
+		}
+
+		if (!exact.contains(fingerprint))
+			rejected.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public boolean contains(final long fingerprint) {
+		return bloom.mightContain(fingerprint);
+	}
+
+	@Override
+	public long size() {
+		return exact.size() + approximate_added.get();
+	}
+
+	/**
+	 * Get the number of urls dropped because the Bloom filter reported them as seen after the
+	 * exact tier had filled up.
+	 * @return The number of approximate rejections.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Check whether dedup has become approximate.
+	 * @return True if the exact tier is full.
+	 */
+	public boolean isApproximate() {
+		return exact_overflowed;
+	}
+
+}
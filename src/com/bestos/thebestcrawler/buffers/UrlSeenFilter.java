@@ -0,0 +1,40 @@
+// UrlSeenFilter.java
+// UrlSeenFilter
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+/**
+ * A UrlSeenFilter remembers the fingerprints of every url handed to a url buffer,
+ * so that a url is only ever queued once. Implementations must be thread-safe.
+ * @author Michael Morris
+ * @version 5/7/2013
+ *
+ * @see UrlSeenSet
+ * @see TieredUrlFilter
+ */
+public interface UrlSeenFilter {
+
+	/**
+	 * (Thread-Safe) Record the fingerprint as seen.
+	 * @param fingerprint The non-zero url fingerprint.
+	 * @return True if the url should be treated as new (queued), false if it has been seen.
+	 */
+	public boolean add(final long fingerprint);
+
+	/**
+	 * (Thread-Safe) Check whether the fingerprint has been seen. Approximate filters may
+	 * report false positives, but never false negatives.
+	 * @param fingerprint The non-zero url fingerprint.
+	 * @return True if the url has (or may have) been seen, false otherwise.
+	 */
+	public boolean contains(final long fingerprint);
+
+	/**
+	 * (Thread-Safe) Get the number of fingerprints accepted as new by this filter.
+	 * @return The number of urls accepted.
+	 */
+	public long size();
+
+}
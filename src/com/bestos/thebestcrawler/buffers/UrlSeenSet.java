@@ -0,0 +1,286 @@
+// UrlSeenSet.java
+// UrlSeenSet
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.buffers;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The UrlSeenSet is a thread-safe, lock-free set of 64-bit url fingerprints which remembers
+ * every url ever handed to the url buffer, for the whole crawl.<BR><BR>
+ * Fingerprints are stored in primitive open-addressing (linear probing) tables, split
+ * in to segments by the high bits of the fingerprint. Insertion and lookup are done with
+ * compare-and-set only. A segment is grown by publishing a table twice the size as the old
+ * table's successor, then copying every slot across and marking it as moved; any thread
+ * which finds a moved slot while adding helps finish the copy and retries in the new table,
+ * so no thread ever waits on another. Lookups never write: they probe past moved slots and
+ * follow on to the new table only when the fingerprint is not found in the old one.
+ * @author Michael Morris
+ * @version 5/29/2013
+ *
+ */
+public class UrlSeenSet implements UrlSeenFilter {
+
+	/** The number of segments (must be a power of two). **/
+	private static final int NUM_SEGMENTS = 64;
+	private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(NUM_SEGMENTS);
+
+	/** The starting number of slots within each segment (must be a power of two). **/
+	private static final int INITIAL_SEGMENT_SLOTS = 1024;
+
+	/** A segment is grown once it is more than this full. **/
+	private static final float MAX_LOAD = 0.6f;
+
+	/** The value of an unused slot; fingerprints are never 0. **/
+	private static final long EMPTY = 0L;
+
+	/** The value of a slot which has been copied to the next table. **/
+	private static final long MOVED = Long.MIN_VALUE;
+
+	/** The slots copied by a thread at a time while a table is grown. **/
+	private static final int COPY_STRIDE = 256;
+
+	private final Segment[] segments;
+
+	/** Whether the one fingerprint which cannot be stored in a table, MOVED, has been added. **/
+	private final AtomicBoolean has_moved;
+
+	private final AtomicLong size;
+
+	/**
+	 * Construct an empty UrlSeenSet.
+	 */
+	public UrlSeenSet() {
+		segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++)
+			segments[i] = new Segment(INITIAL_SEGMENT_SLOTS);
+		has_moved = new AtomicBoolean();
+		size = new AtomicLong();
+	}
+
+	/**
+	 * (Thread-Safe) Add the fingerprint to the set.
+	 * @param fingerprint The non-zero url fingerprint.
+	 * @return True if the fingerprint was not in the set before this call, false otherwise.
+	 */
+	@Override
+	public boolean add(final long fingerprint) {
+		checkFingerprint(fingerprint);
+		final boolean added = fingerprint == MOVED ? has_moved.compareAndSet(false, true) : segmentFor(fingerprint).add(fingerprint);
+		if (added)
+			size.incrementAndGet();
+		return added;
+	}
+
+	/**
+	 * (Thread-Safe) Check whether the fingerprint has been added to the set.
+	 * @param fingerprint The non-zero url fingerprint.
+	 * @return True if the fingerprint is in the set, false otherwise.
+	 */
+	@Override
+	public boolean contains(final long fingerprint) {
+		checkFingerprint(fingerprint);
+		if (fingerprint == MOVED)
+			return has_moved.get();
+		return segmentFor(fingerprint).contains(fingerprint);
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of fingerprints within the set.
+	 * @return The number of fingerprints added.
+	 */
+	@Override
+	public long size() {
+		return size.get();
+	}
+
+	private Segment segmentFor(final long fingerprint) {
+		return segments[(int)(fingerprint >>> SEGMENT_SHIFT)];
+	}
+
+	private static void checkFingerprint(final long fingerprint) {
+		if (fingerprint == EMPTY)
+			throw new IllegalArgumentException("fingerprint must be non-zero");
+	}
+
+	/**
+	 * An open-addressing table of fingerprints. Probing is done with the low bits of the
+	 * fingerprint, since the high bits already picked the segment.
+	 */
+	private static final class Table {
+
+		final AtomicLongArray slots;
+
+		final int threshold;
+
+		/** The table this one is being copied to, once it is grown. **/
+		final AtomicReference<Table> next;
+
+		/** The next stride of slots to be claimed for copying. **/
+		final AtomicInteger copy_index;
+
+		/** Set once every slot has been copied to the next table. **/
+		volatile boolean copied;
+
+		Table(final int slots) {
+			this.slots = new AtomicLongArray(slots);
+			threshold = (int)(slots * MAX_LOAD);
+			next = new AtomicReference<Table>();
+			copy_index = new AtomicInteger();
+		}
+
+	}
+
+	/**
+	 * The tables of one segment: the current table, followed by the tables it is being grown in to.
+	 */
+	private static final class Segment {
+
+		private final AtomicReference<Table> table;
+
+		private final AtomicInteger count;
+
+		Segment(final int slots) {
+			table = new AtomicReference<Table>(new Table(slots));
+			count = new AtomicInteger();
+		}
+
+		boolean add(final long fingerprint) {
+			Table into = table.get();
+			while (true) {
+				final int result = insert(into, fingerprint);
+				if (result == PRESENT)
+					return false;
+				if (result == ADDED)
+					break;
+				// Moved slot or no room: the table is being grown, so finish that and add to the new one.
+				grow(into);
+				into = into.next.get();
+			}
+			if (count.incrementAndGet() > into.threshold)
+				grow(into);
+			return true;
+		}
+
+		boolean contains(final long fingerprint) {
+			Table current = table.get();
+			while (true) {
+				// A finished copy holds everything the old table did, so skip straight to it.
+				if (current.copied) {
+					current = current.next.get();
+					continue;
+				}
+				final AtomicLongArray slots = current.slots;
+				final int mask = slots.length() - 1;
+				int i = (int)fingerprint & mask;
+				boolean passed_moved = false;
+				for (int probed = 0; probed < slots.length(); probed++, i = (i + 1) & mask) {
+					final long slot = slots.get(i);
+					if (slot == fingerprint)
+						return true;
+					if (slot == EMPTY && !passed_moved)
+						return false;
+					// The fingerprint may have been in a moved slot, so finish the probe in the next table.
+					if (slot == EMPTY)
+						break;
+					if (slot == MOVED)
+						passed_moved = true;
+				}
+				// Nothing is added to the next table but copies until every slot here has moved.
+				current = current.next.get();
+				if (current == null)
+					return false;
+			}
+		}
+
+		private static final int ADDED = 0;
+		private static final int PRESENT = 1;
+		private static final int FORWARDED = 2;
+
+		/**
+		 * Insert the fingerprint in to the table by claiming the first empty slot of its probe
+		 * sequence with a compare-and-set.
+		 * @return ADDED if inserted, PRESENT if the fingerprint was already present, or FORWARDED
+		 * if a moved slot was found or the table is full, in which case it must be grown first.
+		 */
+		private static int insert(final Table into, final long fingerprint) {
+			final AtomicLongArray slots = into.slots;
+			final int mask = slots.length() - 1;
+			int i = (int)fingerprint & mask;
+			int probed = 0;
+			while (probed < slots.length()) {
+				final long slot = slots.get(i);
+				if (slot == fingerprint)
+					return PRESENT;
+				if (slot == MOVED)
+					return FORWARDED;
+				if (slot == EMPTY) {
+					if (slots.compareAndSet(i, EMPTY, fingerprint))
+						return ADDED;
+					// Lost the race for this slot; re-check it before moving on.
+					continue;
+				}
+				i = (i + 1) & mask;
+				probed++;
+			}
+			return FORWARDED;
+		}
+
+		/**
+		 * Grow a table: publish its successor if no thread has yet, then help copy every slot
+		 * across, and finally make the successor the segment's table. Returns once the copy is done.
+		 */
+		private void grow(final Table old_table) {
+			if (old_table.next.get() == null)
+				old_table.next.compareAndSet(null, new Table(old_table.slots.length() * 2));
+			final Table new_table = old_table.next.get();
+
+			if (!old_table.copied) {
+				final int length = old_table.slots.length();
+				// Copy the strides no other thread has claimed, then make sure of the rest, which
+				// may belong to a slower thread; copying a slot twice does no harm.
+				int start;
+				while ((start = old_table.copy_index.getAndAdd(COPY_STRIDE)) < length)
+					copy(old_table, new_table, start, Math.min(start + COPY_STRIDE, length));
+				copy(old_table, new_table, 0, length);
+				old_table.copied = true;
+			}
+
+			table.compareAndSet(old_table, new_table);
+		}
+
+		/**
+		 * Copy a range of slots to the next table, marking each as moved once it has been copied.
+		 */
+		private void copy(final Table old_table, final Table new_table, final int from, final int to) {
+			final AtomicLongArray slots = old_table.slots;
+			for (int i = from; i < to; i++) {
+				while (true) {
+					final long slot = slots.get(i);
+					if (slot == MOVED)
+						break;
+					if (slot == EMPTY) {
+						if (slots.compareAndSet(i, EMPTY, MOVED))
+							break;
+						continue;
+					}
+					Table into = new_table;
+					while (insert(into, slot) == FORWARDED) {
+						grow(into);
+						into = into.next.get();
+					}
+					if (slots.compareAndSet(i, slot, MOVED))
+						break;
+				}
+			}
+		}
+
+	}
+
+}
@@ -13,14 +13,16 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
@@ -36,11 +38,19 @@ import javax.swing.SwingUtilities;
 import javax.swing.border.TitledBorder;
 
 import com.bestos.thebestcrawler.UserPrefs;
-import com.bestos.thebestcrawler.buffers.DoubleStringQueue;
+import com.bestos.thebestcrawler.buffers.HttpCache;
+import com.bestos.thebestcrawler.buffers.NearDuplicateIndex;
+import com.bestos.thebestcrawler.buffers.PageBuffer;
 import com.bestos.thebestcrawler.buffers.StringQueue;
+import com.bestos.thebestcrawler.utils.DnsCache;
+import com.bestos.thebestcrawler.utils.HostConnectionPool;
+import com.bestos.thebestcrawler.workers.AsyncPageRetriever;
+import com.bestos.thebestcrawler.workers.Checkpointer;
 import com.bestos.thebestcrawler.workers.DataGatherer;
 import com.bestos.thebestcrawler.workers.PageParser;
 import com.bestos.thebestcrawler.workers.PageRetriever;
+import com.bestos.thebestcrawler.workers.VirtualPageRetriever;
+import com.bestos.thebestcrawler.workers.Worker;
 
 /**
  * The GUI for The Best OS Webcrawler.
@@ -116,9 +126,10 @@ public class BestOsGUI extends JFrame {
 	private JPanel mid_panel;
 
 	/**
-	 * Collection to store the all the created page retrievers.
+	 * Collection to store the all the created page retrievers; PageRetrievers or
+	 * AsyncPageRetrievers, depending on the fetch mode.
 	 */
-	private PageRetriever[] retrievers_array;
+	private Worker[] retrievers_array;
 
 	/**
 	 * Collection to store the all the created page parsers.
@@ -128,7 +139,7 @@ public class BestOsGUI extends JFrame {
 	/**
 	 * Storage queue for pending pages to be parsed, with their source url.
 	 */
-	private final DoubleStringQueue page_buffer;
+	private final PageBuffer page_buffer;
 
 	/**
 	 * The page field that contains the number of pages.
@@ -148,7 +159,7 @@ public class BestOsGUI extends JFrame {
 	/**
 	 * Data structure to store the different ReporterResponse object.
 	 */
-	private final static Queue<ReporterResponse> response_queue = new LinkedList<ReporterResponse>();
+	private final static BlockingQueue<ReporterResponse> response_queue = new LinkedBlockingQueue<ReporterResponse>();
 
 	/**
 	 * Thread for the queue for displaying data purposes.
@@ -196,6 +207,16 @@ public class BestOsGUI extends JFrame {
 	 */
 	private final JProgressBar bar;
 
+	/**
+	 * Check box to resume the last crawl from its checkpoint, instead of starting a new one.
+	 */
+	private final JCheckBox resume_box;
+
+	/**
+	 * Periodically saves the crawl so that it can be resumed.
+	 */
+	private Checkpointer checkpointer;
+
 	/**
 	 * Construct the GUI.
 	 */
@@ -220,7 +241,7 @@ public class BestOsGUI extends JFrame {
 		scrollPane = new JScrollPane(text_area);
 		side.add(scrollPane, BorderLayout.CENTER);
 		data = new DataGatherer();
-		page_buffer = new DoubleStringQueue();
+		page_buffer = new PageBuffer();
 		url_buffer = new StringQueue();
 		list_key = new ArrayList<String>();
 		add = new JButton("Add");
@@ -233,6 +254,8 @@ public class BestOsGUI extends JFrame {
 		mid_panel = new JPanel(new GridLayout(0, 4));
 		page_field = new JTextField("100", 5);
 		URL_field = new JTextField("http://faculty.washington.edu/gmobus/", 30);
+		resume_box = new JCheckBox("Resume last crawl");
+		resume_box.setEnabled(Checkpointer.hasCheckpoint(UserPrefs.getUserPrefs().getCheckpointDirectory()));
 
 		UserPrefs.getUserPrefs().setDebugMode(false);
 
@@ -253,6 +276,17 @@ public class BestOsGUI extends JFrame {
 
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
+				checkpointer = new Checkpointer(UserPrefs.getUserPrefs().getCheckpointDirectory(),
+						UserPrefs.getUserPrefs().getCheckpointInterval(), url_buffer, data);
+				if (resume_box.isSelected()) {
+					try {
+						checkpointer.restore();
+					} catch (IOException e) {
+						JOptionPane.showMessageDialog(null,
+								"Could not resume the last crawl!\n" + e.getMessage(), "Error",
+								JOptionPane.ERROR_MESSAGE);
+					}
+				}
 				url_buffer.addPending(URL_field.getText());
 				int num_parser = 1;
 				int num_retriever = 1;
@@ -286,10 +320,15 @@ public class BestOsGUI extends JFrame {
 							parser_array[i - 1]));
 				}
 
-				retrievers_array = new PageRetriever[num_retriever];
+				retrievers_array = new Worker[num_retriever];
+				final UserPrefs.FetchMode fetch_mode = UserPrefs.getUserPrefs().getFetchMode();
 				for (int j = 1; j <= num_retriever; j++) {
-					retrievers_array[j - 1] = new PageRetriever(page_buffer,
-							url_buffer);
+					if (fetch_mode == UserPrefs.FetchMode.ASYNC)
+						retrievers_array[j - 1] = new AsyncPageRetriever(page_buffer, url_buffer);
+					else if (fetch_mode == UserPrefs.FetchMode.VIRTUAL)
+						retrievers_array[j - 1] = new VirtualPageRetriever(page_buffer, url_buffer);
+					else
+						retrievers_array[j - 1] = new PageRetriever(page_buffer, url_buffer);
 					num_of_retriever.add(new WorkerStatusComponent(
 							retrievers_array[j - 1]));
 
@@ -330,7 +369,9 @@ public class BestOsGUI extends JFrame {
 				}
 				data.start();
 				queue_thread.start();
+				checkpointer.start();
 				start.setEnabled(false);
+				resume_box.setEnabled(false);
 
 			}
 		});
@@ -373,6 +414,12 @@ public class BestOsGUI extends JFrame {
 				retrievers_array[i].shutdown();
 			}
 		}
+		HostConnectionPool.getHostConnectionPool().closeIdle();
+		if (HttpCache.getHttpCache() != null)
+			HttpCache.getHttpCache().close();
+		// Save the crawl one last time, so it can be resumed.
+		if (checkpointer != null)
+			checkpointer.shutdown();
 		super.dispose();
 	}
 
@@ -414,6 +461,7 @@ public class BestOsGUI extends JFrame {
 		final JLabel max = new JLabel("(Up to 10,000 pages.)");
 		url_panel.add(url_label);
 		url_panel.add(URL_field);
+		url_panel.add(resume_box);
 		max_page.add(page_label);
 		max_page.add(page_field);
 		max_page.add(max);
@@ -665,8 +713,13 @@ public class BestOsGUI extends JFrame {
 		public void run() {
 			final DecimalFormat df = new DecimalFormat("#.####");
 			while (!stopRunning) {
-				if (response_queue.peek() != null) {
-					ReporterResponse temp = response_queue.remove();
+				ReporterResponse temp = null;
+				try {
+					temp = response_queue.poll(250, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+
+				}
+				if (temp != null) {
 					StringBuilder sb = new StringBuilder();
 					text_area.append("Parsed: " + temp.URL_retrieve + "\n");
 					text_area.append("Pages Retrieved: " + temp.pages_retrieved
@@ -694,6 +747,27 @@ public class BestOsGUI extends JFrame {
 							+ "\n");
 					text_area.append("Average parse time per page "
 							+ df.format(temp.avg_parse_time) + " ms\n");
+					text_area.append("Page buffer: "
+							+ (page_buffer.getQueuedBytes() / 1024) + " of "
+							+ (page_buffer.getMaxQueuedBytes() / 1024)
+							+ " KB, retrievers waited "
+							+ page_buffer.getPutWaitMillis() + " ms\n");
+					text_area.append("Near-duplicate pages skipped: "
+							+ NearDuplicateIndex.getNearDuplicateIndex().getNumDuplicates() + "\n");
+					text_area.append("Page bytes over the wire: "
+							+ (PageRetriever.getWireBytes() / 1024) + " KB, decoded: "
+							+ (PageRetriever.getDecodedBytes() / 1024) + " KB\n");
+					text_area.append("Connections opened: "
+							+ HostConnectionPool.getHostConnectionPool().getConnectionsOpened()
+							+ ", reused: "
+							+ HostConnectionPool.getHostConnectionPool().getConnectionsReused() + "\n");
+					if (HttpCache.getHttpCache() != null)
+						text_area.append("Unchanged pages served from the cache: "
+								+ HttpCache.getHttpCache().getNumServed() + " ("
+								+ (HttpCache.getHttpCache().getBytesServed() / 1024) + " KB not downloaded)\n");
+					text_area.append("DNS lookups cached: "
+							+ DnsCache.getDnsCache().getHits() + " of "
+							+ (DnsCache.getDnsCache().getHits() + DnsCache.getDnsCache().getMisses()) + "\n");
 					text_area
 							.append("Total running time "
 									+ ((System.currentTimeMillis() - timeStamp) / 1000f)
@@ -715,6 +789,13 @@ public class BestOsGUI extends JFrame {
 									+ "<br>Average parse time per page "
 									+ df.format(temp.avg_parse_time)
 									+ " ms<br>"
+									+ "Page buffer: "
+									+ (page_buffer.getQueuedBytes() / 1024)
+									+ " of "
+									+ (page_buffer.getMaxQueuedBytes() / 1024)
+									+ " KB, retrievers waited "
+									+ page_buffer.getPutWaitMillis()
+									+ " ms<br>"
 									+ "Total running time "
 									+ ((System.currentTimeMillis() - timeStamp) / 1000f)
 									+ " sec</b></html>");
@@ -726,12 +807,6 @@ public class BestOsGUI extends JFrame {
 					bar.setValue((int) ((double) (temp.pages_retrieved)
 							/ Integer.parseInt(page_field.getText()) * 100));
 					repaint();
-				} else {
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-
-					}
 				}
 			}
 
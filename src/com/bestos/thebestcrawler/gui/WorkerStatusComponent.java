@@ -9,6 +9,7 @@ import java.awt.Dimension;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import com.bestos.thebestcrawler.workers.PageRetriever.PageRetrieverListener;
 import com.bestos.thebestcrawler.workers.Worker;
@@ -56,30 +57,41 @@ public class WorkerStatusComponent extends JPanel {
 		repaint();
 	}
 	
+	/**
+	 * Change the status shown, on the Swing event dispatch thread; worker callbacks
+	 * arrive on the EventBus's dispatcher thread.
+	 * @param status The new status.
+	 */
+	private void showStatus(final WorkerStatus status) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				my_status = status;
+				redrawMe();
+			}
+		});
+	}
+	
 	private class WorkerStatusListener extends PageRetrieverListener {
 
 		@Override
 		public void onStart(final String id) {
-			my_status = WorkerStatus.STARTED;
-			redrawMe();
+			showStatus(WorkerStatus.STARTED);
 		};
 		
 		@Override
 		public void onIdle(final String id) {
-			my_status = WorkerStatus.IDLE;
-			redrawMe();
+			showStatus(WorkerStatus.IDLE);
 		};
 		
 		@Override
 		public void onWorking(final String id) {
-			my_status = WorkerStatus.WORKING;
-			redrawMe();
+			showStatus(WorkerStatus.WORKING);
 		};
 		
 		@Override
 		public void onShutdown(final String id) {
-			my_status = WorkerStatus.SHUTDOWN;
-			redrawMe();
+			showStatus(WorkerStatus.SHUTDOWN);
 		};
 		
 	}
@@ -0,0 +1,339 @@
+// ContentDecoder.java
+// ContentDecoder
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Utility for undoing the Content-Encoding of a response, so that pages can be fetched gzip or deflate
+ * compressed (HTML shrinks about five times) and decompressed as they are read. The {@link Inflater}s
+ * doing the work are pooled, since each holds native memory which is slow to allocate and is only freed
+ * when the inflater is ended or collected; gzip framing is read here rather than by
+ * {@link java.util.zip.GZIPInputStream}, which always makes an inflater of its own.
+ *
+ * @author Michael Morris
+ * @version 5/28/2013
+ */
+public final class ContentDecoder {
+
+	/** The value of the Accept-Encoding header for the encodings which can be decoded. **/
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/** The number of free inflaters kept of each kind. **/
+	private static final int MAX_POOLED_INFLATERS = 64;
+
+	/** The size of the compressed input read at a time. **/
+	private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+	private static final int GZIP_DEFLATE = 8;
+	private static final int GZIP_FHCRC = 2;
+	private static final int GZIP_FEXTRA = 4;
+	private static final int GZIP_FNAME = 8;
+	private static final int GZIP_FCOMMENT = 16;
+
+	/** Inflaters for zlib wrapped data, and for raw deflate data (as in gzip). **/
+	private static final ConcurrentLinkedQueue<Inflater> zlib_inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private static final ConcurrentLinkedQueue<Inflater> raw_inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private static final AtomicInteger num_zlib_inflaters = new AtomicInteger();
+	private static final AtomicInteger num_raw_inflaters = new AtomicInteger();
+
+	private ContentDecoder() { }
+
+	/**
+	 * Check whether a response with the given Content-Encoding can be decoded.
+	 * @param content_encoding The Content-Encoding header; may be null.
+	 * @return True if every encoding listed is gzip, deflate or identity.
+	 */
+	public static boolean isSupported(final String content_encoding) {
+		if (content_encoding == null)
+			return true;
+		for (String encoding : content_encoding.split(",")) {
+			final String name = encoding.trim().toLowerCase(Locale.US);
+			if (!name.isEmpty() && !name.equals("identity") && !name.equals("gzip") && !name.equals("x-gzip") && !name.equals("deflate"))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wrap a response body in a stream which undoes its Content-Encoding as it is read. Closing the
+	 * returned stream gives back its inflater and closes the body.
+	 * @param in The body, as sent.
+	 * @param content_encoding The Content-Encoding header; may be null for none.
+	 * @return The decoded body; in itself if it was not encoded.
+	 * @throws IOException If the encoding is not supported (see {@link #isSupported(String)}).
+	 */
+	public static InputStream decode(final InputStream in, final String content_encoding) throws IOException {
+		if (content_encoding == null)
+			return in;
+		if (!isSupported(content_encoding))
+			throw new IOException("unsupported content encoding[" + content_encoding + "]");
+
+		// Encodings are listed in the order they were applied, so undo them from the last.
+		InputStream decoded = in;
+		final String[] encodings = content_encoding.split(",");
+		for (int i = encodings.length - 1; i >= 0; i--) {
+			final String name = encodings[i].trim().toLowerCase(Locale.US);
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				decoded = new InflatingStream(decoded, true);
+			else if (name.equals("deflate"))
+				decoded = new InflatingStream(decoded, false);
+		}
+		return decoded;
+	}
+
+	private static Inflater takeInflater(final boolean raw) {
+		final Inflater inflater = (raw ? raw_inflaters : zlib_inflaters).poll();
+		if (inflater != null) {
+			(raw ? num_raw_inflaters : num_zlib_inflaters).decrementAndGet();
+			return inflater;
+		}
+		return new Inflater(raw);
+	}
+
+	private static void giveInflater(final Inflater inflater, final boolean raw) {
+		inflater.reset();
+		final AtomicInteger count = raw ? num_raw_inflaters : num_zlib_inflaters;
+		if (count.incrementAndGet() <= MAX_POOLED_INFLATERS) {
+			(raw ? raw_inflaters : zlib_inflaters).offer(inflater);
+		} else {
+			count.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Inflates a gzip or deflate body, through a pooled inflater, as it is read. Used by one thread.
+	 */
+	private static final class InflatingStream extends InputStream {
+		private final InputStream in;
+		private final boolean gzip;
+		private final byte[] input;
+		private final CRC32 crc;
+		private final byte[] single = new byte[1];
+
+		/** The compressed bytes in the input buffer run from position to limit. **/
+		private int position = 0;
+		private int limit = 0;
+
+		private Inflater inflater = null;
+		private boolean raw;
+		private boolean started = false;
+		private boolean ended = false;
+		private boolean closed = false;
+
+		InflatingStream(final InputStream in, final boolean gzip) {
+			this.in = in;
+			this.gzip = gzip;
+			input = ReadBufferPool.acquire(INPUT_BUFFER_SIZE - 1);
+			crc = gzip ? new CRC32() : null;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int count) throws IOException {
+			if (closed)
+				throw new IOException("stream closed");
+			if (offset < 0 || count < 0 || offset + count > bytes.length)
+				throw new IndexOutOfBoundsException("offset[" + offset + "], count[" + count + "], length[" + bytes.length + "]");
+			if (count == 0)
+				return 0;
+			if (!started) {
+				started = true;
+				if (!startMember())
+					ended = true;
+			}
+
+			while (!ended) {
+				final int inflated;
+				try {
+					inflated = inflater.inflate(bytes, offset, count);
+				} catch (DataFormatException dfe) {
+					throw new ZipException("invalid " + (gzip ? "gzip" : "deflate") + " data: " + dfe.getMessage());
+				}
+				position = limit - inflater.getRemaining();
+				if (inflated > 0) {
+					if (crc != null)
+						crc.update(bytes, offset, inflated);
+					return inflated;
+				}
+				if (inflater.finished()) {
+					if (!gzip || !endMember())
+						ended = true;
+				} else if (inflater.needsDictionary()) {
+					throw new ZipException("deflate data needs a preset dictionary");
+				} else if (inflater.needsInput()) {
+					if (!fill())
+						throw new EOFException("unexpected end of " + (gzip ? "gzip" : "deflate") + " data");
+					inflater.setInput(input, position, limit - position);
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (inflater != null) {
+				giveInflater(inflater, raw);
+				inflater = null;
+			}
+			ReadBufferPool.release(input);
+			in.close();
+		}
+
+		/**
+		 * Read the header of the next member, if any, and ready the inflater for its data.
+		 * @return False if there are no more members.
+		 */
+		private boolean startMember() throws IOException {
+			if (gzip) {
+				if (!readGzipHeader())
+					return false;
+				crc.reset();
+				raw = true;
+			} else {
+				// "deflate" should be zlib wrapped, but some servers send raw deflate data.
+				if (limit - position < 2 && !fillAtLeast(2))
+					raw = true;
+				else {
+					final int cmf = input[position] & 0xFF;
+					final int flg = input[position + 1] & 0xFF;
+					raw = (cmf & 0x0F) != 8 || ((cmf << 8) | flg) % 31 != 0;
+				}
+			}
+			if (inflater == null)
+				inflater = takeInflater(raw);
+			else
+				inflater.reset();
+			inflater.setInput(input, position, limit - position);
+			return true;
+		}
+
+		/**
+		 * Check the trailer of a gzip member, and start the next member if there is one.
+		 * @return False at the end of the body.
+		 */
+		private boolean endMember() throws IOException {
+			final long expected_crc = readIntLE();
+			final long expected_size = readIntLE();
+			if (expected_crc != crc.getValue())
+				throw new ZipException("gzip crc mismatch");
+			if (expected_size != (inflater.getBytesWritten() & 0xFFFFFFFFL))
+				throw new ZipException("gzip size mismatch");
+			return startMember();
+		}
+
+		/**
+		 * Read a gzip member header.
+		 * @return False if the body ended instead, or what follows is not another member.
+		 */
+		private boolean readGzipHeader() throws IOException {
+			final int magic_1 = readByte();
+			if (magic_1 == -1)
+				return false;
+			if (magic_1 != GZIP_MAGIC_1 || readByte() != GZIP_MAGIC_2) {
+				if (started && inflater != null)
+					return false;	// Trailing garbage after a member, which browsers ignore too.
+				throw new ZipException("not in gzip format");
+			}
+			if (readByte() != GZIP_DEFLATE)
+				throw new ZipException("unsupported gzip compression method");
+			final int flags = readByte();
+			skip(6);	// MTIME, XFL and OS.
+			if ((flags & GZIP_FEXTRA) != 0)
+				skip(readByte() | (readByte() << 8));
+			if ((flags & GZIP_FNAME) != 0)
+				skipZeroTerminated();
+			if ((flags & GZIP_FCOMMENT) != 0)
+				skipZeroTerminated();
+			if ((flags & GZIP_FHCRC) != 0)
+				skip(2);
+			return true;
+		}
+
+		private long readIntLE() throws IOException {
+			long value = 0;
+			for (int i = 0; i < 4; i++) {
+				final int b = readByte();
+				if (b == -1)
+					throw new EOFException("unexpected end of gzip trailer");
+				value |= (long)b << (8 * i);
+			}
+			return value;
+		}
+
+		private void skip(final int count) throws IOException {
+			for (int i = 0; i < count; i++)
+				if (readByte() == -1)
+					throw new EOFException("unexpected end of gzip header");
+		}
+
+		private void skipZeroTerminated() throws IOException {
+			int b;
+			while ((b = readByte()) != 0)
+				if (b == -1)
+					throw new EOFException("unexpected end of gzip header");
+		}
+
+		/**
+		 * Read one compressed byte, outside of deflate data.
+		 */
+		private int readByte() throws IOException {
+			if (position >= limit && !fill())
+				return -1;
+			return input[position++] & 0xFF;
+		}
+
+		/**
+		 * Refill the empty input buffer.
+		 * @return False at the end of the body.
+		 */
+		private boolean fill() throws IOException {
+			final int read = in.read(input, 0, input.length);
+			if (read <= 0)
+				return false;
+			position = 0;
+			limit = read;
+			return true;
+		}
+
+		/**
+		 * Read until the input buffer holds at least some bytes, moving what is left to its start.
+		 * @return False if the body ended first.
+		 */
+		private boolean fillAtLeast(final int wanted) throws IOException {
+			System.arraycopy(input, position, input, 0, limit - position);
+			limit -= position;
+			position = 0;
+			while (limit < wanted) {
+				final int read = in.read(input, limit, input.length - limit);
+				if (read <= 0)
+					return false;
+				limit += read;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,281 @@
+// DnsCache.java
+// DnsCache
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.HostPartitionedFrontier;
+
+/**
+ * The DnsCache is the crawler's own cache of host name lookups, so that how long an answer is kept
+ * is up to the crawler rather than the JVM. Addresses are kept for {@link UserPrefs#getDnsTtl()} and
+ * hosts which could not be found for {@link UserPrefs#getDnsNegativeTtl()}; threads asking for a host
+ * already being looked up wait for that lookup instead of starting another.<BR><BR>
+ * Hosts can also be prefetched: looked up by a few background threads as soon as links to them are
+ * found, so that by the time a retriever fetches the first page of a host its address is cached.
+ * Prefetches beyond a bounded queue are dropped rather than ever holding up the caller.
+ * @author Michael Morris
+ * @version 5/26/2013
+ *
+ */
+public class DnsCache {
+
+	private static final String TAG = "DnsCache";
+
+	/** The most hosts cached; once over, expired lookups and then any lookups are dropped. **/
+	private static final int MAX_ENTRIES = 100000;
+
+	private static final int PREFETCH_THREADS = 4;
+
+	private static final int MAX_QUEUED_PREFETCHES = 10000;
+
+	private static DnsCache dns_cache = null;
+
+	private final long ttl;
+
+	private final long negative_ttl;
+
+	/** The lookup of each host, by lower case host name. **/
+	private final ConcurrentHashMap<String, Lookup> lookups;
+
+	private final ThreadPoolExecutor prefetcher;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	/**
+	 * Construct a DnsCache.
+	 * @param ttl How long to keep the addresses of a host, in milliseconds.
+	 * @param negative_ttl How long to remember that a host could not be found, in milliseconds.
+	 */
+	public DnsCache(final long ttl, final long negative_ttl) {
+		if (ttl < 0 || negative_ttl < 0)
+			throw new IllegalArgumentException("must specify times to live of at least 0; ttl[" + ttl + "], negative_ttl[" + negative_ttl + "]");
+		this.ttl = ttl;
+		this.negative_ttl = negative_ttl;
+		lookups = new ConcurrentHashMap<String, Lookup>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+
+		prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 60, TimeUnit.SECONDS,
+											new LinkedBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES),
+											new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, TAG + "-prefetch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, new ThreadPoolExecutor.DiscardPolicy());
+		prefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get the shared DnsCache, with the times to live of the {@link UserPrefs} when first used.
+	 * @return The DnsCache.
+	 */
+	public static final synchronized DnsCache getDnsCache() {
+		if (dns_cache == null)
+			dns_cache = new DnsCache(UserPrefs.getUserPrefs().getDnsTtl(), UserPrefs.getUserPrefs().getDnsNegativeTtl());
+		return dns_cache;
+	}
+
+	/**
+	 * (Thread-Safe) Get the addresses of a host, from the cache if they are there and still fresh,
+	 * waiting for a lookup of the host already under way if there is one.
+	 * @param host The host name or address literal.
+	 * @return The host's addresses.
+	 * @throws UnknownHostException If the host could not be found, now or within the negative time to live.
+	 */
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		if (host == null || host.isEmpty())
+			throw new UnknownHostException("no host name given");
+		final String key = host.toLowerCase(Locale.US);
+
+		while (true) {
+			final Lookup lookup = lookups.get(key);
+			if (lookup != null && !lookup.isExpired(System.currentTimeMillis())) {
+				hits.incrementAndGet();
+				return lookup.get();
+			}
+
+			// Start a new lookup, unless another thread just did.
+			final Lookup fresh = new Lookup(key);
+			if (lookup == null ? lookups.putIfAbsent(key, fresh) != null : !lookups.replace(key, lookup, fresh))
+				continue;
+			misses.incrementAndGet();
+			fresh.run();
+			if (lookups.size() > MAX_ENTRIES)
+				trim();
+			return fresh.get();
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Look up a host in the background, unless it is cached or already being looked up.
+	 * Never waits; if too many prefetches are queued, this one is dropped.
+	 * @param host The host name.
+	 */
+	public void prefetch(final String host) {
+		if (host == null || host.isEmpty())
+			return;
+		final Lookup lookup = lookups.get(host.toLowerCase(Locale.US));
+		if (lookup != null && !lookup.isExpired(System.currentTimeMillis()))
+			return;
+		try {
+			prefetcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						resolve(host);
+					} catch (UnknownHostException uhe) {
+						// Cached as not found; the retriever will report it if the host is fetched.
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) { /* Dropped; the host will be looked up when fetched. */ }
+	}
+
+	/**
+	 * (Thread-Safe) Prefetch the host of each url not already cached, e.g. the links found on a page.
+	 * @param urls The urls.
+	 */
+	public void prefetchHostsOf(final Collection<String> urls) {
+		final Set<String> hosts = new HashSet<String>();
+		for (String url : urls) {
+			final String host = hostOf(url);
+			if (host != null && hosts.add(host))
+				prefetch(host);
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of lookups answered from the cache.
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of lookups which had to ask the resolver, including prefetches.
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of hosts cached.
+	 * @return The number of hosts.
+	 */
+	public int size() {
+		return lookups.size();
+	}
+
+	/**
+	 * Get the host name of a url, e.g. "example.com" of "http://user@example.com:8080/path".
+	 * @return The host, or null if the url has none.
+	 */
+	private static String hostOf(final String url) {
+		final String key = HostPartitionedFrontier.getHostKey(url);
+		final int scheme_end = key.indexOf("://");
+		if (scheme_end < 0 || scheme_end + 3 >= key.length())
+			return null;
+		return key.substring(scheme_end + 3);
+	}
+
+	/**
+	 * Drop the expired lookups and, if there are still too many, others, to bound the cache.
+	 */
+	private void trim() {
+		final long now = System.currentTimeMillis();
+		Iterator<Lookup> iterator = lookups.values().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().isExpired(now))
+				iterator.remove();
+
+		iterator = lookups.values().iterator();
+		int removed = 0;
+		while (lookups.size() > MAX_ENTRIES * 3 / 4 && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			removed++;
+		}
+		if (removed > 0)
+			UserPrefs.debugTxt(TAG, "cache full; dropped " + removed + " lookups.");
+	}
+
+	/**
+	 * One lookup of a host, which other threads may wait on while it is under way.
+	 */
+	private final class Lookup {
+		private final String host;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile InetAddress[] addresses = null;
+		private volatile String failure = null;
+		private volatile long expires = Long.MAX_VALUE;
+
+		Lookup(final String host) {
+			this.host = host;
+		}
+
+		void run() {
+			try {
+				addresses = InetAddress.getAllByName(host);
+				expires = System.currentTimeMillis() + ttl;
+			} catch (UnknownHostException uhe) {
+				failure = uhe.getMessage() != null ? uhe.getMessage() : host;
+				expires = System.currentTimeMillis() + negative_ttl;
+			} catch (RuntimeException re) {
+				// e.g. a security manager refusing the lookup; don't cache it.
+				failure = host + ": " + re;
+				expires = 0;
+			} finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Wait for the lookup, if under way, and get its addresses.
+		 */
+		InetAddress[] get() throws UnknownHostException {
+			try {
+				done.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new UnknownHostException(host + " (interrupted while waiting for the lookup)");
+			}
+			if (addresses == null)
+				throw new UnknownHostException(failure);
+			return addresses.clone();
+		}
+
+		/** In-progress lookups never expire. **/
+		boolean isExpired(final long now) {
+			return expires <= now;
+		}
+	}
+
+}
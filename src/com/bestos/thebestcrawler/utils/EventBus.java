@@ -0,0 +1,265 @@
+// EventBus.java
+// EventBus
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.bestos.thebestcrawler.UserPrefs;
+
+/**
+ * The EventBus moves listener callbacks off the threads doing the work. Queues and workers
+ * publish an {@link Event} instead of calling their listeners, and a single dispatcher thread
+ * hands the events, in batches, to the {@link Subscriber} of each event's source, so that the
+ * cost of dispatching does not grow with the number of subscribers.<BR><BR>
+ * Publishing never blocks and never takes a lock: events go on one shared lock-free queue which
+ * only the dispatcher reads, so the cost of the bus does not grow with the number of publishing
+ * threads (there may be thousands of short-lived fetch threads). If the queue is full because
+ * subscribers are too slow, droppable events are dropped (and counted) rather than slowing the
+ * publisher down; events which are not droppable, such as a worker going idle, are always queued,
+ * so that a listener's view of a state is never left stale. Events from one thread are delivered
+ * in the order they were published; events from different threads may be interleaved. The
+ * dispatcher sleeps while there are no events, and is woken by the next publisher.
+ * @author Michael Morris
+ * @version 5/16/2013
+ *
+ */
+public class EventBus {
+
+	private static final String TAG = "EventBus";
+
+	/** The number of events which may be waiting to be dispatched. **/
+	private static final int MAX_QUEUED_EVENTS = 64 * 1024;
+
+	/** The most events handed to the subscribers in one batch. **/
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	/**
+	 * Something which happened, published by its source.
+	 */
+	public static abstract class Event {
+
+		private final Object source;
+
+		private final boolean droppable;
+
+		/**
+		 * Construct an Event which may be dropped when the bus is full.
+		 * @param source The object the event happened to.
+		 */
+		protected Event(final Object source) {
+			this(source, true);
+		}
+
+		/**
+		 * Construct an Event.
+		 * @param source The object the event happened to.
+		 * @param droppable False if the event must be delivered even when the bus is full, e.g. a change of state.
+		 */
+		protected Event(final Object source, final boolean droppable) {
+			this.source = source;
+			this.droppable = droppable;
+		}
+
+		/**
+		 * Get the object the event happened to.
+		 * @return The source.
+		 */
+		public final Object getSource() {
+			return source;
+		}
+
+		/**
+		 * Check whether the event may be dropped when the bus is full.
+		 * @return True if droppable.
+		 */
+		public final boolean isDroppable() {
+			return droppable;
+		}
+
+	}
+
+	/**
+	 * A Subscriber is handed the events published by its source, in batches, on the dispatcher thread.
+	 */
+	public static interface Subscriber {
+
+		/**
+		 * Called on the dispatcher thread with the events its source published since the last call.
+		 * @param events The events, which must not be modified.
+		 */
+		public void onEvents(final List<Event> events);
+
+	}
+
+	private static EventBus event_bus = null;
+
+	/** The subscriber of each source. **/
+	private final ConcurrentHashMap<Object, Subscriber> subscribers;
+
+	private final ConcurrentLinkedQueue<Event> queue;
+
+	/** The number of events on the queue, kept apart since the queue's size() is not constant time. **/
+	private final AtomicInteger num_queued;
+
+	private final AtomicLong num_dropped;
+
+	/** True while the dispatcher is parked, or about to park, waiting for events. **/
+	private final AtomicBoolean dispatcher_parked;
+
+	private volatile Thread dispatcher = null;
+
+	private EventBus() {
+		subscribers = new ConcurrentHashMap<Object, Subscriber>();
+		queue = new ConcurrentLinkedQueue<Event>();
+		num_queued = new AtomicInteger();
+		num_dropped = new AtomicLong();
+		dispatcher_parked = new AtomicBoolean();
+	}
+
+	/**
+	 * Get the EventBus.
+	 * @return The EventBus.
+	 */
+	public static final synchronized EventBus getEventBus() {
+		if (event_bus == null)
+			event_bus = new EventBus();
+		return event_bus;
+	}
+
+	/**
+	 * (Thread-Safe) Subscribe to the events of a source, replacing its subscriber if it has one.
+	 * @param source The source whose events to hand to the subscriber.
+	 * @param subscriber The subscriber to add.
+	 */
+	public void subscribe(final Object source, final Subscriber subscriber) {
+		if (source == null || subscriber == null)
+			throw new IllegalArgumentException("must specify a source and a subscriber; source[" + source + "], subscriber[" + subscriber + "]");
+		subscribers.put(source, subscriber);
+		startDispatcher();
+	}
+
+	/**
+	 * (Thread-Safe) Remove the subscriber of a source. Its events still waiting are not delivered.
+	 * @param source The source.
+	 */
+	public void unsubscribe(final Object source) {
+		subscribers.remove(source);
+	}
+
+	/**
+	 * (Thread-Safe) Publish an event. Never blocks; if too many events are waiting to be
+	 * dispatched, the event is dropped, unless it is not droppable.
+	 * @param event The event.
+	 * @return True if the event was queued, false if its source has no subscriber or it was dropped.
+	 */
+	public boolean publish(final Event event) {
+		if (!subscribers.containsKey(event.getSource()))
+			return false;
+		if (num_queued.incrementAndGet() > MAX_QUEUED_EVENTS && event.isDroppable()) {
+			num_queued.decrementAndGet();
+			num_dropped.incrementAndGet();
+			return false;
+		}
+		queue.offer(event);
+
+		// Wake the dispatcher, unless it is already awake.
+		if (dispatcher_parked.get() && dispatcher_parked.compareAndSet(true, false)) {
+			final Thread thread = dispatcher;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of events dropped because the queue was full.
+	 * @return The number of dropped events.
+	 */
+	public long getNumDropped() {
+		return num_dropped.get();
+	}
+
+	private synchronized void startDispatcher() {
+		if (dispatcher != null)
+			return;
+		dispatcher = new Thread(TAG) {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * The dispatcher thread's loop: drain the queue, then hand each source's events to its subscriber.
+	 */
+	private void dispatch() {
+		final List<Event> batch = new ArrayList<Event>(256);
+		// Each source's events in the batch, in the order they were published; sources keep their lists between batches.
+		final Map<Object, List<Event>> by_source = new IdentityHashMap<Object, List<Event>>();
+		final List<List<Event>> busy = new ArrayList<List<Event>>();
+		final List<Object> busy_sources = new ArrayList<Object>();
+		while (true) {
+			batch.clear();
+			Event event;
+			while (batch.size() < MAX_BATCH_SIZE && (event = queue.poll()) != null)
+				batch.add(event);
+			num_queued.addAndGet(-batch.size());
+
+			// Park until a publisher wakes us; checking the queue after saying so means no event is missed.
+			if (batch.isEmpty()) {
+				dispatcher_parked.set(true);
+				if (queue.isEmpty())
+					LockSupport.park(this);
+				dispatcher_parked.set(false);
+				continue;
+			}
+
+			for (Event queued : batch) {
+				List<Event> events = by_source.get(queued.getSource());
+				if (events == null) {
+					events = new ArrayList<Event>();
+					by_source.put(queued.getSource(), events);
+				}
+				if (events.isEmpty()) {
+					busy.add(events);
+					busy_sources.add(queued.getSource());
+				}
+				events.add(queued);
+			}
+
+			for (int i = 0; i < busy.size(); i++) {
+				final Subscriber subscriber = subscribers.get(busy_sources.get(i));
+				if (subscriber != null) {
+					try {
+						subscriber.onEvents(Collections.unmodifiableList(busy.get(i)));
+					} catch (RuntimeException re) {
+						UserPrefs.errorTxt(TAG, "RuntimeException thrown by a subscriber; continuing.", re.toString());
+					}
+				}
+				busy.get(i).clear();
+			}
+			busy.clear();
+			busy_sources.clear();
+			// Forget the sources which have since unsubscribed.
+			if (by_source.size() > subscribers.size())
+				by_source.keySet().retainAll(subscribers.keySet());
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+// FingerprintUtil.java
+// FingerprintUtil
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+/**
+ * Utility for generating 64-bit fingerprints of urls. Fingerprints are used in place
+ * of the full url strings wherever only identity is needed (e.g. the seen-url set),
+ * so that no String or boxed value has to be kept around.
+ *
+ * @author Michael Morris
+ * @version 5/6/2013
+ */
+public final class FingerprintUtil {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Value substituted when a string hashes to zero, since zero marks an empty slot in our tables. **/
+	private static final long ZERO_SUBSTITUTE = 0x9e3779b97f4a7c15L;
+
+	private FingerprintUtil() { }
+
+	/**
+	 * Compute the 64-bit fingerprint of the given string. The result is never 0, so callers
+	 * may use 0 as an "empty" marker.
+	 * @param str The string to fingerprint (must not be null).
+	 * @return A non-zero 64-bit fingerprint.
+	 */
+	public static long fingerprint(final CharSequence str) {
+
+		// FNV-1a over the utf-16 chars, followed by a finalizing mix so that the low bits
+		// (which our tables use for slot selection) depend on every char.
+		long hash = FNV_OFFSET_BASIS;
+		final int length = str.length();
+		for (int i = 0; i < length; i++) {
+			hash ^= str.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		hash = mix(hash);
+
+		return hash != 0L ? hash : ZERO_SUBSTITUTE;
+	}
+
+	/**
+	 * Finalizing mix (from MurmurHash3) used to spread the bits of a 64-bit value.
+	 * @param value The value to mix.
+	 * @return The mixed value.
+	 */
+	public static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+}
@@ -0,0 +1,954 @@
+// HostConnectionPool.java
+// HostConnectionPool
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.bestos.thebestcrawler.UserPrefs;
+
+/**
+ * The HostConnectionPool fetches pages over persistent HTTP/1.1 connections, keeping a few idle
+ * connections to each host so that the next fetch from the same host skips the TCP and TLS handshakes.
+ * A connection goes back to the pool only once its response has been read to the end (short unread
+ * remainders are read and thrown away), and idle connections are closed by a reaper thread once they
+ * have been idle for {@link UserPrefs#getConnectionIdleTimeout()} or for as long as the server said it
+ * would keep them.<BR><BR>
+ * Only GET is supported, with Content-Length, chunked and read-until-close bodies, and redirects are
+ * followed. A pooled connection the server has since closed is replaced by a new one transparently.
+ * Hosts are resolved through the {@link DnsCache}.<BR><BR>
+ * The proxy of each request is chosen by the default {@link ProxySelector}, so the usual http.proxyHost,
+ * https.proxyHost and socksProxyHost settings apply. Plain http goes through an HTTP proxy as absolute-form
+ * requests, and https through a CONNECT tunnel; a SOCKS proxy resolves the host itself.
+ * @author Michael Morris
+ * @version 5/25/2013
+ *
+ */
+public class HostConnectionPool {
+
+	private static final String TAG = "HostConnectionPool";
+
+	/** The User-Agent sent with every request. **/
+	public static final String USER_AGENT = "TheBestCrawler";
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private static final int MAX_REDIRECTS = 5;
+
+	/** The most bytes of an unread body read and thrown away to keep its connection. **/
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	/** The longest status or header line accepted. **/
+	private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private static HostConnectionPool host_connection_pool = null;
+
+	private final int max_idle_per_host;
+
+	private final long idle_timeout;
+
+	private final SSLSocketFactory ssl_factory;
+
+	/** The idle connections to each host, by host key, the most recently used last. Guarded by itself. **/
+	private final Map<String, ArrayDeque<Connection>> idle;
+
+	private final ScheduledExecutorService reaper;
+
+	private final AtomicLong connections_opened;
+
+	private final AtomicLong connections_reused;
+
+	/**
+	 * Construct a HostConnectionPool.
+	 * @param max_idle_per_host The most idle connections kept to each host.
+	 * @param idle_timeout The longest a connection is kept idle, in milliseconds.
+	 */
+	public HostConnectionPool(final int max_idle_per_host, final long idle_timeout) {
+		if (max_idle_per_host < 0 || idle_timeout <= 0)
+			throw new IllegalArgumentException("must specify a pool size and a positive idle timeout; max_idle_per_host["
+											   + max_idle_per_host + "], idle_timeout[" + idle_timeout + "]");
+		this.max_idle_per_host = max_idle_per_host;
+		this.idle_timeout = idle_timeout;
+		ssl_factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+		idle = new HashMap<String, ArrayDeque<Connection>>();
+		connections_opened = new AtomicLong();
+		connections_reused = new AtomicLong();
+
+		reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, TAG + "-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long period = Math.max(1000, idle_timeout / 2);
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reap(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the shared HostConnectionPool, sized by the {@link UserPrefs} when first used.
+	 * @return The HostConnectionPool.
+	 */
+	public static final synchronized HostConnectionPool getHostConnectionPool() {
+		if (host_connection_pool == null)
+			host_connection_pool = new HostConnectionPool(UserPrefs.getUserPrefs().getMaxIdleConnectionsPerHost(),
+														  UserPrefs.getUserPrefs().getConnectionIdleTimeout());
+		return host_connection_pool;
+	}
+
+	/**
+	 * (Thread-Safe) GET a url, following redirects, over a pooled connection to its host if there is one.
+	 * @param url The http or https url.
+	 * @param read_timeout The longest to wait for each read from the server, in milliseconds.
+	 * @return The response, whose body must be read or not and then closed, to give back the connection.
+	 * @throws IOException If the server cannot be reached or does not answer with a valid response.
+	 */
+	public Response get(final URL url, final int read_timeout) throws IOException {
+		return get(url, null, read_timeout);
+	}
+
+	/**
+	 * (Thread-Safe) GET a url with extra request headers, e.g. those of a conditional GET, following redirects.
+	 * @param url The http or https url.
+	 * @param request_headers The extra headers by name, or null for none.
+	 * @param read_timeout The longest to wait for each read from the server, in milliseconds.
+	 * @return The response, whose body must be read or not and then closed, to give back the connection.
+	 * @throws IOException If the server cannot be reached or does not answer with a valid response.
+	 */
+	public Response get(final URL url, final Map<String, String> request_headers, final int read_timeout) throws IOException {
+		URL current = url;
+		for (int redirects = 0; ; redirects++) {
+			final Response response = send(current, request_headers, read_timeout);
+			final String location = response.getHeader("Location");
+			if (!isRedirect(response.getStatusCode()) || location == null || redirects >= MAX_REDIRECTS)
+				return response;
+			response.close();
+			current = new URL(current, location);
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of connections opened since the pool was created.
+	 * @return The number of connections.
+	 */
+	public long getConnectionsOpened() {
+		return connections_opened.get();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of requests sent over a connection kept from an earlier request.
+	 * @return The number of requests.
+	 */
+	public long getConnectionsReused() {
+		return connections_reused.get();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of idle connections in the pool.
+	 * @return The number of connections.
+	 */
+	public int getNumIdle() {
+		synchronized (idle) {
+			int count = 0;
+			for (ArrayDeque<Connection> connections : idle.values())
+				count += connections.size();
+			return count;
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Close every idle connection, e.g. at the end of a crawl. Connections in use are
+	 * still given back afterwards.
+	 */
+	public void closeIdle() {
+		reap(Long.MAX_VALUE);
+	}
+
+	private static boolean isRedirect(final int status) {
+		return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+	}
+
+	/**
+	 * Send one request, without following redirects.
+	 */
+	private Response send(final URL url, final Map<String, String> request_headers, final int read_timeout) throws IOException {
+		final String protocol = url.getProtocol().toLowerCase(Locale.US);
+		if (!protocol.equals("http") && !protocol.equals("https"))
+			throw new IOException("unsupported protocol[" + protocol + "] of url[" + url + "]");
+		final boolean secure = protocol.equals("https");
+		final String host = url.getHost();
+		if (host == null || host.isEmpty())
+			throw new IOException("no host in url[" + url + "]");
+		final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		final Proxy proxy = selectProxy(protocol, host, port);
+		// Connections through different proxies, or none, are pooled apart.
+		final String key = protocol + "://" + host.toLowerCase(Locale.US) + ":" + port
+						   + (proxy.type() == Proxy.Type.DIRECT ? "" : " via " + proxy);
+		final boolean absolute_form = !secure && proxy.type() == Proxy.Type.HTTP;
+		final byte[] request = buildRequest(url, host, port, port == url.getDefaultPort(), absolute_form, request_headers);
+
+		// Try the pooled connections first; the server may have closed any of them since.
+		Connection connection;
+		while ((connection = takeIdle(key)) != null) {
+			try {
+				final Response response = connection.exchange(url, request, read_timeout);
+				connections_reused.incrementAndGet();
+				return response;
+			} catch (SocketTimeoutException ste) {
+				// The server is slow, not gone; don't send the request again.
+				connection.close();
+				throw ste;
+			} catch (IOException ioe) {
+				connection.close();
+			}
+		}
+
+		connection = open(key, host, port, secure, proxy);
+		try {
+			return connection.exchange(url, request, read_timeout);
+		} catch (IOException ioe) {
+			connection.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Build a GET request; in absolute form, naming the scheme and host in the request line, if it goes to an HTTP proxy.
+	 */
+	private static byte[] buildRequest(final URL url, final String host, final int port, final boolean default_port,
+									   final boolean absolute_form, final Map<String, String> request_headers) throws IOException {
+		final String authority = default_port ? host : host + ":" + port;
+		final String target = absolute_form ? url.getProtocol().toLowerCase(Locale.US) + "://" + authority + requestTarget(url) : requestTarget(url);
+		final StringBuilder request = new StringBuilder(128 + target.length());
+		request.append("GET ").append(target).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(authority).append("\r\n");
+		request.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+		request.append("Accept: text/html, text/plain;q=0.9, */*;q=0.1\r\n");
+		request.append("Connection: keep-alive\r\n");
+		if (request_headers != null) {
+			for (Map.Entry<String, String> header : request_headers.entrySet()) {
+				if (!isHeaderSafe(header.getKey()) || !isHeaderSafe(header.getValue()))
+					throw new IOException("invalid request header[" + header.getKey() + "]");
+				request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+		request.append("\r\n");
+		return request.toString().getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * Get the request target of a url, its path and query, with any non-ASCII characters percent-encoded
+	 * as UTF-8 so that the request line is all ASCII.
+	 * @throws IOException If the url holds a space or control character, which could end the request line early.
+	 */
+	private static String requestTarget(final URL url) throws IOException {
+		String target = url.getPath();
+		if (target == null || target.isEmpty())
+			target = "/";
+		if (url.getQuery() != null)
+			target += "?" + url.getQuery();
+
+		StringBuilder encoded = null;
+		for (int i = 0; i < target.length(); i++) {
+			final char c = target.charAt(i);
+			if (c <= ' ' || c == 0x7F)
+				throw new IOException("invalid character in request target[" + url + "]");
+			if (c < 0x80) {
+				if (encoded != null)
+					encoded.append(c);
+				continue;
+			}
+			if (encoded == null)
+				encoded = new StringBuilder(target.length() + 16).append(target, 0, i);
+			final int end = Character.isHighSurrogate(c) && i + 1 < target.length() ? i + 2 : i + 1;
+			for (byte b : target.substring(i, end).getBytes(UTF_8))
+				encoded.append('%').append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+			i = end - 1;
+		}
+		return encoded != null ? encoded.toString() : target;
+	}
+
+	/**
+	 * Check that a request header name or value cannot end the header early.
+	 */
+	private static boolean isHeaderSafe(final String str) {
+		return str != null && str.indexOf('\r') < 0 && str.indexOf('\n') < 0;
+	}
+
+	/**
+	 * Get the proxy the default {@link ProxySelector} chooses for a host, or {@link Proxy#NO_PROXY}.
+	 */
+	private static Proxy selectProxy(final String protocol, final String host, final int port) {
+		final ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null)
+			return Proxy.NO_PROXY;
+		try {
+			final List<Proxy> proxies = selector.select(new URI(protocol, null, host, port, "/", null, null));
+			return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+		} catch (URISyntaxException use) {
+			return Proxy.NO_PROXY;
+		} catch (IllegalArgumentException iae) {
+			return Proxy.NO_PROXY;
+		}
+	}
+
+	private Connection open(final String key, final String host, final int port, final boolean secure, final Proxy proxy) throws IOException {
+		final Socket plain;
+		try {
+			plain = connect(host, port, proxy);
+		} catch (IOException ioe) {
+			if (proxy.type() != Proxy.Type.DIRECT)
+				connectFailed(proxy, secure ? "https" : "http", host, port, ioe);
+			throw ioe;
+		}
+		try {
+			if (secure && proxy.type() == Proxy.Type.HTTP)
+				tunnel(plain, host, port);
+			Socket socket = plain;
+			if (secure) {
+				final SSLSocket ssl = (SSLSocket)ssl_factory.createSocket(plain, host, port, true);
+				final SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.setSoTimeout(CONNECT_TIMEOUT);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+			connections_opened.incrementAndGet();
+			return new Connection(key, socket);
+		} catch (IOException ioe) {
+			try {
+				plain.close();
+			} catch (IOException close) { /* Nothing more to do. */ }
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Connect to a host, directly or through a proxy.
+	 */
+	private static Socket connect(final String host, final int port, final Proxy proxy) throws IOException {
+		final SocketAddress proxy_address = proxy.address();
+		if (proxy.type() == Proxy.Type.DIRECT || !(proxy_address instanceof InetSocketAddress))
+			return connect(host, port);
+		if (proxy.type() == Proxy.Type.HTTP) {
+			final InetSocketAddress address = (InetSocketAddress)proxy_address;
+			return connect(address.getHostString(), address.getPort());
+		}
+
+		// A SOCKS proxy is given the host name, and resolves it itself.
+		final Socket socket = new Socket(proxy);
+		try {
+			socket.connect(InetSocketAddress.createUnresolved(host, port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			return socket;
+		} catch (IOException ioe) {
+			try {
+				socket.close();
+			} catch (IOException close) { /* Nothing more to do. */ }
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Tell the default {@link ProxySelector} that a proxy could not be reached.
+	 */
+	private static void connectFailed(final Proxy proxy, final String protocol, final String host, final int port, final IOException ioe) {
+		final ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null)
+			return;
+		try {
+			selector.connectFailed(new URI(protocol, null, host, port, "/", null, null), proxy.address(), ioe);
+		} catch (URISyntaxException use) { /* Nothing to report it against. */ }
+	}
+
+	/**
+	 * Open a tunnel to a host through the HTTP proxy a socket is connected to, with CONNECT.
+	 * @throws IOException If the proxy refuses, e.g. with 407 Proxy Authentication Required.
+	 */
+	private static void tunnel(final Socket socket, final String host, final int port) throws IOException {
+		final String authority = host + ":" + port;
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+		final OutputStream out = socket.getOutputStream();
+		out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\nUser-Agent: " + USER_AGENT + "\r\n\r\n").getBytes(ISO_8859_1));
+		out.flush();
+
+		// Read the proxy's answer a byte at a time, so nothing of the tunnel is read ahead.
+		final InputStream in = socket.getInputStream();
+		final String status_line = readTunnelLine(in);
+		final String[] parts = status_line.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/") || !parts[1].startsWith("2"))
+			throw new IOException("proxy refused a tunnel to " + authority + "; status line[" + status_line + "]");
+		while (!readTunnelLine(in).isEmpty()) { }
+	}
+
+	private static String readTunnelLine(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder(64);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1)
+				throw new EOFException("proxy closed the connection before opening a tunnel");
+			if (line.length() >= MAX_LINE_LENGTH)
+				throw new IOException("line longer than " + MAX_LINE_LENGTH + " bytes from the proxy");
+			if (b != '\r')
+				line.append((char)b);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Connect to the first of the host's addresses, from the {@link DnsCache}, which answers.
+	 */
+	private static Socket connect(final String host, final int port) throws IOException {
+		IOException failure = null;
+		for (InetAddress address : DnsCache.getDnsCache().resolve(host)) {
+			final Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+				socket.setTcpNoDelay(true);
+				return socket;
+			} catch (IOException ioe) {
+				try {
+					socket.close();
+				} catch (IOException close) { /* Nothing more to do. */ }
+				failure = ioe;
+			}
+		}
+		throw failure != null ? failure : new IOException("no addresses for host[" + host + "]");
+	}
+
+	/**
+	 * Take the most recently used idle connection to a host which has not yet expired.
+	 */
+	private Connection takeIdle(final String key) {
+		final long now = System.currentTimeMillis();
+		List<Connection> expired = null;
+		Connection connection = null;
+		synchronized (idle) {
+			final ArrayDeque<Connection> connections = idle.get(key);
+			while (connections != null && connection == null && !connections.isEmpty()) {
+				final Connection candidate = connections.pollLast();
+				if (candidate.expires > now) {
+					connection = candidate;
+				} else {
+					if (expired == null)
+						expired = new ArrayList<Connection>(2);
+					expired.add(candidate);
+				}
+			}
+			if (connections != null && connections.isEmpty())
+				idle.remove(key);
+		}
+		if (expired != null)
+			for (Connection stale : expired)
+				stale.close();
+		return connection;
+	}
+
+	/**
+	 * Give back a connection whose response has been read to the end.
+	 */
+	private void release(final Connection connection) {
+		final long now = System.currentTimeMillis();
+		connection.expires = now + Math.min(idle_timeout, connection.server_timeout);
+		boolean kept = false;
+		synchronized (idle) {
+			ArrayDeque<Connection> connections = idle.get(connection.key);
+			if (connections == null) {
+				connections = new ArrayDeque<Connection>(Math.max(1, max_idle_per_host));
+				idle.put(connection.key, connections);
+			}
+			if (connections.size() < max_idle_per_host) {
+				connections.addLast(connection);
+				kept = true;
+			} else if (connections.isEmpty()) {
+				idle.remove(connection.key);
+			}
+		}
+		if (!kept)
+			connection.close();
+	}
+
+	/**
+	 * Close the idle connections which expire before a time.
+	 */
+	private void reap(final long now) {
+		final List<Connection> expired = new ArrayList<Connection>();
+		synchronized (idle) {
+			final Iterator<ArrayDeque<Connection>> hosts = idle.values().iterator();
+			while (hosts.hasNext()) {
+				final ArrayDeque<Connection> connections = hosts.next();
+				// The least recently used are first.
+				while (!connections.isEmpty() && connections.peekFirst().expires <= now)
+					expired.add(connections.pollFirst());
+				if (connections.isEmpty())
+					hosts.remove();
+			}
+		}
+		for (Connection connection : expired)
+			connection.close();
+		if (!expired.isEmpty())
+			UserPrefs.debugTxt(TAG, "closed " + expired.size() + " idle connections.");
+	}
+
+	/**
+	 * One open connection to a host, used by one request at a time.
+	 */
+	private final class Connection {
+		private final String key;
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+
+		/** How long the server said it keeps idle connections, in milliseconds. **/
+		private long server_timeout = Long.MAX_VALUE;
+
+		/** When this connection stops being reusable; set when it is given back. **/
+		private long expires = 0;
+
+		Connection(final String key, final Socket socket) throws IOException {
+			this.key = key;
+			this.socket = socket;
+			in = new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE);
+			out = new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE);
+		}
+
+		/**
+		 * Send a request and read the head of its response.
+		 */
+		Response exchange(final URL url, final byte[] request, final int read_timeout) throws IOException {
+			socket.setSoTimeout(read_timeout);
+			out.write(request);
+			out.flush();
+
+			String status_line;
+			int status;
+			Map<String, List<String>> headers;
+			do {
+				// Skip any interim (1xx) responses.
+				status_line = readLine();
+				if (status_line == null)
+					throw new EOFException("connection closed before a response");
+				status = parseStatus(status_line);
+				headers = readHeaders();
+			} while (status >= 100 && status < 200);
+
+			final boolean http_1_0 = status_line.startsWith("HTTP/1.0");
+			final String connection_header = firstValue(headers, "Connection");
+			boolean keep_alive = connection_header == null
+								 ? !http_1_0
+								 : !hasToken(connection_header, "close") && (!http_1_0 || hasToken(connection_header, "keep-alive"));
+
+			// Each response says afresh how long the server will keep the connection.
+			final String keep_alive_header = firstValue(headers, "Keep-Alive");
+			server_timeout = keep_alive_header != null ? parseKeepAliveTimeout(keep_alive_header) : Long.MAX_VALUE;
+
+			// Work out where the body ends.
+			boolean chunked = false;
+			long length = -1;
+			final String transfer_encoding = firstValue(headers, "Transfer-Encoding");
+			if (status == 204 || status == 304) {
+				length = 0;
+			} else if (transfer_encoding != null && transfer_encoding.toLowerCase(Locale.US).trim().endsWith("chunked")) {
+				chunked = true;
+			} else {
+				final String content_length = firstValue(headers, "Content-Length");
+				if (content_length != null) {
+					try {
+						length = Long.parseLong(content_length.trim());
+					} catch (NumberFormatException nfe) {
+						length = -1;
+					}
+				}
+				if (length < 0)
+					keep_alive = false;	// Read until the server closes.
+			}
+
+			return new Response(this, url, status, headers, chunked, length, keep_alive);
+		}
+
+		/**
+		 * Read a line ending in LF, without the line ending.
+		 * @return The line, or null if the connection closed before it started.
+		 */
+		String readLine() throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				if (line.size() >= MAX_LINE_LENGTH)
+					throw new IOException("line longer than " + MAX_LINE_LENGTH + " bytes from " + key);
+				line.write(b);
+			}
+			if (b == -1 && line.size() == 0)
+				return null;
+			final byte[] bytes = line.toByteArray();
+			final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+			return new String(bytes, 0, length, ISO_8859_1);
+		}
+
+		private int parseStatus(final String status_line) throws IOException {
+			final String[] parts = status_line.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("invalid status line[" + status_line + "] from " + key);
+			try {
+				return Integer.parseInt(parts[1]);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("invalid status line[" + status_line + "] from " + key);
+			}
+		}
+
+		private Map<String, List<String>> readHeaders() throws IOException {
+			final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			String name = null;
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty()) {
+				if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && name != null) {
+					// A folded continuation of the previous header.
+					final List<String> values = headers.get(name);
+					values.set(values.size() - 1, values.get(values.size() - 1) + " " + line.trim());
+					continue;
+				}
+				final int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				name = line.substring(0, colon).trim();
+				List<String> values = headers.get(name);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					headers.put(name, values);
+				}
+				values.add(line.substring(colon + 1).trim());
+			}
+			if (line == null)
+				throw new EOFException("connection closed inside the response headers from " + key);
+			return headers;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ioe) { /* Nothing more to do. */ }
+		}
+	}
+
+	private static String firstValue(final Map<String, List<String>> headers, final String name) {
+		final List<String> values = headers.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	private static boolean hasToken(final String header, final String token) {
+		for (String part : header.split(","))
+			if (part.trim().equalsIgnoreCase(token))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Get the idle timeout of a "Keep-Alive: timeout=5, max=100" header, less a second for safety.
+	 */
+	private static long parseKeepAliveTimeout(final String header) {
+		for (String part : header.split(",")) {
+			final String[] pair = part.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("timeout")) {
+				try {
+					return Math.max(0, Long.parseLong(pair[1].trim()) * 1000 - 1000);
+				} catch (NumberFormatException nfe) {
+					break;
+				}
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * The response to a GET. Its body is read once, through {@link #getInputStream()}; closing the
+	 * response, or the stream, gives the connection back to the pool if it can be reused.
+	 */
+	public final class Response implements Closeable {
+		private final Connection connection;
+		private final URL url;
+		private final int status;
+		private final Map<String, List<String>> headers;
+		private final boolean chunked;
+		private final long content_length;
+		private final boolean keep_alive;
+		private final InputStream body;
+
+		/** The bytes left of a Content-Length body, or of the current chunk. **/
+		private long remaining;
+		private boolean first_chunk = true;
+		private boolean done;
+		private long bytes_read = 0;
+		private boolean closed = false;
+
+		Response(final Connection connection, final URL url, final int status, final Map<String, List<String>> headers,
+				 final boolean chunked, final long content_length, final boolean keep_alive) {
+			this.connection = connection;
+			this.url = url;
+			this.status = status;
+			this.headers = Collections.unmodifiableMap(headers);
+			this.chunked = chunked;
+			this.content_length = content_length;
+			this.keep_alive = keep_alive;
+			remaining = chunked ? 0 : content_length;
+			done = !chunked && content_length == 0;
+			body = new Body();
+		}
+
+		/**
+		 * Get the url this response answers, the last one if redirects were followed.
+		 * @return The url.
+		 */
+		public URL getUrl() {
+			return url;
+		}
+
+		/**
+		 * Get the status code, e.g. 200.
+		 * @return The status code.
+		 */
+		public int getStatusCode() {
+			return status;
+		}
+
+		/**
+		 * Get the response headers.
+		 * @return The headers, by case-insensitive name.
+		 */
+		public Map<String, List<String>> getHeaderFields() {
+			return headers;
+		}
+
+		/**
+		 * Get the first value of a response header.
+		 * @param name The header name, in any case.
+		 * @return The value, or null if the header was not sent.
+		 */
+		public String getHeader(final String name) {
+			return firstValue(headers, name);
+		}
+
+		/**
+		 * Get the Content-Type header.
+		 * @return The content type, or null if not sent.
+		 */
+		public String getContentType() {
+			return getHeader("Content-Type");
+		}
+
+		/**
+		 * Get the length of the body, from the Content-Length header.
+		 * @return The length in bytes, or -1 if not known (e.g. a chunked body).
+		 */
+		public long getContentLength() {
+			return chunked ? -1 : content_length;
+		}
+
+		/**
+		 * Get the number of body bytes read from the connection so far, as sent, e.g. still compressed.
+		 * @return The number of bytes.
+		 */
+		public long getBytesRead() {
+			return bytes_read;
+		}
+
+		/**
+		 * Get the stream of the body, which ends where the body ends.
+		 * @return The body stream.
+		 */
+		public InputStream getInputStream() {
+			return body;
+		}
+
+		/**
+		 * Finish with the response. The connection is kept for the next request to the host if the
+		 * body was read to the end, or has only a little left to read; otherwise it is closed.
+		 */
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (keep_alive && drain())
+				release(connection);
+			else
+				connection.close();
+		}
+
+		/**
+		 * Read and throw away the rest of the body, if it is short.
+		 * @return True if the body was read to its end.
+		 */
+		private boolean drain() {
+			if (done)
+				return true;
+			if (!chunked && remaining > MAX_DRAIN_BYTES)
+				return false;
+			final byte[] scrap = ReadBufferPool.acquire(MAX_DRAIN_BYTES);
+			try {
+				long drained = 0;
+				int read;
+				while (drained <= MAX_DRAIN_BYTES && (read = readBody(scrap, 0, scrap.length)) != -1)
+					drained += read;
+				return done;
+			} catch (IOException ioe) {
+				return false;
+			} finally {
+				ReadBufferPool.release(scrap);
+			}
+		}
+
+		private int readBody(final byte[] bytes, final int offset, final int count) throws IOException {
+			if (count == 0)
+				return 0;
+			if (done)
+				return -1;
+			final InputStream in = connection.in;
+
+			if (chunked) {
+				if (remaining == 0 && !nextChunk())
+					return -1;
+				final int read = in.read(bytes, offset, (int)Math.min(count, remaining));
+				if (read < 0)
+					throw new EOFException("connection closed inside a chunk from " + connection.key);
+				remaining -= read;
+				bytes_read += read;
+				return read;
+			}
+
+			if (remaining >= 0) {
+				final int read = in.read(bytes, offset, (int)Math.min(count, remaining));
+				if (read < 0)
+					throw new EOFException("connection closed " + remaining + " bytes before the end of the body from " + connection.key);
+				remaining -= read;
+				bytes_read += read;
+				if (remaining == 0)
+					done = true;
+				return read;
+			}
+
+			// No length given; the body runs until the server closes the connection.
+			final int read = in.read(bytes, offset, count);
+			if (read < 0)
+				done = true;
+			else
+				bytes_read += read;
+			return read;
+		}
+
+		/**
+		 * Read the size line of the next chunk.
+		 * @return False once the last chunk and its trailers have been read.
+		 */
+		private boolean nextChunk() throws IOException {
+			if (!first_chunk) {
+				final String end = connection.readLine();	// The CRLF closing the previous chunk.
+				if (end == null || !end.isEmpty())
+					throw new IOException("invalid chunk ending from " + connection.key);
+			}
+			first_chunk = false;
+
+			final String size_line = connection.readLine();
+			if (size_line == null)
+				throw new EOFException("connection closed before a chunk from " + connection.key);
+			final int extension = size_line.indexOf(';');
+			try {
+				remaining = Long.parseLong((extension < 0 ? size_line : size_line.substring(0, extension)).trim(), 16);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("invalid chunk size[" + size_line + "] from " + connection.key);
+			}
+			if (remaining < 0)
+				throw new IOException("invalid chunk size[" + size_line + "] from " + connection.key);
+
+			if (remaining == 0) {
+				// Skip any trailers, up to the blank line ending the body.
+				String trailer;
+				while ((trailer = connection.readLine()) != null && !trailer.isEmpty()) { }
+				if (trailer == null)
+					throw new EOFException("connection closed inside the trailers from " + connection.key);
+				done = true;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the body, stopping at its end.
+		 */
+		private final class Body extends InputStream {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(final byte[] bytes, final int offset, final int count) throws IOException {
+				if (closed)
+					throw new IOException("response closed");
+				if (offset < 0 || count < 0 || offset + count > bytes.length)
+					throw new IndexOutOfBoundsException("offset[" + offset + "], count[" + count + "], length[" + bytes.length + "]");
+				return readBody(bytes, offset, count);
+			}
+
+			@Override
+			public void close() {
+				Response.this.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+// PageDecoder.java
+// PageDecoder
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.PageRecord;
+
+/**
+ * Utility for turning the raw bytes of a retrieved page in to text. The charset is picked
+ * the way browsers pick it: a byte order mark first, then the charset of the Content-Type
+ * header, then a &lt;meta&gt; charset declaration within the first few KB of the page, and
+ * otherwise UTF-8.<BR><BR>
+ * Pages are decoded as they are read, through a {@link Reader} which reuses its thread's
+ * {@link CharsetDecoder} and pooled byte and char buffers, so the page is never copied whole.
+ *
+ * @author Michael Morris
+ * @version 5/22/2013
+ */
+public final class PageDecoder {
+
+	private static final String TAG = "PageDecoder";
+
+	/** How much of the start of a page is searched for a &lt;meta&gt; charset. **/
+	private static final int SNIFF_BYTES = 4096;
+
+	/** The size of each pooled char buffer, and the number kept for reuse. **/
+	private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_CHAR_BUFFERS = 64;
+
+	/** The charset used when a page does not say. **/
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+	private static final ConcurrentLinkedQueue<CharBuffer> free_char_buffers = new ConcurrentLinkedQueue<CharBuffer>();
+	private static final AtomicInteger num_free_char_buffers = new AtomicInteger();
+
+	/** Each thread's idle decoders, by charset; a decoder is taken out while a reader uses it. **/
+	private static final ThreadLocal<Map<Charset, CharsetDecoder>> thread_decoders = new ThreadLocal<Map<Charset, CharsetDecoder>>() {
+		@Override
+		protected Map<Charset, CharsetDecoder> initialValue() {
+			return new HashMap<Charset, CharsetDecoder>();
+		}
+	};
+
+	private PageDecoder() { }
+
+	/**
+	 * Open a reader over the text of a retrieved page, in the charset it declares.
+	 * @param page The page, whose body must still be live.
+	 * @return The reader, which should be closed to give back its buffers.
+	 * @throws IOException If the start of the body cannot be read.
+	 */
+	public static Reader openReader(final PageRecord page) throws IOException {
+		final byte[] head = readHead(page);
+		final Charset charset = detectCharset(page, head);
+		final InputStream in = page.getBody().openStream();
+		try {
+			// The decoder would turn a byte order mark in to a char of text; skip it.
+			long bom_length = bomLength(head);
+			while (bom_length > 0 && in.read() != -1)
+				bom_length--;
+		} catch (IOException ioe) {
+			in.close();
+			throw ioe;
+		}
+		return new DecodingReader(in, charset, page.getBodyLength());
+	}
+
+	/**
+	 * Pick the charset of a retrieved page: from its byte order mark, its Content-Type header
+	 * or a &lt;meta&gt; charset near its start, in that order.
+	 * @param page The page, whose body must still be live.
+	 * @return The charset, {@link #DEFAULT_CHARSET} if the page does not say.
+	 * @throws IOException If the start of the body cannot be read.
+	 */
+	public static Charset detectCharset(final PageRecord page) throws IOException {
+		return detectCharset(page, readHead(page));
+	}
+
+	private static Charset detectCharset(final PageRecord page, final byte[] head) {
+		Charset charset = charsetOfBom(head);
+		if (charset == null)
+			charset = charsetOfContentType(page.getHeader("Content-Type"));
+		if (charset == null)
+			charset = charsetOfMeta(head);
+		return charset != null ? charset : DEFAULT_CHARSET;
+	}
+
+	/**
+	 * Read the first SNIFF_BYTES of a page.
+	 */
+	private static byte[] readHead(final PageRecord page) throws IOException {
+		final byte[] head = new byte[Math.min(SNIFF_BYTES, page.getBodyLength())];
+		final InputStream in = page.getBody().openStream();
+		try {
+			int length = 0, read;
+			while (length < head.length && (read = in.read(head, length, head.length - length)) != -1)
+				length += read;
+			if (length < head.length) {
+				final byte[] shorter = new byte[length];
+				System.arraycopy(head, 0, shorter, 0, length);
+				return shorter;
+			}
+		} finally {
+			in.close();
+		}
+		return head;
+	}
+
+	/**
+	 * Get the charset named by the charset parameter of a Content-Type header.
+	 * @param content_type The header value, e.g. "text/html; charset=ISO-8859-1"; may be null.
+	 * @return The charset, or null if none is named or it is not supported.
+	 */
+	public static Charset charsetOfContentType(final String content_type) {
+		if (content_type == null)
+			return null;
+		final int index = content_type.toLowerCase(Locale.US).indexOf("charset=");
+		if (index < 0)
+			return null;
+		int start = index + "charset=".length();
+		int end = content_type.indexOf(';', start);
+		if (end < 0)
+			end = content_type.length();
+		String name = content_type.substring(start, end).trim();
+		if (name.length() >= 2 && (name.charAt(0) == '"' || name.charAt(0) == '\''))
+			name = name.substring(1, name.length() - 1).trim();
+		return forName(name);
+	}
+
+	private static Charset charsetOfBom(final byte[] head) {
+		switch (bomLength(head)) {
+			case 3:
+				return DEFAULT_CHARSET;
+			case 2:
+				return (head[0] & 0xFF) == 0xFE ? UTF_16BE : UTF_16LE;
+			default:
+				return null;
+		}
+	}
+
+	private static int bomLength(final byte[] head) {
+		if (head.length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF)
+			return 3;
+		if (head.length >= 2 && (((head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF)
+								 || ((head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE)))
+			return 2;
+		return 0;
+	}
+
+	/**
+	 * Find a &lt;meta charset="..."&gt; or &lt;meta http-equiv="Content-Type" content="...; charset=..."&gt;.
+	 */
+	private static Charset charsetOfMeta(final byte[] head) {
+		final String text = new String(head, Charset.forName("ISO-8859-1")).toLowerCase(Locale.US);
+		int meta = text.indexOf("<meta");
+		while (meta >= 0) {
+			int end = text.indexOf('>', meta);
+			if (end < 0)
+				end = text.length();
+			final int index = text.indexOf("charset", meta);
+			if (index >= 0 && index < end) {
+				int start = index + "charset".length();
+				while (start < end && (text.charAt(start) == ' ' || text.charAt(start) == '='
+									   || text.charAt(start) == '"' || text.charAt(start) == '\''))
+					start++;
+				int stop = start;
+				while (stop < end && isCharsetNameChar(text.charAt(stop)))
+					stop++;
+				final Charset charset = forName(text.substring(start, stop));
+				if (charset != null) {
+					// A page read as ASCII to find this can not really be UTF-16.
+					return charset.name().startsWith("UTF-16") ? DEFAULT_CHARSET : charset;
+				}
+			}
+			meta = text.indexOf("<meta", end);
+		}
+		return null;
+	}
+
+	private static boolean isCharsetNameChar(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == ':';
+	}
+
+	private static Charset forName(final String name) {
+		if (name == null || name.isEmpty())
+			return null;
+		try {
+			return Charset.forName(name);
+		} catch (IllegalCharsetNameException icne) {
+			UserPrefs.debugTxt(TAG, "illegal charset name[" + name + "]; ignoring.");
+		} catch (UnsupportedCharsetException uce) {
+			UserPrefs.debugTxt(TAG, "unsupported charset[" + name + "]; ignoring.");
+		}
+		return null;
+	}
+
+	private static CharsetDecoder takeDecoder(final Charset charset) {
+		CharsetDecoder decoder = thread_decoders.get().remove(charset);
+		if (decoder == null)
+			decoder = charset.newDecoder()
+							 .onMalformedInput(CodingErrorAction.REPLACE)
+							 .onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return decoder.reset();
+	}
+
+	private static void giveDecoder(final CharsetDecoder decoder) {
+		thread_decoders.get().put(decoder.charset(), decoder);
+	}
+
+	private static CharBuffer takeCharBuffer() {
+		final CharBuffer chars = free_char_buffers.poll();
+		if (chars != null) {
+			num_free_char_buffers.decrementAndGet();
+			return chars;
+		}
+		return CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	}
+
+	private static void giveCharBuffer(final CharBuffer chars) {
+		if (num_free_char_buffers.incrementAndGet() <= MAX_POOLED_CHAR_BUFFERS)
+			free_char_buffers.offer(chars);
+		else
+			num_free_char_buffers.decrementAndGet();
+	}
+
+	/**
+	 * Decodes a stream of bytes a buffer at a time. Used by one thread, which must close it.
+	 */
+	private static final class DecodingReader extends Reader {
+		private final InputStream in;
+		private final CharsetDecoder decoder;
+		private final byte[] byte_array;
+		private final ByteBuffer bytes;
+		private final CharBuffer chars;
+		private boolean end_of_input = false;
+		private boolean decoded = false;
+		private boolean flushed = false;
+		private boolean closed = false;
+
+		DecodingReader(final InputStream in, final Charset charset, final int expected_length) {
+			this.in = in;
+			decoder = takeDecoder(charset);
+			byte_array = ReadBufferPool.acquire(expected_length);
+			bytes = ByteBuffer.wrap(byte_array);
+			bytes.limit(0);
+			chars = takeCharBuffer();
+			chars.clear();
+			chars.limit(0);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!chars.hasRemaining() && !fill())
+				return -1;
+			return chars.get();
+		}
+
+		@Override
+		public int read(final char[] buffer, final int offset, final int length) throws IOException {
+			if (length == 0)
+				return 0;
+			if (!chars.hasRemaining() && !fill())
+				return -1;
+			final int n = Math.min(length, chars.remaining());
+			chars.get(buffer, offset, n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			giveDecoder(decoder);
+			ReadBufferPool.release(byte_array);
+			giveCharBuffer(chars);
+			in.close();
+		}
+
+		/**
+		 * Decode the next chars in to the empty char buffer.
+		 * @return False at the end of the text.
+		 */
+		private boolean fill() throws IOException {
+			if (closed)
+				throw new IOException("reader closed");
+			chars.clear();
+			while (chars.position() == 0 && !flushed) {
+				if (!end_of_input) {
+					bytes.compact();
+					final int read = in.read(byte_array, bytes.position(), bytes.remaining());
+					if (read < 0)
+						end_of_input = true;
+					else
+						bytes.position(bytes.position() + read);
+					bytes.flip();
+					if (!end_of_input)
+						decoder.decode(bytes, chars, false);
+				} else if (!decoded) {
+					// The last bytes, including any incomplete char, which becomes a replacement.
+					decoded = decoder.decode(bytes, chars, true).isUnderflow();
+				} else {
+					flushed = decoder.flush(chars).isUnderflow();
+				}
+			}
+			chars.flip();
+			return chars.hasRemaining();
+		}
+	}
+
+}
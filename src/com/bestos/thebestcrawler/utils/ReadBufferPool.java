@@ -0,0 +1,89 @@
+// ReadBufferPool.java
+// ReadBufferPool
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility pool of the byte arrays responses are read through. Fetch paths read in large chunks
+ * instead of a byte at a time, and take an array sized from the response's Content-Length so a
+ * small page does not tie up a large array nor a large page need many small reads. Arrays come
+ * in a few size classes, and a limited number of each are kept for reuse.
+ *
+ * @author Michael Morris
+ * @version 5/21/2013
+ */
+public final class ReadBufferPool {
+
+	/** The array sizes handed out, smallest first. **/
+	private static final int[] SIZE_CLASSES = new int[] { 8 * 1024, 32 * 1024, 128 * 1024 };
+
+	/** The size handed out when the length of the response is not known. **/
+	private static final int UNKNOWN_LENGTH_SIZE = 32 * 1024;
+
+	/** The number of free arrays kept for each size. **/
+	private static final int MAX_POOLED_PER_CLASS = 64;
+
+	private static final ConcurrentLinkedQueue<byte[]>[] free_buffers;
+	private static final AtomicInteger[] num_free;
+
+	static {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final ConcurrentLinkedQueue<byte[]>[] queues = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+		free_buffers = queues;
+		num_free = new AtomicInteger[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			free_buffers[i] = new ConcurrentLinkedQueue<byte[]>();
+			num_free[i] = new AtomicInteger();
+		}
+	}
+
+	private ReadBufferPool() { }
+
+	/**
+	 * (Thread-Safe) Take an array to read a response through, which should be given back with
+	 * {@link #release(byte[])} once the response has been read.
+	 * @param expected_length The length of the response, e.g. its Content-Length, or -1 if not known.
+	 * @return The array.
+	 */
+	public static byte[] acquire(final long expected_length) {
+		final int size_class = sizeClassFor(expected_length);
+		final byte[] buffer = free_buffers[size_class].poll();
+		if (buffer != null) {
+			num_free[size_class].decrementAndGet();
+			return buffer;
+		}
+		return new byte[SIZE_CLASSES[size_class]];
+	}
+
+	/**
+	 * (Thread-Safe) Give back an array taken with {@link #acquire(long)}. The caller must not use it afterwards.
+	 * @param buffer The array; arrays not from this pool are ignored.
+	 */
+	public static void release(final byte[] buffer) {
+		if (buffer == null)
+			return;
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (SIZE_CLASSES[i] == buffer.length) {
+				if (num_free[i].incrementAndGet() <= MAX_POOLED_PER_CLASS)
+					free_buffers[i].offer(buffer);
+				else
+					num_free[i].decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private static int sizeClassFor(final long expected_length) {
+		final long wanted = expected_length < 0 ? UNKNOWN_LENGTH_SIZE : expected_length + 1;	// +1 to read the end of stream
+		for (int i = 0; i < SIZE_CLASSES.length; i++)
+			if (SIZE_CLASSES[i] >= wanted)
+				return i;
+		return SIZE_CLASSES.length - 1;
+	}
+
+}
@@ -5,13 +5,21 @@
 
 package com.bestos.thebestcrawler.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.bestos.thebestcrawler.UserPrefs;
 
@@ -26,6 +34,12 @@ public class RobotTxtUtil {
 	private static final String TAG = "RobotTxtUtil";
 	
 	private static final String PATH_TO_ROBOT_TXT = "/robots.txt";
+
+	/** The most of a robots.txt file read; crawlers need only honour the first 500KB. **/
+	private static final int MAX_ROBOTS_TXT_BYTES = 500 * 1024;
+	
+	/** The longest string (in the modified utf-8 bytes of writeUTF, at most 3 a char) that can be saved. **/
+	private static final int MAX_STRING_BYTES = 65535;
 	
 	private static final String TAG_USER_AGENT = "User-agent:";
 	private static final String TAG_CRAWL_DELAY = "Crawl-delay:";
@@ -66,28 +80,41 @@ public class RobotTxtUtil {
 		
 	}
 	
-	private static List<String> in_progress;
+	private static Set<String> in_progress;
 	private static Map<String, RobotRule> rules;
 	
-	private static void checkSetup() {
+	/** The hosts whose rules have not been saved by {@link #SaveNewRules(DataOutput)}, while recording. **/
+	private static final ConcurrentLinkedQueue<String> unsaved_keys = new ConcurrentLinkedQueue<String>();
+	private static volatile boolean recording = false;
+	
+	private static synchronized void checkSetup() {
 		
 		if (in_progress == null)
-			in_progress = new ArrayList<String>();
+			in_progress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 		if (rules == null)
-			rules = new HashMap<String, RobotRule>();
+			rules = new ConcurrentHashMap<String, RobotRule>();
 		
 	}
 	
-	private static final String getContentFromIn(final InputStream in) throws Exception {
+	private static final String getContentFromIn(final InputStream in, final long content_length) throws Exception {
 		
-		// Try to read all data from the input stream in to a string builder.
-		int read_byte;
-		final StringBuilder content_builder = new StringBuilder();
-		if (in != null)
-			while ((read_byte = in.read()) != -1)
-				content_builder.append((char)read_byte);
+		// Try to read the data from the input stream in large chunks, keeping it as bytes until it
+		// is decoded at once. Only the first MAX_ROBOTS_TXT_BYTES are read; the rest is ignored.
+		final ByteArrayOutputStream content_bytes = new ByteArrayOutputStream(
+				(int)Math.max(0, Math.min(content_length, MAX_ROBOTS_TXT_BYTES)));
+		if (in != null) {
+			final byte[] buffer = ReadBufferPool.acquire(content_length);
+			try {
+				int read;
+				while (content_bytes.size() < MAX_ROBOTS_TXT_BYTES
+					   && (read = in.read(buffer, 0, Math.min(buffer.length, MAX_ROBOTS_TXT_BYTES - content_bytes.size()))) != -1)
+					content_bytes.write(buffer, 0, read);
+			} finally {
+				ReadBufferPool.release(buffer);
+			}
+		}
 		
-		return content_builder.toString().trim();
+		return content_bytes.toString("UTF-8").trim();
 		
 	}
 	
@@ -104,155 +131,329 @@ public class RobotTxtUtil {
 		// Build the path for robots.txt
 		final String url_to_robots_txt = url_key + PATH_TO_ROBOT_TXT;
 		
-		// Pause the thread if the url_key is in progress.
-		if (in_progress.contains(url_key)) {
+		// Only the thread which claims the host fetches its robots.txt; the others wait for its rule.
+		RobotRule current_rule = rules.get(url_key);
+		if (current_rule != null) {
+			UserPrefs.debugTxt(TAG, "found a rule for key[" + url_key + "]; building robot response...");
+		} else if (in_progress.add(url_key)) {
+			try {
+				// Another thread may have saved the rule between the get and the add.
+				current_rule = rules.get(url_key);
+				if (current_rule == null)
+					current_rule = fetchRule(url_key, url_to_robots_txt);
+			} finally {
+				in_progress.remove(url_key);
+			}
+		} else {
 			
 			UserPrefs.debugTxt(TAG, "pausing thread because robot_txt[" + url_to_robots_txt + "] is currently being parsed by another thread.");
 			
 			while (in_progress.contains(url_key)) {
 				try {
 					Thread.sleep(20);
-				} catch (InterruptedException ie) { }
+				} catch (InterruptedException ie) {
+					// Interrupted by a shutdown; stop waiting and go by whatever rule there is.
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
-			
+			current_rule = rules.get(url_key);
+		}
+		
+		// Build a robot response.
+		if (current_rule == null) {
+			//UserPrefs.debugTxt(TAG, "returning standard robot response because there was no valid parsed robot.txt");
+			response = new RobotInstruction(true, 0);
+		} else {
+			/*UserPrefs.debugTxt(TAG, "Current Rule: " + url_key);
+			UserPrefs.debugTxt(TAG, "Allowed:");
+			UserPrefs.debugTxt(TAG, current_rule.mAllowed.toArray(new String[0]));
+			UserPrefs.debugTxt(TAG, "Disllowed:");
+			UserPrefs.debugTxt(TAG, current_rule.mDisallowed.toArray(new String[0]));
+			UserPrefs.debugTxt(TAG, "Crawl-Delay: " + current_rule.mCrawlDelay);
+			*/
+			response = buildResponse(url.toString(), url_key, current_rule);
 		}
 		
+		return response;
+		
+	}
+
+	/**
+	 * Fetch and parse the robots.txt of a host, saving the rule if there was one. Called only by the
+	 * thread which has added the host to the in progress set.
+	 * @param url_key The key of the host, e.g. "http://example.com".
+	 * @param url_to_robots_txt The url of its robots.txt.
+	 * @return The rule, or null if no robots.txt could be fetched.
+	 */
+	private static RobotRule fetchRule(final String url_key, final String url_to_robots_txt) {
+		
 		RobotRule current_rule = null;
 		
-		// Check to see if a rule already exists
-		if (!rules.containsKey(url_key)) {
-			
-			in_progress.add(url_key);
-			
-			//UserPrefs.debugTxt(TAG, "no current rule for key[" + url_key + "]; processing...");
-			
-			
-			String content = null;
+		String content = null;
+		try {
+			// if rule does not already exist fetch it over a pooled connection, which the page fetches reuse.
+			final HostConnectionPool.Response robots_response = HostConnectionPool.getHostConnectionPool().get(
+					new URL(url_to_robots_txt), Collections.singletonMap("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING), 2000);
 			try {
-				// if rule does not already exist attempt to open a connection.
-				final HttpURLConnection con = (HttpURLConnection)(new URL(url_to_robots_txt)).openConnection();
-				con.setReadTimeout(2000);
-				final InputStream in = con.getInputStream();
-				// get content from connection
-				content = getContentFromIn(in);			
-				in.close();
-			} catch (Exception ioe) {
-				//UserPrefs.errorTxt(TAG, "exception thrown while attempting to get robot text connection" + ioe);
-				content = null;
+				// get content from connection, unless there is no robots.txt (as an error status).
+				if (robots_response.getStatusCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
+					final String encoding = robots_response.getHeader("Content-Encoding");
+					final InputStream in = ContentDecoder.decode(robots_response.getInputStream(), encoding);
+					try {
+						content = getContentFromIn(in, encoding == null ? robots_response.getContentLength() : -1);
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				robots_response.close();
 			}
+		} catch (Exception ioe) {
+			//UserPrefs.errorTxt(TAG, "exception thrown while attempting to get robot text connection" + ioe);
+			content = null;
+		}
+		
+		if (content != null) {
+			// split by lines
+			final String[] lines = content.split("\\r?\\n");
+			
+			// Variables for use.
+			String current_user_agent = null;
+			current_rule = new RobotRule();
 			
-			if (content != null) {
-				// split by lines
-				final String[] lines = content.split("\\r?\\n");
+			for (String str : lines) {
 				
-				// Variables for use.
-				String current_user_agent = null;
-				current_rule = new RobotRule();
+				str = str.trim();
+				final String[] line_tokens = str.split("\\s+");
 				
-				for (String str : lines) {
+				// Skip comment-only and blank lines.
+				if (str != null && 
+					!str.isEmpty() && 
+					line_tokens.length >= 2 && 
+					line_tokens[0].charAt(0) != SPECIAL_TAG_COMMENT) {
 					
-					str = str.trim();
-					final String[] line_tokens = str.split("\\s+");
+					// Check for a "User-Agent:" tag.
+					if (line_tokens[0] != null && line_tokens[0].equals(TAG_USER_AGENT)) {
+						
+						// Check for a wild card (meaning it pertains to us)
+						if (line_tokens[1] != null && line_tokens[1].equals(SPECIAL_TAG_ALL_BOTS))
+							current_user_agent = SPECIAL_TAG_ALL_BOTS;
+						else {
+							//UserPrefs.debugTxt(TAG, "found a user-agent[" + line_tokens[1] + "] that does NOT pertain to us.");
+							current_user_agent = null;
+						}
+						
+					// Check for a "User-Allow:" tag
+					} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_ALLOW)) {
+						
+						// add the second token to the list of allowed urls.
+						if (line_tokens[1] != null)
+							current_rule.mAllowed.add(line_tokens[1].trim());
+						else {
+							//UserPrefs.debugTxt(TAG, "found a null allowed token! error?");
+						}
+						
+					// Check for a "User-Disallow:" tag
+					} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_DISALLOW)) {
 					
-					// Skip comment-only and blank lines.
-					if (str != null && 
-						!str.isEmpty() && 
-						line_tokens.length >= 2 && 
-						line_tokens[0].charAt(0) != SPECIAL_TAG_COMMENT) {
+						// add the second token to the list of disallowed urls.
+						if (line_tokens[1] != null)
+							current_rule.mDisallowed.add(line_tokens[1].trim());
+						else {
+							//UserPrefs.debugTxt(TAG, "found a null disallowed token! error?");
+						}
 						
-						// Check for a "User-Agent:" tag.
-						if (line_tokens[0] != null && line_tokens[0].equals(TAG_USER_AGENT)) {
-							
-							// Check for a wild card (meaning it pertains to us)
-							if (line_tokens[1] != null && line_tokens[1].equals(SPECIAL_TAG_ALL_BOTS))
-								current_user_agent = SPECIAL_TAG_ALL_BOTS;
-							else {
-								//UserPrefs.debugTxt(TAG, "found a user-agent[" + line_tokens[1] + "] that does NOT pertain to us.");
-								current_user_agent = null;
-							}
-							
-						// Check for a "User-Allow:" tag
-						} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_ALLOW)) {
-							
-							// add the second token to the list of allowed urls.
-							if (line_tokens[1] != null)
-								current_rule.mAllowed.add(line_tokens[1].trim());
-							else {
-								//UserPrefs.debugTxt(TAG, "found a null allowed token! error?");
-							}
-							
-						// Check for a "User-Disallow:" tag
-						} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_DISALLOW)) {
+					// Check for a "Crawl-Delay:" tag
+					} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_CRAWL_DELAY)) {
 						
-							// add the second token to the list of disallowed urls.
-							if (line_tokens[1] != null)
-								current_rule.mDisallowed.add(line_tokens[1].trim());
-							else {
-								//UserPrefs.debugTxt(TAG, "found a null disallowed token! error?");
-							}
-							
-						// Check for a "Crawl-Delay:" tag
-						} else if (current_user_agent != null && line_tokens[0] != null && line_tokens[0].equals(TAG_CRAWL_DELAY)) {
-							
-							// Check to make sure we can parse the second token in to an integer.
-							int delay = -1;
-							try {
-								delay = Integer.parseInt(line_tokens[1]);
-							} catch (NumberFormatException nfe) {
-								UserPrefs.debugTxt(TAG, "found crawl delay, but second parameter[" + line_tokens[1] + "] could not be parsed to integer");
-							}
-							
-							// Make sure we parsed something
-							if (delay >= 0) {
-								current_rule.mCrawlDelay = delay;
-							} else {
-								//UserPrefs.debugTxt(TAG, "crawl delay[" + line_tokens[1] + "] could not be parsed to a valid crawl delay!");
-							}
-							
+						// Check to make sure we can parse the second token in to an integer.
+						int delay = -1;
+						try {
+							delay = Integer.parseInt(line_tokens[1]);
+						} catch (NumberFormatException nfe) {
+							UserPrefs.debugTxt(TAG, "found crawl delay, but second parameter[" + line_tokens[1] + "] could not be parsed to integer");
 						}
 						
-						// Implied else to skip
+						// Make sure we parsed something
+						if (delay >= 0) {
+							current_rule.mCrawlDelay = delay;
+						} else {
+							//UserPrefs.debugTxt(TAG, "crawl delay[" + line_tokens[1] + "] could not be parsed to a valid crawl delay!");
+						}
 						
 					}
-				}
-				
-				// Check to make sure something was actually parsed, before adding to rule list.
-				if (!current_rule.mAllowed.isEmpty() || !current_rule.mDisallowed.isEmpty()) {
-					rules.put(url_key, current_rule);
-					//UserPrefs.debugTxt(TAG, "robot rule created and added to rule list.");
-				} else {
-					//UserPrefs.debugTxt(TAG, "parsed robot.txt did not contain any allows/disallows!");
-					// Add a blank allow so that the rule will be saved in the "rules" map.
-					if (current_rule == null)
-						current_rule = new RobotRule();
-					current_rule.mAllowed.add("");
+					
+					// Implied else to skip
+					
 				}
 			}
 			
-			in_progress.remove(url_key);
-			
-		} else {
-			UserPrefs.debugTxt(TAG, "found a rule for key[" + url_key + "]; building robot response...");
-			current_rule = rules.get(url_key);
+			// Check to make sure something was actually parsed, before adding to rule list.
+			if (!current_rule.mAllowed.isEmpty() || !current_rule.mDisallowed.isEmpty()) {
+				//UserPrefs.debugTxt(TAG, "robot rule created and added to rule list.");
+			} else {
+				//UserPrefs.debugTxt(TAG, "parsed robot.txt did not contain any allows/disallows!");
+				// Add a blank allow so that the rule will be saved in the "rules" map.
+				if (current_rule == null)
+					current_rule = new RobotRule();
+				current_rule.mAllowed.add("");
+			}
+			// Save the rule either way, so a Crawl-delay without any allows/disallows is kept.
+			rules.put(url_key, current_rule);
+			if (recording)
+				unsaved_keys.offer(url_key);
 		}
 		
-		// Build a robot response.
-		if (current_rule == null) {
-			//UserPrefs.debugTxt(TAG, "returning standard robot response because there was no valid parsed robot.txt");
-			response = new RobotInstruction(true, 0);
-		} else {
-			/*UserPrefs.debugTxt(TAG, "Current Rule: " + url_key);
-			UserPrefs.debugTxt(TAG, "Allowed:");
-			UserPrefs.debugTxt(TAG, current_rule.mAllowed.toArray(new String[0]));
-			UserPrefs.debugTxt(TAG, "Disllowed:");
-			UserPrefs.debugTxt(TAG, current_rule.mDisallowed.toArray(new String[0]));
-			UserPrefs.debugTxt(TAG, "Crawl-Delay: " + current_rule.mCrawlDelay);
-			*/
-			response = buildResponse(url.toString(), url_key, current_rule);
+		return current_rule;
+		
+	}
+	
+	/**
+	 * Write every parsed robots.txt rule to the given output, so that they can be restored
+	 * by {@link #LoadRules(DataInput)} without fetching the robots.txt files again.
+	 * @param out The output to write to.
+	 * @throws IOException If the output throws.
+	 */
+	public static final void SaveRules(final DataOutput out) throws IOException {
+		
+		checkSetup();
+		
+		// Copy the rules first; the map may change while we write.
+		final List<Map.Entry<String, RobotRule>> entries = new ArrayList<Map.Entry<String, RobotRule>>(rules.size());
+		for (Map.Entry<String, RobotRule> entry : rules.entrySet())
+			if (fits(entry.getKey()))
+				entries.add(entry);
+		out.writeInt(entries.size());
+		for (Map.Entry<String, RobotRule> entry : entries)
+			writeRule(out, entry.getKey(), entry.getValue());
+		
+	}
+	
+	/**
+	 * Restore the robots.txt rules written by {@link #SaveRules(DataOutput)}. Rules for hosts
+	 * which have already been parsed are replaced. While recording, the restored rules are
+	 * saved again by the next {@link #SaveNewRules(DataOutput)}.
+	 * @param in The input to read from.
+	 * @throws IOException If the input throws.
+	 */
+	public static final void LoadRules(final DataInput in) throws IOException {
+		
+		checkSetup();
+		
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			final String url_key = in.readUTF();
+			rules.put(url_key, readRule(in));
+			if (recording)
+				unsaved_keys.offer(url_key);
 		}
 		
-		return response;
+	}
+	
+	/**
+	 * Start or stop recording which rules are new, for {@link #SaveNewRules(DataOutput)}. When started,
+	 * every rule already parsed counts as new.
+	 * @param record True to start recording, false to stop and forget the unsaved rules.
+	 */
+	public static final synchronized void SetRecording(final boolean record) {
+		
+		checkSetup();
+		
+		unsaved_keys.clear();
+		recording = record;
+		if (record)
+			unsaved_keys.addAll(rules.keySet());
+		
+	}
+	
+	/**
+	 * Append the rules parsed since the last call (or since recording started) to the given output,
+	 * e.g. a journal of rules, so that saving costs the same however many hosts have been seen.
+	 * @param out The output to write to.
+	 * @return The number of rules written.
+	 * @throws IOException If the output throws.
+	 */
+	public static final int SaveNewRules(final DataOutput out) throws IOException {
+		
+		checkSetup();
+		
+		int count = 0;
+		String url_key;
+		while ((url_key = unsaved_keys.poll()) != null) {
+			final RobotRule rule = rules.get(url_key);
+			if (rule != null && fits(url_key)) {
+				writeRule(out, url_key, rule);
+				count++;
+			}
+		}
+		return count;
+		
+	}
+	
+	/**
+	 * Restore the rules appended by {@link #SaveNewRules(DataOutput)}, up to the end of the input.
+	 * Rules for hosts which have already been parsed are replaced.
+	 * @param in The input to read from.
+	 * @return The number of rules read.
+	 * @throws IOException If the input throws, or ends part way through a rule.
+	 */
+	public static final int LoadNewRules(final DataInput in) throws IOException {
+		
+		checkSetup();
 		
+		int count = 0;
+		while (true) {
+			final String url_key;
+			try {
+				url_key = in.readUTF();
+			} catch (EOFException eofe) {
+				return count;
+			}
+			rules.put(url_key, readRule(in));
+			count++;
+		}
+		
+	}
+	
+	private static void writeRule(final DataOutput out, final String url_key, final RobotRule rule) throws IOException {
+		out.writeUTF(url_key);
+		out.writeInt(rule.mCrawlDelay);
+		writeList(out, rule.mAllowed);
+		writeList(out, rule.mDisallowed);
+	}
+	
+	private static RobotRule readRule(final DataInput in) throws IOException {
+		final RobotRule rule = new RobotRule();
+		rule.mCrawlDelay = in.readInt();
+		readList(in, rule.mAllowed);
+		readList(in, rule.mDisallowed);
+		return rule;
+	}
+	
+	/**
+	 * Write a list of allows or disallows, skipping any too long for writeUTF (which only a
+	 * broken or hostile robots.txt would have).
+	 */
+	private static void writeList(final DataOutput out, final List<String> list) throws IOException {
+		int count = 0;
+		for (String str : list)
+			if (fits(str))
+				count++;
+		out.writeInt(count);
+		for (String str : list)
+			if (fits(str))
+				out.writeUTF(str);
+	}
+	
+	private static boolean fits(final String str) {
+		return str.length() * 3 <= MAX_STRING_BYTES;
+	}
+	
+	private static void readList(final DataInput in, final List<String> list) throws IOException {
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++)
+			list.add(in.readUTF());
 	}
 	
 	private static RobotInstruction buildResponse(final String url, final String key, final RobotRule current_rule) {
@@ -0,0 +1,206 @@
+// SimHash.java
+// SimHash
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Utility for computing the 64-bit SimHash of a page's text. Unlike an ordinary fingerprint,
+ * pages which differ only a little (a session id, a date, a different template around the same
+ * text) get SimHashes which differ in only a few bits, so near-duplicates can be found by
+ * comparing the Hamming distance of their SimHashes.<BR><BR>
+ * The features hashed are overlapping three-word shingles of the page's text, lowercased, with
+ * markup tags, comments and the contents of script and style elements skipped. The raw bytes are read directly, so any ASCII-compatible charset works;
+ * non-ASCII bytes are treated as word characters.
+ *
+ * @author Michael Morris
+ * @version 5/20/2013
+ */
+public final class SimHash {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** The ends of the markup whose contents are not text, lowercase. **/
+	private static final byte[] COMMENT_END = ascii("-->");
+	private static final byte[] SCRIPT_END = ascii("</script");
+	private static final byte[] STYLE_END = ascii("</style");
+
+	private static final byte[] COMMENT_START = ascii("!--");
+	private static final byte[] SCRIPT = ascii("script");
+	private static final byte[] STYLE = ascii("style");
+
+	/** Enough of a tag's name to tell script and style elements. **/
+	private static final int MAX_TAG_NAME = 8;
+
+	private SimHash() { }
+
+	/**
+	 * Compute the SimHash of the text in a stream, reading it to the end. The stream is not closed.
+	 * @param in The stream of raw page bytes.
+	 * @return The SimHash, or 0 if the stream holds no words.
+	 * @throws IOException If the stream cannot be read.
+	 */
+	public static long hash(final InputStream in) throws IOException {
+		final int[] weights = new int[64];
+		final byte[] chunk = new byte[4096];
+		final byte[] tag_name = new byte[MAX_TAG_NAME];
+		int tag_name_length = 0;
+		boolean in_tag = false;
+		boolean in_tag_name = false;
+		byte[] skip_until = null;	// The end of the comment or element being skipped, if any.
+		int skip_matched = 0;
+		boolean in_word = false;
+		long word = FNV_OFFSET_BASIS;
+		long previous = 0, before_previous = 0;
+		int read;
+
+		while ((read = in.read(chunk, 0, chunk.length)) != -1) {
+			for (int i = 0; i < read; i++) {
+				int c = chunk[i] & 0xFF;
+
+				if (skip_until != null) {
+					skip_matched = advance(skip_until, skip_matched, toLower(c));
+					if (skip_matched == skip_until.length) {
+						// Skip the rest of a closing tag as any other tag.
+						in_tag = skip_until != COMMENT_END;
+						in_tag_name = false;
+						skip_until = null;
+					}
+					continue;
+				}
+
+				if (in_tag) {
+					if (in_tag_name) {
+						if (isTagNameChar(c, tag_name_length)) {
+							if (tag_name_length < MAX_TAG_NAME)
+								tag_name[tag_name_length] = (byte)toLower(c);
+							tag_name_length++;
+							if (isTagName(tag_name, tag_name_length, COMMENT_START)) {
+								in_tag = false;
+								skip_until = COMMENT_END;
+								skip_matched = 0;
+							}
+							continue;
+						}
+						in_tag_name = false;
+					}
+					if (c == '>') {
+						in_tag = false;
+						if (isTagName(tag_name, tag_name_length, SCRIPT))
+							skip_until = SCRIPT_END;
+						else if (isTagName(tag_name, tag_name_length, STYLE))
+							skip_until = STYLE_END;
+						skip_matched = 0;
+						tag_name_length = 0;
+					}
+					continue;
+				}
+
+				final boolean word_char = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c >= 0x80
+										  || (c >= 'A' && c <= 'Z');
+				if (word_char) {
+					if (c >= 'A' && c <= 'Z')
+						c += 'a' - 'A';
+					word ^= c;
+					word *= FNV_PRIME;
+					in_word = true;
+					continue;
+				}
+
+				// The end of a word; add the shingle it completes.
+				if (in_word) {
+					addFeature(weights, shingle(before_previous, previous, word));
+					before_previous = previous;
+					previous = word;
+					word = FNV_OFFSET_BASIS;
+					in_word = false;
+				}
+				if (c == '<') {
+					in_tag = true;
+					in_tag_name = true;
+					tag_name_length = 0;
+				}
+			}
+		}
+		if (in_word)
+			addFeature(weights, shingle(before_previous, previous, word));
+
+		long hash = 0;
+		for (int bit = 0; bit < 64; bit++)
+			if (weights[bit] > 0)
+				hash |= 1L << bit;
+		return hash;
+	}
+
+	/**
+	 * Get the number of bits in which two SimHashes differ.
+	 * @param a The first SimHash.
+	 * @param b The second SimHash.
+	 * @return The Hamming distance, from 0 to 64.
+	 */
+	public static int distance(final long a, final long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	private static long shingle(final long first, final long second, final long third) {
+		return FingerprintUtil.mix(first ^ Long.rotateLeft(second, 21) ^ Long.rotateLeft(third, 42));
+	}
+
+	/**
+	 * Get how much of a pattern has been matched once another byte is read, i.e. the longest prefix of the
+	 * pattern which ends the bytes read so far.
+	 * @param matched How much of the pattern the bytes before ended with.
+	 */
+	private static int advance(final byte[] pattern, final int matched, final int c) {
+		for (int length = Math.min(matched + 1, pattern.length); length > 0; length--) {
+			if (pattern[length - 1] != c)
+				continue;
+			int i = 0;
+			while (i < length - 1 && pattern[i] == pattern[matched - length + 1 + i])
+				i++;
+			if (i == length - 1)
+				return length;
+		}
+		return 0;
+	}
+
+	/**
+	 * Check whether a byte continues a tag's name; a leading '/' (of a closing tag) is kept so that
+	 * closing tags are never taken for opening ones.
+	 */
+	private static boolean isTagNameChar(final int c, final int position) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '!' || c == '-'
+			   || (c == '/' && position == 0);
+	}
+
+	private static boolean isTagName(final byte[] tag_name, final int length, final byte[] name) {
+		if (length != name.length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (tag_name[i] != name[i])
+				return false;
+		return true;
+	}
+
+	private static int toLower(final int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static byte[] ascii(final String str) {
+		final byte[] bytes = new byte[str.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte)str.charAt(i);
+		return bytes;
+	}
+
+	private static void addFeature(final int[] weights, final long feature) {
+		for (int bit = 0; bit < 64; bit++)
+			weights[bit] += ((feature >>> bit) & 1L) != 0 ? 1 : -1;
+	}
+
+}
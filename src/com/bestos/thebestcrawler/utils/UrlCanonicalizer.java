@@ -0,0 +1,485 @@
+// UrlCanonicalizer.java
+// UrlCanonicalizer
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The UrlCanonicalizer rewrites urls to a single canonical spelling, so that the same page
+ * found under different spellings is only queued (and retrieved) once. Following RFC 3986
+ * section 6, a canonical url has:
+ * <ul>
+ * <li>a lower case scheme and host, and no default port (80 for http, 443 for https),</li>
+ * <li>no "." or ".." path segments, no repeated slashes, and a path of "/" rather than none,</li>
+ * <li>upper case percent-encodings, with unreserved characters decoded,</li>
+ * <li>no fragment, and no empty query.</li>
+ * </ul>
+ * On top of that, it drops configured query (and ";" path) parameters such as session ids and
+ * tracking parameters, sorts the remaining query parameters, and strips index pages such as
+ * <code>index.html</code> from the end of the path.<BR><BR>
+ * Urls which are already canonical are returned as the same instance, and the only allocation
+ * is then a thread-local buffer reused between calls. Strings which are not absolute
+ * hierarchical urls are returned unchanged.
+ * @author Michael Morris
+ * @version 5/14/2013
+ *
+ */
+public class UrlCanonicalizer {
+
+	/** Index pages stripped from the end of a path, lower case. **/
+	private static final String[] INDEX_PAGES = new String[] { "index.html", "index.htm", "index.php", "index.asp", "index.aspx",
+																"default.html", "default.htm", "default.asp", "default.aspx" };
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** Buffers reused by every call on the same thread. **/
+	private static final ThreadLocal<StringBuilder> OUT_BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+	private static final ThreadLocal<StringBuilder> PATH_BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	/** Parameter names dropped when matched exactly, lower case. **/
+	private final String[] stripped_names;
+
+	/** Parameter name prefixes dropped, lower case (from names ending in '*'). **/
+	private final String[] stripped_prefixes;
+
+	private final boolean strip_index_pages;
+
+	/**
+	 * Construct a UrlCanonicalizer.
+	 * @param stripped_params The names of query parameters to drop (case-insensitive), e.g.
+	 * "jsessionid". A name ending in '*' drops every parameter starting with it, e.g. "utm_*". May be null.
+	 * @param strip_index_pages True to strip index pages such as index.html from the end of paths.
+	 */
+	public UrlCanonicalizer(final Collection<String> stripped_params, final boolean strip_index_pages) {
+		final List<String> names = new ArrayList<String>();
+		final List<String> prefixes = new ArrayList<String>();
+		if (stripped_params != null) {
+			for (String param : stripped_params) {
+				if (param == null || param.isEmpty())
+					continue;
+				param = param.toLowerCase();
+				if (param.endsWith("*"))
+					prefixes.add(param.substring(0, param.length() - 1));
+				else
+					names.add(param);
+			}
+		}
+		stripped_names = names.toArray(new String[names.size()]);
+		stripped_prefixes = prefixes.toArray(new String[prefixes.size()]);
+		this.strip_index_pages = strip_index_pages;
+	}
+
+	/**
+	 * (Thread-Safe) Rewrite an absolute url to its canonical spelling.
+	 * @param url The url.
+	 * @return The canonical url; the same instance if it was already canonical, or if it is not
+	 * an absolute hierarchical url (e.g. "mailto:" links, or a null value).
+	 */
+	public String canonicalize(final String url) {
+		if (url == null)
+			return null;
+
+		final int scheme_end = schemeEnd(url);
+		if (scheme_end <= 0 || !url.startsWith("//", scheme_end + 1))
+			return url;
+
+		final int length = url.length();
+		final int authority_start = scheme_end + 3;
+		final int authority_end = indexOfAny(url, authority_start, length, "/?#");
+		final int path_end = indexOfAny(url, authority_end, length, "?#");
+		final int query_end = indexOfAny(url, path_end, length, "#");
+
+		final StringBuilder out = OUT_BUFFER.get();
+		out.setLength(0);
+
+		for (int i = 0; i < scheme_end; i++)
+			out.append(Character.toLowerCase(url.charAt(i)));
+		out.append("://");
+
+		appendAuthority(out, url, authority_start, authority_end, defaultPort(out, scheme_end));
+		appendPath(out, url, authority_end, path_end);
+		if (path_end + 1 < query_end)
+			appendQuery(out, url, path_end + 1, query_end);
+
+		return contentEquals(out, url) ? url : out.toString();
+	}
+
+	/**
+	 * (Thread-Safe) Resolve a link found on a page against the page's url, per RFC 3986 section 5.2,
+	 * and drop its fragment. The result is absolute, but not necessarily canonical.
+	 * @param base The absolute url of the page.
+	 * @param ref The link, e.g. the value of an href attribute; absolute or relative.
+	 * @return The absolute url, or null if ref is null or relative and base is not absolute.
+	 */
+	public static String resolve(final String base, final String ref) {
+		if (ref == null)
+			return null;
+
+		String rel = ref.trim();
+		final int hash = rel.indexOf('#');
+		if (hash >= 0)
+			rel = rel.substring(0, hash);
+
+		final int ref_scheme_end = schemeEnd(rel);
+		if (ref_scheme_end > 0)
+			return withoutDotSegments(rel, ref_scheme_end + 1);
+
+		final int base_scheme_end = base != null ? schemeEnd(base) : -1;
+		if (base_scheme_end <= 0)
+			return null;
+
+		// Network-path reference, e.g. "//host/path".
+		if (rel.startsWith("//"))
+			return withoutDotSegments(base.substring(0, base_scheme_end + 1) + rel, base_scheme_end + 1);
+
+		final int base_length = base.length();
+		final int base_authority_end = base.startsWith("//", base_scheme_end + 1)
+				? indexOfAny(base, base_scheme_end + 3, base_length, "/?#") : base_scheme_end + 1;
+		final int base_path_end = indexOfAny(base, base_authority_end, base_length, "?#");
+
+		final StringBuilder out = new StringBuilder(base_length + rel.length());
+		out.append(base, 0, base_authority_end);
+
+		// Same-document reference, or a query only.
+		if (rel.isEmpty()) {
+			out.append(base, base_authority_end, indexOfAny(base, base_path_end, base_length, "#"));
+			return out.toString();
+		}
+		if (rel.charAt(0) == '?') {
+			out.append(base, base_authority_end, base_path_end).append(rel);
+			return out.toString();
+		}
+
+		// Merge the reference's path with the base's, then remove its dot segments.
+		final String merged;
+		if (rel.charAt(0) == '/') {
+			merged = rel;
+		} else {
+			final int last_slash = base.lastIndexOf('/', base_path_end - 1);
+			if (last_slash < base_authority_end)
+				merged = "/" + rel;
+			else
+				merged = base.substring(base_authority_end, last_slash + 1) + rel;
+		}
+		final int merged_path_end = indexOfAny(merged, 0, merged.length(), "?");
+		removeDotSegments(merged, 0, merged_path_end, out);
+		out.append(merged, merged_path_end, merged.length());
+		return out.toString();
+	}
+
+	/**
+	 * Get the index of the ':' ending the url's scheme.
+	 * @return The index, or -1 if the url does not start with a scheme.
+	 */
+	private static int schemeEnd(final String url) {
+		final int length = url.length();
+		for (int i = 0; i < length; i++) {
+			final char c = url.charAt(i);
+			if (c == ':')
+				return i > 0 ? i : -1;
+			final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+			if (!valid)
+				return -1;
+		}
+		return -1;
+	}
+
+	private static int indexOfAny(final CharSequence str, final int from, final int to, final String chars) {
+		for (int i = from; i < to; i++)
+			if (chars.indexOf(str.charAt(i)) >= 0)
+				return i;
+		return to;
+	}
+
+	private static String defaultPort(final StringBuilder scheme, final int length) {
+		if (length == 4 && scheme.indexOf("http") == 0)
+			return "80";
+		if (length == 5 && scheme.indexOf("https") == 0)
+			return "443";
+		return null;
+	}
+
+	private static String withoutDotSegments(final String url, final int scheme_end) {
+		final int length = url.length();
+		final int path_start = url.startsWith("//", scheme_end) ? indexOfAny(url, scheme_end + 2, length, "/?#") : scheme_end;
+		final int path_end = indexOfAny(url, path_start, length, "?#");
+		if (url.indexOf('.', path_start) < 0 || url.indexOf('.', path_start) >= path_end)
+			return url;
+
+		final StringBuilder out = new StringBuilder(length);
+		out.append(url, 0, path_start);
+		removeDotSegments(url, path_start, path_end, out);
+		out.append(url, path_end, length);
+		return out.toString();
+	}
+
+	/**
+	 * Append the user info, lower case host, and non-default port.
+	 */
+	private static void appendAuthority(final StringBuilder out, final String url, final int start, final int end, final String default_port) {
+		final int at = url.lastIndexOf('@', end - 1);
+		int host_start = start;
+		if (at >= start) {
+			out.append(url, start, at + 1);
+			host_start = at + 1;
+		}
+
+		// Find the port, skipping over IPv6 literals such as [::1].
+		int host_end = end;
+		final int bracket = url.lastIndexOf(']', end - 1);
+		final int colon = url.lastIndexOf(':', end - 1);
+		if (colon >= host_start && colon > bracket)
+			host_end = colon;
+
+		// Drop the trailing dot of a fully qualified host name.
+		int name_end = host_end;
+		if (name_end > host_start + 1 && url.charAt(name_end - 1) == '.')
+			name_end--;
+		for (int i = host_start; i < name_end; i++)
+			out.append(Character.toLowerCase(url.charAt(i)));
+
+		if (host_end < end) {
+			int port_start = host_end + 1;
+			while (port_start < end - 1 && url.charAt(port_start) == '0')
+				port_start++;
+			final int port_length = end - port_start;
+			if (port_length > 0 && (default_port == null || !url.regionMatches(port_start, default_port, 0, port_length) || port_length != default_port.length()))
+				out.append(':').append(url, port_start, end);
+		}
+	}
+
+	/**
+	 * Append the path with its percent-encodings normalized, stripped parameters, repeated slashes
+	 * and dot segments removed, and index page stripped.
+	 */
+	private void appendPath(final StringBuilder out, final String url, final int start, final int end) {
+		if (start == end) {
+			out.append('/');
+			return;
+		}
+
+		final StringBuilder path = PATH_BUFFER.get();
+		path.setLength(0);
+		int i = start;
+		while (i < end) {
+			final char c = url.charAt(i);
+			if (c == '/' && path.length() > 0 && path.charAt(path.length() - 1) == '/') {
+				i++;
+			} else if (c == ';' && isStripped(url, i + 1, indexOfAny(url, i + 1, end, "=;/"))) {
+				i = indexOfAny(url, i + 1, end, ";/");
+			} else {
+				i = appendNormalized(path, url, i);
+			}
+		}
+
+		final int path_start = out.length();
+		removeDotSegments(path, 0, path.length(), out);
+		if (out.length() == path_start)
+			out.append('/');
+
+		if (strip_index_pages) {
+			final int last_slash = out.lastIndexOf("/");
+			final int name_length = out.length() - last_slash - 1;
+			for (String index : INDEX_PAGES) {
+				if (name_length == index.length() && regionEqualsIgnoreCase(out, last_slash + 1, index)) {
+					out.setLength(last_slash + 1);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append the query without its stripped and empty parameters, sorted.
+	 */
+	private void appendQuery(final StringBuilder out, final String url, final int start, final int end) {
+
+		// First check whether the query is already clean and sorted, which is the common case.
+		boolean clean = true;
+		int previous_start = -1;
+		int previous_end = -1;
+		for (int i = start; i <= end && clean; ) {
+			final int param_end = indexOfAny(url, i, end, "&");
+			final int name_end = indexOfAny(url, i, param_end, "=");
+			if (param_end == i || isStripped(url, i, name_end)
+					|| (previous_start >= 0 && compareRegions(url, previous_start, previous_end, i, param_end) > 0))
+				clean = false;
+			previous_start = i;
+			previous_end = param_end;
+			i = param_end + 1;
+		}
+
+		if (clean) {
+			out.append('?');
+			for (int i = start; i < end; )
+				i = appendNormalized(out, url, i);
+			return;
+		}
+
+		final List<String> params = new ArrayList<String>();
+		for (int i = start; i <= end; ) {
+			final int param_end = indexOfAny(url, i, end, "&");
+			if (param_end > i && !isStripped(url, i, indexOfAny(url, i, param_end, "=")))
+				params.add(url.substring(i, param_end));
+			i = param_end + 1;
+		}
+		if (params.isEmpty())
+			return;
+
+		Collections.sort(params);
+		out.append('?');
+		for (int p = 0; p < params.size(); p++) {
+			if (p > 0)
+				out.append('&');
+			final String param = params.get(p);
+			for (int i = 0; i < param.length(); )
+				i = appendNormalized(out, param, i);
+		}
+	}
+
+	/**
+	 * Append the character at index, normalizing a percent-encoding starting there.
+	 * @return The index of the next character to append.
+	 */
+	private static int appendNormalized(final StringBuilder out, final String str, final int index) {
+		final char c = str.charAt(index);
+		if (c == ' ') {
+			out.append("%20");
+			return index + 1;
+		}
+		if (c != '%' || index + 2 >= str.length()) {
+			out.append(c);
+			return index + 1;
+		}
+
+		final int high = Character.digit(str.charAt(index + 1), 16);
+		final int low = Character.digit(str.charAt(index + 2), 16);
+		if (high < 0 || low < 0) {
+			out.append(c);
+			return index + 1;
+		}
+
+		final char decoded = (char)(high * 16 + low);
+		if (isUnreserved(decoded))
+			out.append(decoded);
+		else
+			out.append('%').append(HEX[high]).append(HEX[low]);
+		return index + 3;
+	}
+
+	private static boolean isUnreserved(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '-' || c == '.' || c == '_' || c == '~';
+	}
+
+	/**
+	 * Check whether the parameter name between start and end is one to strip.
+	 */
+	private boolean isStripped(final String url, final int start, final int end) {
+		final int length = end - start;
+		for (String name : stripped_names)
+			if (length == name.length() && url.regionMatches(true, start, name, 0, length))
+				return true;
+		for (String prefix : stripped_prefixes)
+			if (length >= prefix.length() && url.regionMatches(true, start, prefix, 0, prefix.length()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Remove the "." and ".." segments of the path between start and end, per RFC 3986 section 5.2.4,
+	 * appending the result to out.
+	 */
+	private static void removeDotSegments(final CharSequence in, final int start, final int end, final StringBuilder out) {
+		final int out_start = out.length();
+		int i = start;
+		while (i < end) {
+			if (regionEquals(in, i, end, "../")) {
+				i += 3;
+			} else if (regionEquals(in, i, end, "./")) {
+				i += 2;
+			} else if (regionEquals(in, i, end, "/./")) {
+				i += 2;
+			} else if (i + 2 == end && regionEquals(in, i, end, "/.")) {
+				out.append('/');
+				i = end;
+			} else if (regionEquals(in, i, end, "/../")) {
+				i += 3;
+				removeLastSegment(out, out_start);
+			} else if (i + 3 == end && regionEquals(in, i, end, "/..")) {
+				removeLastSegment(out, out_start);
+				out.append('/');
+				i = end;
+			} else if ((i + 1 == end && in.charAt(i) == '.') || (i + 2 == end && regionEquals(in, i, end, ".."))) {
+				i = end;
+			} else {
+				int segment_end = in.charAt(i) == '/' ? i + 1 : i;
+				while (segment_end < end && in.charAt(segment_end) != '/')
+					segment_end++;
+				out.append(in, i, segment_end);
+				i = segment_end;
+			}
+		}
+	}
+
+	private static void removeLastSegment(final StringBuilder out, final int out_start) {
+		int i = out.length() - 1;
+		while (i >= out_start && out.charAt(i) != '/')
+			i--;
+		out.setLength(Math.max(i, out_start));
+	}
+
+	private static boolean regionEquals(final CharSequence str, final int start, final int end, final String match) {
+		if (end - start < match.length())
+			return false;
+		for (int i = 0; i < match.length(); i++)
+			if (str.charAt(start + i) != match.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean regionEqualsIgnoreCase(final CharSequence str, final int start, final String lower_match) {
+		for (int i = 0; i < lower_match.length(); i++)
+			if (Character.toLowerCase(str.charAt(start + i)) != lower_match.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static int compareRegions(final String str, final int a_start, final int a_end, final int b_start, final int b_end) {
+		final int length = Math.min(a_end - a_start, b_end - b_start);
+		for (int i = 0; i < length; i++) {
+			final char a = str.charAt(a_start + i);
+			final char b = str.charAt(b_start + i);
+			if (a != b)
+				return a - b;
+		}
+		return (a_end - a_start) - (b_end - b_start);
+	}
+
+	private static boolean contentEquals(final StringBuilder builder, final String str) {
+		if (builder.length() != str.length())
+			return false;
+		for (int i = builder.length() - 1; i >= 0; i--)
+			if (builder.charAt(i) != str.charAt(i))
+				return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,530 @@
+// AsyncPageRetriever.java
+// AsyncPageRetriever
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.NearDuplicateIndex;
+import com.bestos.thebestcrawler.buffers.PageArena;
+import com.bestos.thebestcrawler.buffers.PageBody;
+import com.bestos.thebestcrawler.buffers.PageBuffer;
+import com.bestos.thebestcrawler.buffers.PageRecord;
+import com.bestos.thebestcrawler.buffers.StringQueue;
+import com.bestos.thebestcrawler.utils.RobotTxtUtil;
+import com.bestos.thebestcrawler.utils.RobotTxtUtil.RobotInstruction;
+
+/**
+ * The AsyncPageRetriever is a worker that retrieves pages the same way as the {@link PageRetriever},
+ * but without a thread per fetch: it hands each url to a non-blocking {@link HttpClient} and keeps up
+ * to a configurable number of fetches in flight at once, so one worker can keep hundreds of slow hosts
+ * busy. The cap is the shared {@link InFlightLimiter}'s, so it holds over every worker. Response bodies stream straight in to the {@link PageArena} and completed pages are put in the
+ * page buffer.<BR><BR>
+ * The worker's own thread only takes urls from the url buffer and starts fetches; robots.txt lookups,
+ * near-duplicate checks and waiting for room in the page buffer block, so they are done on a fixed pool
+ * of helper threads, queueing for a helper when all are busy. Each such task holds one of the in-flight
+ * slots, so a full page buffer still slows the fetching down. The http client has a few threads of its
+ * own, which never block, so responses keep being read while every helper waits. The http client and
+ * both pools are shared by every AsyncPageRetriever, so starting more workers adds no threads.
+ * @author Michael Morris
+ * @version 5/23/2013
+ *
+ */
+public class AsyncPageRetriever extends Worker {
+
+	private static final String TAG = "AsyncPageRetriever";
+
+	/**
+	 * The maximum number of milliseconds to wait for a free slot or for work before re-checking the running flag.
+	 */
+	private static final int MILLIS_TO_WAIT_FOR_WORK = 250;
+
+	/** The time allowed to connect, and to receive a whole response. **/
+	private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+	/** The time shutdown(..) lets the fetches in flight finish. **/
+	private static final long MILLIS_TO_DRAIN = 1000;
+
+	/** The number of threads for blocking work, and for the http client. **/
+	private static final int NUM_HELPER_THREADS = 16;
+	private static final int NUM_CLIENT_THREADS = 4;
+
+	/** The maximum number of AsyncPageRetriever workers that have been created. **/
+	private static int MAX_ID = 0;
+
+	private volatile boolean running = true;
+
+	private boolean started = false;
+
+	private volatile boolean idle = true;
+
+	private final int id;
+
+	private final PageBuffer page_buffer;
+
+	private final StringQueue url_buffer;
+
+	private final NearDuplicateIndex near_duplicates;
+
+	/** The cap on fetches in flight over every worker. **/
+	private final InFlightLimiter in_flight;
+
+	/** The number of this worker's permits from the in-flight limiter. **/
+	private final AtomicInteger num_in_flight;
+
+	/** The helper threads, for the blocking work around each fetch, and the http client; shared by every worker. **/
+	private static ExecutorService helpers = null;
+	private static HttpClient client = null;
+
+	/** The helper threads running this worker's tasks, to interrupt at shutdown. **/
+	private final Set<Thread> helping;
+
+	/**
+	 * Construct a new AsyncPageRetriever, with the shared {@link InFlightLimiter}, skipping near-duplicate
+	 * pages with the shared {@link NearDuplicateIndex} if {@link UserPrefs#isSkipNearDuplicates()}.
+	 */
+	public AsyncPageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer) {
+		this(page_buffer, url_buffer, InFlightLimiter.getInFlightLimiter(),
+			 UserPrefs.getUserPrefs().isSkipNearDuplicates() ? NearDuplicateIndex.getNearDuplicateIndex() : null);
+	}
+
+	/**
+	 * Construct a new AsyncPageRetriever.
+	 * @param in_flight The limit on fetches in flight at once, usually shared by every retriever.
+	 * @param near_duplicates The index of pages already retrieved, used to skip near-duplicates; null to keep every page.
+	 */
+	public AsyncPageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer, final InFlightLimiter in_flight,
+							  final NearDuplicateIndex near_duplicates) {
+		if (page_buffer == null || url_buffer == null || in_flight == null)
+			throw new IllegalArgumentException("must specify both page and url buffers and an in-flight limiter; page["
+											   + page_buffer + "], url[" + url_buffer + "], in_flight[" + in_flight + "]");
+
+		this.page_buffer = page_buffer;
+		this.url_buffer = url_buffer;
+		this.near_duplicates = near_duplicates;
+		this.in_flight = in_flight;
+		num_in_flight = new AtomicInteger();
+		helping = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+		id = ++MAX_ID;
+		setUpShared();
+	}
+
+	/**
+	 * Create the helper pool and http client shared by every worker, when the first worker is created.
+	 */
+	private static synchronized void setUpShared() {
+		if (client != null)
+			return;
+		helpers = Executors.newFixedThreadPool(NUM_HELPER_THREADS, newThreadFactory(TAG + "-"));
+		client = HttpClient.newBuilder()
+						   .followRedirects(HttpClient.Redirect.NORMAL)
+						   .connectTimeout(CONNECT_TIMEOUT)
+						   .executor(Executors.newFixedThreadPool(NUM_CLIENT_THREADS, newThreadFactory(TAG + "-client-")))
+						   .build();
+	}
+
+	private static ThreadFactory newThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	@Override
+	public void run() {
+
+		executeCallback(WorkerCallbackType.START);
+		UserPrefs.debugTxt(TAG+id, "started up!");
+
+		started = true;
+
+		while (running) {
+
+			// Wait for a free slot, then for a url to fetch in it.
+			try {
+				if (!in_flight.tryAcquire(MILLIS_TO_WAIT_FOR_WORK))
+					continue;
+				num_in_flight.incrementAndGet();
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..); loop around and check the running flag.
+				continue;
+			}
+
+			String path = null;
+			try {
+				path = url_buffer.take(MILLIS_TO_WAIT_FOR_WORK);
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..); loop around and check the running flag.
+			}
+
+			if (path != null && PageRetriever.underMaxPages()) {
+
+				// Check against manually excluded content first!
+				if (PageRetriever.isURLBlackListed(path)) {
+					UserPrefs.errorTxt(TAG+id, "found url from black list [" + path + "]; skip processing...");
+					url_buffer.markDone(path);
+					releaseSlot();
+					continue;
+				}
+
+				if (idle)
+					executeCallback(WorkerCallbackType.WORKING);
+				idle = false;
+
+				fetch(path);
+
+			} else {
+
+				releaseSlot();
+				if (!idle && num_in_flight.get() == 0) {
+					executeCallback(WorkerCallbackType.IDLE);
+					UserPrefs.debugTxt(TAG+id, "is idle...");
+					if (!PageRetriever.underMaxPages())
+						UserPrefs.debugTxt(TAG+id, "***************** HIT MAX PAGES TO RETRIEVE ********************");
+					idle = true;
+				}
+			}
+		}
+
+		// Let the fetches in flight finish, then interrupt any still waiting for the page buffer.
+		// The shared threads carry on for the other workers; this worker's queued tasks see it stopped.
+		final long drain_end = System.currentTimeMillis() + MILLIS_TO_DRAIN;
+		try {
+			while (num_in_flight.get() > 0 && System.currentTimeMillis() < drain_end)
+				Thread.sleep(10);
+		} catch (InterruptedException ie) { /* Shutting down anyway. */ }
+		for (Thread helper : helping)
+			helper.interrupt();
+
+		executeCallback(WorkerCallbackType.SHUTDOWN);
+		UserPrefs.debugTxt(TAG+id, "shutting down!");
+	}
+
+	/**
+	 * Start fetching a url in the slot the caller holds, which is released once the page has been handled.
+	 * @param path The url to fetch.
+	 */
+	private void fetch(final String path) {
+		final long fetch_start = System.currentTimeMillis();
+
+		final URI uri;
+		final URL url;
+		try {
+			uri = new URI(path);
+			url = uri.toURL();
+		} catch (URISyntaxException use) {
+			executeCallback(WorkerCallbackType.FAIL, id, path, use);
+			url_buffer.markDone(path);
+			releaseSlot();
+			return;
+		} catch (MalformedURLException mue) {
+			executeCallback(WorkerCallbackType.FAIL, id, path, mue);
+			url_buffer.markDone(path);
+			releaseSlot();
+			return;
+		} catch (IllegalArgumentException iae) {
+			executeCallback(WorkerCallbackType.FAIL, id, path, iae);
+			url_buffer.markDone(path);
+			releaseSlot();
+			return;
+		}
+
+		// Robots.txt may need fetching, which blocks, so it is checked on a helper thread.
+		CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				if (!running)
+					return false;
+				helping.add(Thread.currentThread());
+				try {
+					return canCrawl(path, url);
+				} finally {
+					helping.remove(Thread.currentThread());
+				}
+			}
+		}, helpers).thenCompose(new Function<Boolean, CompletionStage<HttpResponse<PageBody>>>() {
+			@Override
+			public CompletionStage<HttpResponse<PageBody>> apply(final Boolean allowed) {
+				if (!allowed)
+					return CompletableFuture.completedFuture(null);
+				final HttpRequest request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET().build();
+				return client.sendAsync(request, new ArenaBodyHandler(path));
+			}
+		}).whenCompleteAsync(new BiConsumer<HttpResponse<PageBody>, Throwable>() {
+			@Override
+			public void accept(final HttpResponse<PageBody> response, final Throwable t) {
+				helping.add(Thread.currentThread());
+				try {
+					if (running) {
+						handleResponse(path, fetch_start, response, t);
+					} else if (response != null && response.body() != null) {
+						// Shut down; the url will be retrieved again on resume.
+						response.body().release();
+					}
+				} finally {
+					helping.remove(Thread.currentThread());
+					releaseSlot();
+				}
+			}
+		}, helpers);
+	}
+
+	/**
+	 * Check the robot instructions for the url's host.
+	 * @return True if the url may be crawled.
+	 */
+	private boolean canCrawl(final String path, final URL url) {
+		RobotInstruction instruction = null;
+		try {
+			instruction = RobotTxtUtil.GetRobotInstructions(url);
+		} catch (Exception ex) {
+			executeCallback(WorkerCallbackType.FAIL, id, path, ex);
+		}
+
+		// Let the url buffer schedule the rest of this host's urls by its Crawl-delay (in seconds).
+		if (instruction != null)
+			url_buffer.setHostDelay(path, instruction.getDelay() * 1000L);
+
+		if (instruction == null || !instruction.canCrawl()) {
+			UserPrefs.debugTxt(TAG+id, "robot.txt not found or reported to skip the crawling of this page; skipping...");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Put a retrieved page in the page buffer, waiting for room, or mark the url done if there is no page
+	 * to parse. Called on a helper thread.
+	 * @param response The response, or null if the url was skipped.
+	 * @param t The reason the fetch failed, or null.
+	 */
+	private void handleResponse(final String path, final long fetch_start, final HttpResponse<PageBody> response, final Throwable t) {
+		if (t != null) {
+			final Throwable cause = t.getCause() != null ? t.getCause() : t;
+			executeCallback(WorkerCallbackType.FAIL, id, path, cause instanceof Exception ? (Exception)cause : new Exception(cause));
+			url_buffer.markDone(path);
+			return;
+		}
+		if (response == null || response.body() == null) {
+			UserPrefs.debugTxt(TAG+id, "finished retrieving a url.", "url = " + path, "errors = true");
+			url_buffer.markDone(path);
+			return;
+		}
+
+		final PageBody body = response.body();
+		if (PageRetriever.isNearDuplicate(near_duplicates, body)) {
+			// The same content was already retrieved under another url; don't parse it again.
+			UserPrefs.debugTxt(TAG+id, "near-duplicate of a page already retrieved; skipping...", "url = " + path);
+			body.release();
+			url_buffer.markDone(path);
+			return;
+		}
+
+		// Wait for the parsers if the page buffer is over its byte budget.
+		try {
+			page_buffer.put(new PageRecord(path, response.headers().map(), body, fetch_start, System.currentTimeMillis()));
+			PageRetriever.addPageRetrieved();
+			executeCallback(WorkerCallbackType.SUCCESS, id, path, null);
+		} catch (InterruptedException ie) {
+			// Interrupted by shutdown(..); the page has been dropped.
+		}
+		UserPrefs.debugTxt(TAG+id, "finished retrieving a url.", "url = " + path, "errors = false");
+	}
+
+	@Override
+	public String getUniqueId() {
+		return TAG+id;
+	}
+
+	/**
+	 * Convenience method which goes along with isIdle. Used to check if work as ever been started.
+	 * @return True once the worker has started.
+	 */
+	public final boolean hasStarted() {
+		return started;
+	}
+
+	/**
+	 * Check whether the worker has no fetches in flight and no urls to fetch.
+	 * @return True if idle.
+	 */
+	public final boolean isIdle() {
+		return idle;
+	}
+
+	/**
+	 * Get the number of this worker's fetches in flight right now, counting the slot the worker
+	 * holds while it waits for a url.
+	 * @return The number of fetches.
+	 */
+	public final int getNumInFlight() {
+		return num_in_flight.get();
+	}
+
+	/**
+	 * Give back one of this worker's slots.
+	 */
+	private void releaseSlot() {
+		num_in_flight.decrementAndGet();
+		in_flight.release();
+	}
+
+	public final boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Attempt to gracefully shut down this worker, letting the fetches in flight finish for a short
+	 * while. If it does not stop, interrupt it.
+	 */
+	@Override
+	public void shutdown() {
+		if (running && isAlive()) {
+			running = false;
+			try {
+				join(2000 + MILLIS_TO_DRAIN);
+			} catch (Exception ex) { /* Do nothing since this means that this thread has no way to "wait" */ }
+			if (isAlive()) {
+				interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Rejects responses which are not wanted before their bodies are read, and streams the
+	 * rest in to the page arena.
+	 */
+	private final class ArenaBodyHandler implements HttpResponse.BodyHandler<PageBody> {
+		private final String path;
+
+		ArenaBodyHandler(final String path) {
+			this.path = path;
+		}
+
+		@Override
+		public HttpResponse.BodySubscriber<PageBody> apply(final HttpResponse.ResponseInfo info) {
+			final int max_body_size = UserPrefs.getUserPrefs().getMaxBodySize();
+			final String content_type = info.headers().firstValue("Content-Type").orElse(null);
+			final long content_length = info.headers().firstValueAsLong("Content-Length").orElse(-1);
+
+			if (info.statusCode() != 200) {
+				return new ArenaBodySubscriber(-1);
+			} else if (!PageRetriever.isValidContentType(content_type)) {
+				UserPrefs.debugTxt(TAG+id, "invalid content type[" + content_type + "]", "url = " + path);
+				return new ArenaBodySubscriber(-1);
+			} else if (content_length > max_body_size) {
+				UserPrefs.debugTxt(TAG+id, "content length[" + content_length + "] over the maximum body size; skipping...", "url = " + path);
+				return new ArenaBodySubscriber(-1);
+			}
+			return new ArenaBodySubscriber(max_body_size);
+		}
+	}
+
+	/**
+	 * Copies a response body in to the page arena as it arrives, a buffer at a time. Completes with
+	 * the body, or with null if the body was empty, rejected or over the size limit.
+	 */
+	private static final class ArenaBodySubscriber implements HttpResponse.BodySubscriber<PageBody> {
+		private final CompletableFuture<PageBody> result = new CompletableFuture<PageBody>();
+		private final PageArena.BodyWriter writer = PageArena.getPageArena().newWriter();
+		private final long max_bytes;
+		private Flow.Subscription subscription;
+		private boolean done = false;
+
+		/**
+		 * @param max_bytes The largest body wanted, or -1 to reject the body without reading it.
+		 */
+		ArenaBodySubscriber(final long max_bytes) {
+			this.max_bytes = max_bytes;
+		}
+
+		@Override
+		public void onSubscribe(final Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (max_bytes < 0) {
+				subscription.cancel();
+				end(false);
+			} else {
+				subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onNext(final List<ByteBuffer> buffers) {
+			if (done)
+				return;
+			for (ByteBuffer buffer : buffers)
+				writer.write(buffer);
+			if (writer.length() > max_bytes) {
+				subscription.cancel();
+				end(false);
+			} else {
+				subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onError(final Throwable t) {
+			if (done)
+				return;
+			done = true;
+			writer.abort();
+			result.completeExceptionally(t);
+		}
+
+		@Override
+		public void onComplete() {
+			end(true);
+		}
+
+		@Override
+		public CompletionStage<PageBody> getBody() {
+			return result;
+		}
+
+		private void end(final boolean keep) {
+			if (done)
+				return;
+			done = true;
+			if (keep && writer.length() > 0) {
+				result.complete(writer.finish());
+			} else {
+				writer.abort();
+				result.complete(null);
+			}
+		}
+	}
+
+}
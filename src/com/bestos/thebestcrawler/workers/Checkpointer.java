@@ -0,0 +1,438 @@
+// Checkpointer.java
+// Checkpointer
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.FrontierJournal;
+import com.bestos.thebestcrawler.buffers.StringQueue;
+import com.bestos.thebestcrawler.utils.RobotTxtUtil;
+
+/**
+ * The Checkpointer periodically saves the state of a crawl to disk, without stopping any
+ * workers, so that a stopped or crashed crawl can be resumed where it left off.<BR><BR>
+ * Three files are written to the checkpoint directory:
+ * <ul>
+ * <li><code>frontier.journal</code> - the url buffer's {@link FrontierJournal}. Only the records
+ * added since the last checkpoint are appended, so a checkpoint costs the same no matter how
+ * large the frontier and seen set have grown. Once the journal has doubled in length since it
+ * was last compacted, it is compacted in to a new journal file (<code>frontier.journal.1</code>,
+ * <code>.2</code>, ...), so it stays within a small multiple of the length of the pending urls
+ * plus 9 bytes a done url. The old file is deleted once the state file names the new one.</li>
+ * <li><code>robots.journal</code> - the parsed robots.txt rules. Only the rules parsed since the last
+ * checkpoint are appended, one for each new host.</li>
+ * <li><code>crawl.state</code> - the page counters, the reporter's totals, and the journal files and
+ * their lengths at the time of the checkpoint. It is small, and rewritten in full (to a temporary file
+ * which then replaces the old one) every checkpoint.</li>
+ * </ul>
+ * On resume, anything in the journals past the lengths recorded in the state file (e.g. a partly
+ * written checkpoint) is discarded. Urls which had been handed to a retriever, but whose pages had
+ * not yet been parsed, are retrieved again.
+ * @author Michael Morris
+ * @version 5/13/2013
+ *
+ */
+public class Checkpointer extends Thread {
+
+	private static final String TAG = "Checkpointer";
+
+	private static final String JOURNAL_FILE = "frontier.journal";
+	private static final String ROBOTS_FILE = "robots.journal";
+	private static final String STATE_FILE = "crawl.state";
+	private static final String STATE_TEMP_FILE = "crawl.state.tmp";
+
+	private static final int STATE_MAGIC = 0x42455354;
+	private static final int STATE_VERSION = 3;
+
+	/** The shortest journal worth compacting. **/
+	private static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+
+	private final File directory;
+
+	private final long interval_millis;
+
+	private final StringQueue url_buffer;
+
+	private final DataGatherer gatherer;
+
+	private final FrontierJournal journal;
+
+	/** The journal file, open for appending once the first checkpoint is taken. **/
+	private FileOutputStream journal_file = null;
+	private BufferedOutputStream journal_out = null;
+
+	/** The number of journal bytes covered by the last checkpoint. **/
+	private long journal_length = 0;
+
+	/** The robots.txt rule journal, open for appending once the first checkpoint is taken. **/
+	private FileOutputStream robots_file = null;
+	private BufferedOutputStream robots_out = null;
+
+	/** The number of rule journal bytes covered by the last checkpoint. **/
+	private long robots_length = 0;
+
+	/** The length of the journal when it was last compacted. **/
+	private long compacted_length = 0;
+
+	/** The number of times the journal has been compacted, which names its file. **/
+	private int journal_generation = 0;
+
+	/** True once a checkpoint has been restored, so the existing files are continued rather than replaced. **/
+	private boolean restored = false;
+
+	/** The control flag which controls the running state of the Checkpointer. **/
+	private volatile boolean running = true;
+
+	/**
+	 * Construct a Checkpointer and start journaling the url buffer. The first checkpoint is
+	 * written one interval after the thread is started.
+	 * @param directory The directory to write checkpoints to; created if missing.
+	 * @param interval_millis The number of milliseconds between checkpoints.
+	 * @param url_buffer The url buffer to checkpoint.
+	 * @param gatherer The data gatherer whose totals to checkpoint.
+	 */
+	public Checkpointer(final File directory, final long interval_millis, final StringQueue url_buffer, final DataGatherer gatherer) {
+		if (directory == null || url_buffer == null || gatherer == null)
+			throw new IllegalArgumentException("must specify a directory, url buffer and gatherer; directory[" + directory
+					+ "], url_buffer[" + url_buffer + "], gatherer[" + gatherer + "]");
+		if (interval_millis <= 0)
+			throw new IllegalArgumentException("interval must be positive; interval_millis[" + interval_millis + "]");
+
+		this.directory = directory;
+		this.interval_millis = interval_millis;
+		this.url_buffer = url_buffer;
+		this.gatherer = gatherer;
+		journal = new FrontierJournal();
+		url_buffer.setJournal(journal);
+		RobotTxtUtil.SetRecording(true);
+		setName(TAG);
+		setDaemon(true);
+	}
+
+	/**
+	 * Check whether the given directory holds a checkpoint which can be resumed.
+	 * @param directory The checkpoint directory.
+	 * @return True if a checkpoint exists, false otherwise.
+	 */
+	public static boolean hasCheckpoint(final File directory) {
+		return directory != null && new File(directory, STATE_FILE).isFile();
+	}
+
+	/**
+	 * Restore the crawl saved in the checkpoint directory in to the (empty) url buffer, data gatherer,
+	 * page counters and robots.txt rules. Must be called before any worker, or this thread, is started.
+	 * @return The number of pending urls restored.
+	 * @throws IOException If there is no checkpoint, or it could not be read.
+	 */
+	public synchronized int restore() throws IOException {
+
+		final DataInputStream state = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, STATE_FILE))));
+		try {
+			if (state.readInt() != STATE_MAGIC)
+				throw new IOException("not a crawl checkpoint; directory[" + directory + "]");
+			final int version = state.readInt();
+			if (version != 1 && version != STATE_VERSION)
+				throw new IOException("unsupported checkpoint version[" + version + "]");
+
+			journal_length = state.readLong();
+			journal_generation = version >= 2 ? state.readInt() : 0;
+			robots_length = version >= 3 ? state.readLong() : 0;
+			PageRetriever.setPagesRetrieved(state.readInt());
+			PageParser.setPagesParsed(state.readInt());
+			gatherer.getReporter().readState(state);
+			// Older checkpoints kept the rules in the state file; they are journaled by the next checkpoint.
+			if (version < 3)
+				RobotTxtUtil.LoadRules(state);
+		} finally {
+			state.close();
+		}
+
+		final int num_rules;
+		final DataInputStream robots = new DataInputStream(openRobotsJournal());
+		try {
+			num_rules = RobotTxtUtil.LoadNewRules(robots);
+		} finally {
+			robots.close();
+		}
+
+		compacted_length = journal_length;
+
+		// Replay the journal without recording it again; it is already on disk.
+		final int pending;
+		final InputStream taken_pass = openJournal();
+		final InputStream added_pass = openJournal();
+		url_buffer.setJournal(null);
+		try {
+			pending = FrontierJournal.replay(taken_pass, added_pass, url_buffer);
+		} finally {
+			url_buffer.setJournal(journal);
+			taken_pass.close();
+			added_pass.close();
+		}
+
+		restored = true;
+		UserPrefs.debugTxt(TAG, "restored checkpoint", "directory = " + directory, "pending urls = " + pending, "seen urls = " + url_buffer.numSeen(),
+						"journaled robots.txt rules = " + num_rules);
+		return pending;
+	}
+
+	/** {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval_millis);
+			} catch (InterruptedException ie) {
+				continue;
+			}
+			try {
+				checkpoint();
+			} catch (IOException ioe) {
+				UserPrefs.errorTxt(TAG, "IOException thrown while attempting to write a checkpoint.", ioe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Write a checkpoint now. Workers may keep running while it is written.
+	 * @throws IOException If the checkpoint could not be written.
+	 */
+	public synchronized void checkpoint() throws IOException {
+
+		if (journal_out == null)
+			openJournalForAppend();
+
+		// The journal must be on disk before the state file says it is.
+		journal_length += journal.flushTo(journal_out);
+		journal_out.flush();
+		journal_file.getChannel().force(false);
+
+		final DataOutputStream robots = new DataOutputStream(robots_out);
+		RobotTxtUtil.SaveNewRules(robots);
+		robots.flush();
+		robots_length += robots.size();
+		robots_file.getChannel().force(false);
+
+		final boolean compacted = journal_length >= MIN_COMPACT_LENGTH && journal_length >= 2 * compacted_length;
+		if (compacted)
+			compactJournal();
+
+		final File temp = new File(directory, STATE_TEMP_FILE);
+		final FileOutputStream temp_file = new FileOutputStream(temp);
+		try {
+			final DataOutputStream state = new DataOutputStream(new BufferedOutputStream(temp_file));
+			state.writeInt(STATE_MAGIC);
+			state.writeInt(STATE_VERSION);
+			state.writeLong(journal_length);
+			state.writeInt(journal_generation);
+			state.writeLong(robots_length);
+			state.writeInt(PageRetriever.getPagesRetrieved());
+			state.writeInt(PageParser.getPagesParsed());
+			gatherer.getReporter().writeState(state);
+			state.flush();
+			temp_file.getFD().sync();
+		} finally {
+			temp_file.close();
+		}
+		Files.move(temp.toPath(), new File(directory, STATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// The state names the compacted journal now, so the one it replaced can go.
+		if (compacted)
+			journalFile(journal_generation - 1).delete();
+
+		UserPrefs.debugTxt(TAG, "checkpoint written", "journal bytes = " + journal_length, "pending urls = " + url_buffer.numPending());
+	}
+
+	/**
+	 * Stop taking periodic checkpoints and write a final one. Blocks until it is written.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+		try {
+			join();
+		} catch (InterruptedException ie) { }
+
+		try {
+			checkpoint();
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "IOException thrown while attempting to write the final checkpoint.", ioe.getMessage());
+		}
+		synchronized (this) {
+			url_buffer.setJournal(null);
+			RobotTxtUtil.SetRecording(false);
+			try {
+				if (journal_out != null)
+					journal_out.close();
+			} catch (IOException ioe) { }
+			try {
+				if (robots_out != null)
+					robots_out.close();
+			} catch (IOException ioe) { }
+			journal_out = null;
+			journal_file = null;
+			robots_out = null;
+			robots_file = null;
+		}
+	}
+
+	/**
+	 * Open the journal files for appending. A restored journal is cut back to the length its
+	 * checkpoint covered; otherwise any old checkpoint is replaced.
+	 */
+	private void openJournalForAppend() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("could not create checkpoint directory[" + directory + "]");
+
+		if (!restored) {
+			new File(directory, STATE_FILE).delete();
+			journal_length = 0;
+			journal_generation = 0;
+			robots_length = 0;
+		}
+		final File file = journalFile(journal_generation);
+		truncate(file, journal_length);
+		journal_file = new FileOutputStream(file, true);
+		journal_out = new BufferedOutputStream(journal_file, 64 * 1024);
+
+		final File rules_file = new File(directory, ROBOTS_FILE);
+		truncate(rules_file, robots_length);
+		robots_file = new FileOutputStream(rules_file, true);
+		robots_out = new BufferedOutputStream(robots_file, 64 * 1024);
+	}
+
+	private static void truncate(final File file, final long length) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Rewrite the journal, up to the length flushed so far, in to the next generation's file with only
+	 * the fingerprints of the urls which are done, then continue appending to that file. The old file
+	 * is kept until the state file names the new one.
+	 */
+	private void compactJournal() throws IOException {
+		final long old_length = journal_length;
+		final FileOutputStream compacted_file = new FileOutputStream(journalFile(journal_generation + 1));
+		final InputStream done_pass = openJournal();
+		final InputStream added_pass = openJournal();
+		final int new_length;
+		try {
+			new_length = FrontierJournal.compact(done_pass, added_pass, new BufferedOutputStream(compacted_file, 64 * 1024));
+			compacted_file.getFD().sync();
+		} finally {
+			compacted_file.close();
+			done_pass.close();
+			added_pass.close();
+		}
+
+		journal_out.close();
+		journal_generation++;
+		journal_length = new_length;
+		compacted_length = new_length;
+		journal_file = new FileOutputStream(journalFile(journal_generation), true);
+		journal_out = new BufferedOutputStream(journal_file, 64 * 1024);
+
+		UserPrefs.debugTxt(TAG, "journal compacted", "old bytes = " + old_length, "new bytes = " + new_length);
+	}
+
+	/**
+	 * Get the journal file of a generation; the first is never compacted.
+	 */
+	private File journalFile(final int generation) {
+		return new File(directory, generation == 0 ? JOURNAL_FILE : JOURNAL_FILE + "." + generation);
+	}
+
+	/**
+	 * Open the journal file for reading, up to the length the checkpoint covered.
+	 */
+	private InputStream openJournal() throws IOException {
+		final File file = journalFile(journal_generation);
+		if (!file.isFile()) {
+			if (journal_length > 0)
+				throw new IOException("checkpoint journal is missing; file[" + file + "]");
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return new LimitedInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024), journal_length);
+	}
+
+	/**
+	 * Open the robots.txt rule journal for reading, up to the length the checkpoint covered.
+	 */
+	private InputStream openRobotsJournal() throws IOException {
+		final File file = new File(directory, ROBOTS_FILE);
+		if (!file.isFile()) {
+			if (robots_length > 0)
+				throw new IOException("checkpoint robots.txt journal is missing; file[" + file + "]");
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return new LimitedInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024), robots_length);
+	}
+
+	/**
+	 * An InputStream which ends after a given number of bytes.
+	 */
+	private static final class LimitedInputStream extends FilterInputStream {
+		private long left;
+
+		LimitedInputStream(final InputStream in, final long limit) {
+			super(in);
+			left = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left <= 0)
+				return -1;
+			final int b = super.read();
+			if (b >= 0)
+				left--;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (left <= 0)
+				return -1;
+			final int n = super.read(b, off, (int)Math.min(len, left));
+			if (n > 0)
+				left -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(Math.min(n, left));
+			left -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), left);
+		}
+	}
+
+}
@@ -1,7 +1,8 @@
 package com.bestos.thebestcrawler.workers;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Data Gatherer class where all parse threads send information gathered and
@@ -13,10 +14,15 @@ import java.util.Queue;
  */
 public class DataGatherer extends Thread {
 	
+	/**
+	 * The maximum number of milliseconds to wait for data before re-checking the stopRunning flag.
+	 */
+	private static final int MILLIS_TO_WAIT_FOR_DATA = 250;
+	
 	/**
 	 * The queue that stores data as it is passed in from all parsing threads.
 	 */
-	Queue<PageData> allData;
+	BlockingQueue<PageData> allData;
 	
 	/**
 	 * The reporter object that does all data calculation, stores totals, and sends
@@ -36,23 +42,19 @@ public class DataGatherer extends Thread {
 		PageData nextData = null;
 		long runningTime;
 		while(!stopRunning) {
-					
-			synchronized (allData) {
-				nextData = allData.poll();
+			
+			// Wait for the next PageData; a parser adding one wakes us immediately.
+			try {
+				nextData = allData.poll(MILLIS_TO_WAIT_FOR_DATA, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				nextData = null;
 			}
 			
 			if (nextData != null) {
 				runningTime = nextData.getEndTime() - nextData.getStartTime();
 				theReporter.getDataGathererInfo(nextData.getPagesRetrieved(), nextData.getTotalWords(), nextData.getCurrentURL(), 
 											    nextData.getKeywordMap(), runningTime);
-			} else {
-				
-				try {
-					sleep(10);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			
 			}
 		}
 	}
@@ -61,20 +63,27 @@ public class DataGatherer extends Thread {
 	 * Constructs the data gatherer.
 	 */
 	public DataGatherer() {
-		allData = new LinkedList<PageData>();
+		allData = new LinkedBlockingQueue<PageData>();
 		theReporter = new Reporter();
 	}
 	
 	/**
-	 * Adds the PageData to the queue in a synchronized manner so that only one
-	 * parser can store a PageData object at a time.
+	 * Adds the PageData to the queue in a thread-safe manner, waking the gatherer
+	 * if it is waiting for data.
 	 * 
 	 * @param theData All the data gathered by the parser.
 	 */
 	public void addPageData(PageData theData) {
-		synchronized (allData) {
-			allData.add(theData);
-		}
+		allData.add(theData);
+	}
+	
+	/**
+	 * Returns the reporter holding the running totals.
+	 * 
+	 * @return The reporter.
+	 */
+	public Reporter getReporter() {
+		return theReporter;
 	}
 	
 	/**
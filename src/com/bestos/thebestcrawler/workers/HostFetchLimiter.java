@@ -0,0 +1,137 @@
+// HostFetchLimiter.java
+// HostFetchLimiter
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.HostPartitionedFrontier;
+
+/**
+ * The HostFetchLimiter caps the number of fetches to any one host which may run at once, so
+ * thousands of concurrent fetches are spread over many hosts rather than piling on to a few.
+ * Each host busy with fetches has a {@link Semaphore}, which is dropped again once its last
+ * fetch is done, so hosts seen once in a long crawl are not remembered.<BR><BR>
+ * Fetches wait by parking on the semaphore, which is cheap for virtual threads.
+ * @author Michael Morris
+ * @version 5/24/2013
+ *
+ */
+public class HostFetchLimiter {
+
+	private static HostFetchLimiter host_fetch_limiter = null;
+
+	private final int max_per_host;
+
+	/** The hosts with fetches running or waiting, by host key. **/
+	private final Map<String, HostPermits> hosts;
+
+	/**
+	 * Construct a HostFetchLimiter.
+	 * @param max_per_host The most fetches to run at once to any one host.
+	 */
+	public HostFetchLimiter(final int max_per_host) {
+		if (max_per_host <= 0)
+			throw new IllegalArgumentException("must specify a positive number of fetches per host; max_per_host[" + max_per_host + "]");
+		this.max_per_host = max_per_host;
+		hosts = new HashMap<String, HostPermits>();
+	}
+
+	/**
+	 * Get the shared HostFetchLimiter, allowing {@link UserPrefs#getMaxFetchesPerHost()} when first used.
+	 * @return The HostFetchLimiter.
+	 */
+	public static final synchronized HostFetchLimiter getHostFetchLimiter() {
+		if (host_fetch_limiter == null)
+			host_fetch_limiter = new HostFetchLimiter(UserPrefs.getUserPrefs().getMaxFetchesPerHost());
+		return host_fetch_limiter;
+	}
+
+	/**
+	 * (Thread-Safe) Wait for a free fetch to the host of a url. Every successful call must be
+	 * matched by a call to {@link #release(String)} with the same url.
+	 * @param url The url about to be fetched.
+	 * @throws InterruptedException If interrupted while waiting; nothing is then held.
+	 */
+	public void acquire(final String url) throws InterruptedException {
+		final String host = HostPartitionedFrontier.getHostKey(url);
+		final HostPermits permits;
+		synchronized (hosts) {
+			HostPermits existing = hosts.get(host);
+			if (existing == null) {
+				existing = new HostPermits(max_per_host);
+				hosts.put(host, existing);
+			}
+			existing.users++;
+			permits = existing;
+		}
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException ie) {
+			leave(host, permits);
+			throw ie;
+		}
+	}
+
+	/**
+	 * (Thread-Safe) Give back a fetch taken with {@link #acquire(String)}.
+	 * @param url The url which was fetched.
+	 */
+	public void release(final String url) {
+		final String host = HostPartitionedFrontier.getHostKey(url);
+		final HostPermits permits;
+		synchronized (hosts) {
+			permits = hosts.get(host);
+		}
+		if (permits == null)
+			throw new IllegalStateException("no fetch to release for host[" + host + "]");
+		permits.release();
+		leave(host, permits);
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of hosts with fetches running or waiting.
+	 * @return The number of hosts.
+	 */
+	public int getNumBusyHosts() {
+		synchronized (hosts) {
+			return hosts.size();
+		}
+	}
+
+	/**
+	 * Get the most fetches run at once to any one host.
+	 * @return The number of fetches.
+	 */
+	public int getMaxPerHost() {
+		return max_per_host;
+	}
+
+	private void leave(final String host, final HostPermits permits) {
+		synchronized (hosts) {
+			if (--permits.users == 0)
+				hosts.remove(host);
+		}
+	}
+
+	/**
+	 * One host's permits, with the number of fetches running or waiting for them.
+	 */
+	private static final class HostPermits extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		/** Guarded by the hosts map. **/
+		int users = 0;
+
+		HostPermits(final int permits) {
+			super(permits);
+		}
+	}
+
+}
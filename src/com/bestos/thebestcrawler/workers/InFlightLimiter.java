@@ -0,0 +1,84 @@
+// InFlightLimiter.java
+// InFlightLimiter
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.bestos.thebestcrawler.UserPrefs;
+
+/**
+ * The InFlightLimiter caps the number of fetches running at once over every {@link AsyncPageRetriever}
+ * and {@link VirtualPageRetriever}, so that the cap holds however many of those workers are started.
+ * Each worker holds one permit for each fetch it has running, and one while it waits for a url.
+ * @author Michael Morris
+ * @version 5/29/2013
+ *
+ */
+public class InFlightLimiter {
+
+	private static InFlightLimiter in_flight_limiter = null;
+
+	private final int max_in_flight;
+
+	private final Semaphore permits;
+
+	/**
+	 * Construct an InFlightLimiter.
+	 * @param max_in_flight The most fetches to run at once.
+	 */
+	public InFlightLimiter(final int max_in_flight) {
+		if (max_in_flight <= 0)
+			throw new IllegalArgumentException("must specify a positive number of fetches; max_in_flight[" + max_in_flight + "]");
+		this.max_in_flight = max_in_flight;
+		permits = new Semaphore(max_in_flight);
+	}
+
+	/**
+	 * Get the shared InFlightLimiter, allowing {@link UserPrefs#getMaxFetchesInFlight()} when first used.
+	 * @return The InFlightLimiter.
+	 */
+	public static final synchronized InFlightLimiter getInFlightLimiter() {
+		if (in_flight_limiter == null)
+			in_flight_limiter = new InFlightLimiter(UserPrefs.getUserPrefs().getMaxFetchesInFlight());
+		return in_flight_limiter;
+	}
+
+	/**
+	 * (Thread-Safe) Wait a while for a free fetch. Every successful call must be matched by a call
+	 * to {@link #release()}.
+	 * @param millis The longest to wait, in milliseconds.
+	 * @return True if a fetch was taken, false if none came free in time.
+	 * @throws InterruptedException If interrupted while waiting; nothing is then held.
+	 */
+	public boolean tryAcquire(final long millis) throws InterruptedException {
+		return permits.tryAcquire(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * (Thread-Safe) Give back a fetch taken with {@link #tryAcquire(long)}.
+	 */
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * (Thread-Safe) Get the number of fetches running, or held by a worker waiting for a url.
+	 * @return The number of fetches.
+	 */
+	public int getNumInFlight() {
+		return max_in_flight - permits.availablePermits();
+	}
+
+	/**
+	 * Get the most fetches run at once.
+	 * @return The number of fetches.
+	 */
+	public int getMaxInFlight() {
+		return max_in_flight;
+	}
+
+}
@@ -0,0 +1,52 @@
+// KeywordDensityScorer.java
+// KeywordDensityScorer
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default {@link UrlScorer}. A link scores the keyword density of the page it was found
+ * on, plus a bonus for every keyword that appears in its anchor text or in the url itself.
+ * So links out of pages with many hits, and links which mention a keyword, are retrieved first.
+ * @author Michael Morris
+ * @version 5/9/2013
+ *
+ */
+public class KeywordDensityScorer implements UrlScorer {
+
+	/** The weight of a single keyword appearing in the anchor text or url, relative to a density of 1.0. **/
+	private static final double ANCHOR_KEYWORD_WEIGHT = 0.25;
+
+	private final List<String> upper_keywords;
+
+	/**
+	 * Construct a KeywordDensityScorer.
+	 * @param keywords The keywords being crawled for.
+	 */
+	public KeywordDensityScorer(final List<String> keywords) {
+		upper_keywords = new ArrayList<String>();
+		if (keywords != null)
+			for (String keyword : keywords)
+				upper_keywords.add(keyword.toUpperCase());
+	}
+
+	@Override
+	public double score(final String url, final PageData parent, final String anchor_text) {
+		double score = parent != null ? parent.getKeywordDensity() : 0.0;
+
+		if (!upper_keywords.isEmpty()) {
+			final String upper_anchor = anchor_text != null ? anchor_text.toUpperCase() : "";
+			final String upper_url = url.toUpperCase();
+			for (String keyword : upper_keywords)
+				if (upper_anchor.contains(keyword) || upper_url.contains(keyword))
+					score += ANCHOR_KEYWORD_WEIGHT;
+		}
+
+		return score;
+	}
+
+}
@@ -136,6 +136,21 @@ public class PageData {
 		return totalWords;
 	}
 	
+	/**
+	 * Returns the keyword density of the page: the total keyword hits divided by
+	 * the total amount of words.
+	 * 
+	 * @return The keyword density, or 0 if no words were parsed.
+	 */
+	public double getKeywordDensity() {
+		if (totalWords <= 0)
+			return 0.0;
+		long hits = 0;
+		for (Integer count : keywordMap.values())
+			hits += count;
+		return hits / (double)totalWords;
+	}
+	
 	/**
 	 * Returns the current URL for all the data in this data object.
 	 * 
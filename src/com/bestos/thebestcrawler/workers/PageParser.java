@@ -5,22 +5,26 @@
 
 package com.bestos.thebestcrawler.workers;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.ccil.cowan.tagsoup.jaxp.SAXParserImpl;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import com.bestos.thebestcrawler.UserPrefs;
-import com.bestos.thebestcrawler.buffers.DoubleStringQueue;
+import com.bestos.thebestcrawler.buffers.PageBuffer;
+import com.bestos.thebestcrawler.buffers.PageRecord;
 import com.bestos.thebestcrawler.buffers.StringQueue;
+import com.bestos.thebestcrawler.utils.DnsCache;
+import com.bestos.thebestcrawler.utils.PageDecoder;
+import com.bestos.thebestcrawler.utils.UrlCanonicalizer;
 import com.bestos.thebestcrawler.workers.PageRetriever.PageRetrieverListener;
 
 public class PageParser extends Worker {
@@ -41,13 +45,13 @@ public class PageParser extends Worker {
 	private boolean running = true;
 	
 	/** 
-	 * The number of milliseconds to "wait" before trying to
-	 * check again for work to do.
+	 * The maximum number of milliseconds to wait for work before re-checking the running flag.
+	 * Waiting parsers are woken as soon as a page is added, so this does not delay work.
 	 */
-	private static final int MILLIS_TO_YIELD_CPU = 20;
+	private static final int MILLIS_TO_WAIT_FOR_WORK = 250;
 	
-	/** The StringQueue to use for a page buffer. **/
-	private final DoubleStringQueue page_buffer;
+	/** The PageBuffer to take retrieved pages from. **/
+	private final PageBuffer page_buffer;
 	
 	/** The StringQueue to use for a url buffer. **/
 	private final StringQueue url_buffer;
@@ -58,6 +62,9 @@ public class PageParser extends Worker {
 		
 	private final DataGatherer mGatherer;
 	
+	/** Scores the links found on each page, for best-first url buffers. **/
+	private final UrlScorer mScorer;
+	
 	/**
 	 * The PRCallbackType is an internally used enumeration
 	 * to depict which type of callback to execute.
@@ -75,15 +82,25 @@ public class PageParser extends Worker {
 	}
 	
 	/**
-	 * Construct a new PageParser.
+	 * Construct a new PageParser, which scores links with a {@link KeywordDensityScorer}.
+	 */
+	public PageParser(final PageBuffer page_buffer, final StringQueue url_buffer, final ArrayList<String> keywords, DataGatherer gatherer) {	
+		this(page_buffer, url_buffer, keywords, gatherer, new KeywordDensityScorer(keywords));
+	}
+	
+	/**
+	 * Construct a new PageParser, which scores links with the given {@link UrlScorer}.
 	 */
-	public PageParser(final DoubleStringQueue page_buffer, final StringQueue url_buffer, final ArrayList<String> keywords, DataGatherer gatherer) {	
+	public PageParser(final PageBuffer page_buffer, final StringQueue url_buffer, final ArrayList<String> keywords, DataGatherer gatherer, final UrlScorer scorer) {	
 		if (page_buffer == null || url_buffer == null)
 			throw new IllegalArgumentException("must specify both page and url buffers; page[" + page_buffer +"], url[" + url_buffer + "]");
 		if (gatherer == null)
 			throw new IllegalArgumentException("must specify a DataGatherer");
+		if (scorer == null)
+			throw new IllegalArgumentException("must specify a UrlScorer");
 		
 		mGatherer = gatherer;
+		mScorer = scorer;
 		this.page_buffer = page_buffer;
 		this.url_buffer = url_buffer;
 		
@@ -120,12 +137,24 @@ public class PageParser extends Worker {
 				continue;
 			}
 			
-			// Check to see if there is work to be done
-			final String[] current = page_buffer.getNextPending();
-			if (underMaxPages() && current != null && current[0] != null && current[1] != null) {
+			// Check to see if there is work to be done, waiting for it if we are already idle.
+			PageRecord current = null;
+			try {
+				current = idle ? page_buffer.take(MILLIS_TO_WAIT_FOR_WORK) : page_buffer.getNextPending();
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..); loop around and check the running flag.
+				continue;
+			}
+			
+			// Pages taken after the limit is reached are dropped.
+			if (current != null && !underMaxPages()) {
+				current.getBody().release();
+				current = null;
+			}
+			
+			if (current != null) {
 				
-				final String path = current[0];
-				final String content = current[1];
+				final String path = current.getUrl();
 				final PageData pageData = new PageData(mKeywords);
 				pageData.setDataURL(path);
 				
@@ -137,30 +166,43 @@ public class PageParser extends Worker {
 				final long start_time = System.currentTimeMillis();
 				pageData.setTime(start_time, true);
 				
-				// Attempt create an input stream from the content itself.
-				InputStream in = null;
+				// Decode the raw bytes retrieved in to the page arena as they are parsed, in the
+				// charset the page declares.
+				Reader in = null;
 				try {
-					in = new ByteArrayInputStream(content.getBytes("UTF-8"));
-				} catch (UnsupportedEncodingException e) {
-					UserPrefs.errorTxt(TAG+id, "ByteArrayInputStream thrown while attempting to aquire stream from content; cannot continue", e.getMessage());
-					executeCallback(PPCallbackType.FAIL, path, e);
+					in = PageDecoder.openReader(current);
+				} catch (IOException ioe) {
+					UserPrefs.errorTxt(TAG+id, "IOException thrown while attempting to open a reader on the content; cannot continue", ioe.getMessage());
+					executeCallback(PPCallbackType.FAIL, path, ioe);
 					error = true;
 				}
 				
+				// The links found on the page and their anchor texts; only scored and added to the
+				// url buffer once the whole page has been parsed.
+				final List<String> links = new ArrayList<String>();
+				final List<String> anchor_texts = new ArrayList<String>();
+				
 				// Try to aquire a parser instance and parse.
 				if (!error && in != null) {
 					
 					try {
 						SAXParserImpl.newInstance(null).parse(
-						        in,
+						        new InputSource(in),
 						        new DefaultHandler() {
 						           
 						        	String last_parsed_token = null;
 						        	
+						        	// The link whose anchor tag is currently open, and its text so far.
+						        	String open_link = null;
+						        	final StringBuilder open_anchor_text = new StringBuilder();
+						        	
 						        	// Method for retrieving the displayable text
 						        	@Override
 						        	public void characters(char[] chars, int start, int length) throws SAXException {
 						        		
+						        		if (open_link != null)
+						        			open_anchor_text.append(chars, start, length);
+						        		
 						        		final String[] tokens = ((last_parsed_token != null ? last_parsed_token : "") + String.valueOf(Arrays.copyOfRange(chars, start, start + length)).toUpperCase()).split("\\s+");
 						        		
 						        			if (tokens != null && tokens.length > 0) {
@@ -205,32 +247,15 @@ public class PageParser extends Worker {
 							                	// If it is a valid url, excludes ftp and others
 							                	if (!url.contains("mailto:") && (url.startsWith("http://") || url.startsWith("https://") || !url.contains("://" ))) {
 							                	
-							                		final int strip_index = url.indexOf('#');
-							                		// Strip off #
-							                		if (strip_index >= 0)
-							                			url = url.substring(0, strip_index);
-							                		
+							                		// Resolve the link against the page's url (this also strips off its #fragment).
+							                		url = UrlCanonicalizer.resolve(path, url);
 							                		
-							                		if (!url.isEmpty()) {
-							                			
-							                			
-							                			URL url_to_page = null;
-							                			try {
-							                				url_to_page = new URL(path);
-							                			} catch (Exception ex) {
-							                				UserPrefs.errorTxt(TAG+id, "Exception thrown while attempting to validate link", ex.getMessage());
-							                			}
-							                			
-							                			// add a path to relative links
-							                			if (url_to_page != null && !url.contains("http") ) {
-							                				String tmp = url_to_page.getProtocol() + "://" + url_to_page.getHost() + url_to_page.getFile();
-							                				tmp = tmp.substring(0, tmp.lastIndexOf('/'));
-							                				url = tmp + (url.startsWith("/") ? "" : "/") + url;
-							                			}
+							                		if (url != null && (url.startsWith("http://") || url.startsWith("https://"))) {
 							                			
-							                			// Add the url to the url buffer.
+							                			// Remember the url until its anchor tag is closed.
 							                			pageData.incrementPagesRetrieved();
-							                			url_buffer.addPending(url);
+							                			closeLink();
+							                			open_link = url;
 							                			
 							                		}
 							                	} 
@@ -238,6 +263,27 @@ public class PageParser extends Worker {
 						                }
 						            }
 						        	
+						        	@Override
+						        	public void endElement(String uri, String localName, String name) {
+						        		if (name.equalsIgnoreCase("a"))
+						        			closeLink();
+						        	}
+						        	
+						        	@Override
+						        	public void endDocument() {
+						        		closeLink();
+						        	}
+						        	
+						        	// Save the open link, if any, with the anchor text collected for it.
+						        	private void closeLink() {
+						        		if (open_link != null) {
+						        			links.add(open_link);
+						        			anchor_texts.add(open_anchor_text.toString().trim());
+						        			open_link = null;
+						        		}
+						        		open_anchor_text.setLength(0);
+						        	}
+						        	
 						        	@Override
 						        	public void warning(SAXParseException saxe) throws SAXException {
 						        		super.warning(saxe);
@@ -251,8 +297,26 @@ public class PageParser extends Worker {
 						error = true;
 					}
 					
+					try {
+						in.close();
+					} catch (IOException ioe) { /* Nothing to do; the body is released below. */ }
+					
 				}
 				
+				// The body is no longer needed; give its storage back for the next page.
+				current.getBody().release();
+				
+				// Now that the page's keyword density is known, score its links and add them to the url buffer in one batch.
+				final double[] scores = new double[links.size()];
+				for (int i = 0; i < links.size(); i++)
+					scores[i] = mScorer.score(links.get(i), pageData, anchor_texts.get(i));
+				final List<String> added_links = new ArrayList<String>(links.size());
+				url_buffer.addAllPending(links, scores, added_links);
+				// Look up the hosts of the links queued now (not those already seen), so the retrievers find their addresses cached.
+				DnsCache.getDnsCache().prefetchHostsOf(added_links);
+				// The page's links are queued, so it need not be retrieved again after a restart.
+				url_buffer.markDone(path);
+				
 				final long end_time = System.currentTimeMillis();
 				pageData.setTime(end_time, false);
 				final long elapsed = end_time - start_time;
@@ -275,11 +339,6 @@ public class PageParser extends Worker {
 				}
 				
 				idle = true;
-				
-				// If there is NOT, wait
-				try {
-					sleep(MILLIS_TO_YIELD_CPU);
-				} catch (Exception ex) { /* Do nothing since this means that this thread has no way to "wait". */ }
 			}
 			
 			
@@ -336,28 +395,16 @@ public class PageParser extends Worker {
 	
 	private void executeCallback(final PPCallbackType type, final String url, final Exception e) {
 		
-		// If there are no listeners to call then why bother.
-		if (listeners.isEmpty())
-			return;
-		
 		// execute the correct type of callback.
 		switch (type) {
 			case START:
 				super.executeCallback(WorkerCallbackType.START);
 				break;
 			case SUCCESS:
-				
-				// Call all the listeners onSuccess methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onSuccess(id, url);
-				
+				super.executeCallback(WorkerCallbackType.SUCCESS, id, url, null);
 				break;
 			case FAIL:
-				
-				// Call all the listeners onFail methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onFail(id, url, e);
-				
+				super.executeCallback(WorkerCallbackType.FAIL, id, url, e);
 				break;
 			case IDLE:
 				super.executeCallback(WorkerCallbackType.IDLE);
@@ -375,6 +422,23 @@ public class PageParser extends Worker {
 		
 	}
 	
+	/**
+	 * Get the number of pages parsed by all PageParsers so far.
+	 * @return The number of pages parsed.
+	 */
+	public static int getPagesParsed() {
+		return pages_parsed;
+	}
+	
+	/**
+	 * Set the number of pages parsed so far, e.g. when resuming a crawl from a checkpoint.
+	 * Must be called before any PageParser is started.
+	 * @param count The number of pages parsed.
+	 */
+	public static void setPagesParsed(final int count) {
+		pages_parsed = count;
+	}
+	
 	public static class PageParserListener extends WorkerListener {
 		
 		
@@ -393,7 +457,7 @@ public class PageParser extends Worker {
 			UserPrefs.getUserPrefs().setDebugMode(true);
 			
 			final StringQueue url_buffer = new StringQueue();
-			final DoubleStringQueue page_buffer = new DoubleStringQueue();
+			final PageBuffer page_buffer = new PageBuffer();
 			final ArrayList<String> keywords = new ArrayList<String>();
 			final DataGatherer the_gatherer = new DataGatherer();
 			
@@ -10,13 +10,26 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.bestos.thebestcrawler.UserPrefs;
-import com.bestos.thebestcrawler.buffers.DoubleStringQueue;
+import com.bestos.thebestcrawler.buffers.HttpCache;
+import com.bestos.thebestcrawler.buffers.NearDuplicateIndex;
+import com.bestos.thebestcrawler.buffers.PageArena;
+import com.bestos.thebestcrawler.buffers.PageBuffer;
+import com.bestos.thebestcrawler.buffers.PageBody;
+import com.bestos.thebestcrawler.buffers.PageRecord;
 import com.bestos.thebestcrawler.buffers.StringQueue;
+import com.bestos.thebestcrawler.utils.ContentDecoder;
+import com.bestos.thebestcrawler.utils.HostConnectionPool;
 import com.bestos.thebestcrawler.utils.RobotTxtUtil;
 import com.bestos.thebestcrawler.utils.RobotTxtUtil.RobotInstruction;
+import com.bestos.thebestcrawler.utils.SimHash;
 
 public class PageRetriever extends Worker  {
 
@@ -25,13 +38,20 @@ public class PageRetriever extends Worker  {
 	/** The name used for debug and error text, of this class. **/
 	private static final String TAG = "PageRetriever";
 	
-	private static Integer pages_retrieved = 0;
+	private static final AtomicInteger pages_retrieved = new AtomicInteger();
+	
+	/** The page body bytes read from the network by all PageRetrievers, and the bytes they decoded to. **/
+	private static final AtomicLong wire_bytes = new AtomicLong();
+	private static final AtomicLong decoded_bytes = new AtomicLong();
 	
 	/** 
-	 * The number of milliseconds to "wait" before trying to
-	 * check again for work to do.
+	 * The maximum number of milliseconds to wait for work before re-checking the running flag.
+	 * Waiting retrievers are woken as soon as a url is added, so this does not delay work.
 	 */
-	private static final int MILLIS_TO_YIELD_CPU = 20;
+	private static final int MILLIS_TO_WAIT_FOR_WORK = 250;
+	
+	/** The longest to wait for each read from a server, in milliseconds. **/
+	private static final int READ_TIMEOUT = 2000;
 	
 	/** 
 	 * An array of acceptable content types, per the assignment. This array is
@@ -43,22 +63,25 @@ public class PageRetriever extends Worker  {
 	private static int MAX_ID = 0;
 	
 	/** The flag which denotes if this worker has EVER started working yet. **/
-	private boolean started = false;
+	boolean started = false;
 	
 	/** The flag which denotes if this worker is doing real work. **/
-	private boolean idle = true;
+	volatile boolean idle = true;
 	
 	/** The control flag which controls the running state of the PageRetriever. **/
-	private boolean running = true;
+	volatile boolean running = true;
 	
 	/** The id of this PageRetriever. **/
-	private final int id;
+	final int id;
 	
-	/** The StringQueue to use for a page buffer. **/
-	private final DoubleStringQueue page_buffer;
+	/** The PageBuffer retrieved pages are added to. **/
+	private final PageBuffer page_buffer;
 	
 	/** The StringQueue to use for a url buffer. **/
-	private final StringQueue url_buffer;
+	final StringQueue url_buffer;
+	
+	/** The index of pages already retrieved, used to skip near-duplicates; null to keep every page. **/
+	private final NearDuplicateIndex near_duplicates;
 	
 	/**
 	 * The PRCallbackType is an internally used enumeration
@@ -76,21 +99,56 @@ public class PageRetriever extends Worker  {
 		SHUTDOWN    // Upon shutdown of the thread.
 	}
 	
+	/**
+	 * Construct a new PageRetriever, skipping near-duplicate pages with the shared
+	 * {@link NearDuplicateIndex} if {@link UserPrefs#isSkipNearDuplicates()}.
+	 */
+	public PageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer) {
+		this(page_buffer, url_buffer, UserPrefs.getUserPrefs().isSkipNearDuplicates() ? NearDuplicateIndex.getNearDuplicateIndex() : null);
+	}
+	
 	/**
 	 * Construct a new PageRetriever.
+	 * @param near_duplicates The index of pages already retrieved, used to skip near-duplicates; null to keep every page.
 	 */
-	public PageRetriever(final DoubleStringQueue page_buffer, final StringQueue url_buffer) {	
+	public PageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer, final NearDuplicateIndex near_duplicates) {	
 		if (page_buffer == null || url_buffer == null)
 			throw new IllegalArgumentException("must specify both page and url buffers; page[" + page_buffer +"], url[" + url_buffer + "]");
 		
 		this.page_buffer = page_buffer;
 		this.url_buffer = url_buffer;
+		this.near_duplicates = near_duplicates;
 		
 		// Set a unique id for this page retriever by simply using the count of all PageRetrievers.
 		id = ++MAX_ID;
 	}
 	
-	private boolean isURLBlackListed(final String url) {
+	/**
+	 * Check a retrieved body against the pages already retrieved, remembering it if it is distinct.
+	 * Bodies without any text are never counted as near-duplicates.
+	 * @param near_duplicates The index of pages already retrieved; null to keep every page.
+	 * @param body The retrieved body.
+	 * @return True if the body is a near-duplicate of a page already retrieved.
+	 */
+	static boolean isNearDuplicate(final NearDuplicateIndex near_duplicates, final PageBody body) {
+		if (near_duplicates == null)
+			return false;
+		
+		long simhash = 0;
+		final InputStream in = body.openStream();
+		try {
+			simhash = SimHash.hash(in);
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(TAG, "IOException thrown while attempting to fingerprint a page; keeping it.", ioe.getMessage());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ioe) { /* Nothing to do. */ }
+		}
+		return simhash != 0 && !near_duplicates.addIfDistinct(simhash);
+	}
+	
+	static boolean isURLBlackListed(final String url) {
 		
 		boolean rtn = false;
 		
@@ -102,16 +160,8 @@ public class PageRetriever extends Worker  {
 		
 	}
 	
-	private static boolean underMaxPages() {
-		boolean rtn = true;
-		synchronized (pages_retrieved) {
-			if (pages_retrieved >= UserPrefs.getUserPrefs().getMaxPages()) {
-				rtn = false;
-
-			}
-		}
-		return rtn;
-		
+	static boolean underMaxPages() {
+		return pages_retrieved.get() < UserPrefs.getUserPrefs().getMaxPages();
 	}
 	
 	// TODO: Modulize the run method of PageRetriever!
@@ -132,13 +182,21 @@ public class PageRetriever extends Worker  {
 				continue;
 			}
 			
-			// Check to see if there is work to be done
-			final String path = url_buffer.getNextPending();
+			// Check to see if there is work to be done, waiting for it if we are already idle.
+			String path = null;
+			try {
+				path = idle ? url_buffer.take(MILLIS_TO_WAIT_FOR_WORK) : url_buffer.getNextPending();
+			} catch (InterruptedException ie) { 
+				// Interrupted by shutdown(..); loop around and check the running flag.
+				continue;
+			}
+			
 			if (path != null && underMaxPages()) {	
 				
 				// Check against manually excluded content first!
 				if (isURLBlackListed(path)) {
 					UserPrefs.errorTxt(TAG+id, "found url from black list [" + path + "]; skip processing...");
+					url_buffer.markDone(path);
 					continue;
 				}
 				
@@ -146,114 +204,7 @@ public class PageRetriever extends Worker  {
 					executeCallback(PRCallbackType.WORKING, null, null);
 				
 				idle = false;
-				boolean error = false;
-				
-				UserPrefs.debugTxt(TAG+id, "found a url to retrieve.", "url = " + path);
-				
-				// Open a url and input stream
-				URL url = null;
-				InputStream in = null;
-				
-				// Try to create the url reference.
-				try {
-					url = new URL(path);
-				} catch (MalformedURLException ex) {
-					executeCallback(PRCallbackType.FAIL, path, ex);
-					//UserPrefs.errorTxt(TAG+id, "MalformedURLException thrown while attempting to form URL reference.", "url = " + path, ex.getMessage());
-					error = true;
-				}
-				
-				RobotInstruction instruction = null;
-				if (!error) {
-					// Check the robot instructions for host.
-					try {
-						instruction = RobotTxtUtil.GetRobotInstructions(url);
-					} catch (Exception ex) {
-						executeCallback(PRCallbackType.FAIL, path, ex);
-						//UserPrefs.errorTxt(TAG+id, "Exception thrown while attempting to find robot instruction", "url = " + path, ex.getMessage());
-					}
-					
-					if (instruction == null || !instruction.canCrawl()) {
-						UserPrefs.debugTxt(TAG+id, "robot.txt not found or reported to skip the crawling of this page; skipping...");
-						error = true;
-					}
-					
-				}
-				
-				// Try to open the connection and get an input stream and check content type.
-				if (!error) {
-					try {
-						
-						final HttpURLConnection con = (HttpURLConnection)url.openConnection();
-						con.setReadTimeout(2000);
-						if (con == null || con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-							/*UserPrefs.errorTxt(TAG+id,
-											   "could not open connection to path[" + path + "]",
-											   "(con==null) =" + (con==null),
-											   "response =" + con.getResponseCode());*/
-							error = true;
-						} else if (!isValidContentType(con)) {
-							UserPrefs.debugTxt(TAG+id, "invalid content type[" + con.getContentType() + "]");
-							error = true;
-						} else 
-							in = con.getInputStream();
-						
-					} catch (Exception ioe) {
-						executeCallback(PRCallbackType.FAIL, path, ioe);
-						//UserPrefs.errorTxt(TAG+id, "Exception thrown while attempting to open an input stream.", "url = " + path, "Message = " + ioe.toString(), "Caused = " + ioe.getCause());
-						error = true;
-					}
-				}
-				
-				// Try to read all data from the input stream in to a string builder.
-				int read_byte;
-				final StringBuilder content_builder = new StringBuilder();
-				if (!error) {
-					try {
-						while (!error && (read_byte = in.read()) != -1)
-							content_builder.append((char)read_byte);
-					} catch (IOException ioe) {
-						executeCallback(PRCallbackType.FAIL, path, ioe);
-						//UserPrefs.errorTxt(TAG+id, "IOException thrown while attempting read from stream.", "url = " + path, ioe.getMessage());
-						error = true;
-					} catch (Exception e) {
-						executeCallback(PRCallbackType.FAIL, path, e);
-						UserPrefs.errorTxt(TAG+id, "General Exception thrown while attempting to read from stream.", "url = " + path, e.getMessage());
-					}
-				}
-				
-				// Attempt to close the input stream.
-				if (in != null) {
-					try {
-						in.close();
-					} catch (Exception ex) { /* Do nothing because really there is nothing we can do. */ }
-				}
-				
-				// If there were no errors then save the content to the page buffer.
-				final String the_content = content_builder.toString().trim();
-				if (!error && the_content != null && !the_content.isEmpty()) {
-					
-					// Sanity check to make sure we have not lost the reference to our page_buffer.
-					if (page_buffer == null) {
-						running = false;
-						error = true;
-						// Execute a fail callback without a custom null pointer exception.
-						executeCallback(PRCallbackType.FAIL, path, new NullPointerException("page_buffer was unexpectedly null"));
-						UserPrefs.errorTxt(TAG+id, "page_buffer was unexpectedly null", "url = " + path);
-					} else {
-						page_buffer.addPending(path, the_content);
-						synchronized (pages_retrieved) {
-							pages_retrieved++;
-						}
-						executeCallback(PRCallbackType.SUCCESS, path, null);
-					}
-					
-				} else if (!error) {
-					// Execute a fail callback without an exception.
-					executeCallback(PRCallbackType.FAIL, path, null);
-				}
-				
-				UserPrefs.debugTxt(TAG+id, "finished retrieving a url.", "url = " + path, "errors = " + error);
+				retrieve(path);
 				
 			} else {
 				
@@ -265,11 +216,6 @@ public class PageRetriever extends Worker  {
 				}
 				
 				idle = true;
-				
-				// If there is NOT, wait
-				try {
-					sleep(MILLIS_TO_YIELD_CPU);
-				} catch (Exception ex) { /* Do nothing since this means that this thread has no way to "wait". */ }
 			}
 			
 		}
@@ -279,11 +225,263 @@ public class PageRetriever extends Worker  {
 		
 	}
 	
-	private void executeCallback(final PRCallbackType type, final String url, final Exception e) {
+	/**
+	 * (Thread-Safe) Retrieve one url, blocking until its page has been put in the page buffer or the
+	 * attempt has failed. Used by the run loop, and by each fetch of a {@link VirtualPageRetriever}.
+	 * Unless the page is put in the page buffer, to be marked done by its parser, or dropped by
+	 * shutdown(..), the url is marked done in the url buffer.
+	 * @param path The url to retrieve, already checked against the black list.
+	 * @return False if the page could not be retrieved.
+	 */
+	boolean retrieve(final String path) {
+		
+		boolean error = false;
+		// Whether the url is done with here, rather than by a parser or on the next run.
+		boolean done = true;
 		
-		// If there are no listeners to call then why bother.
-		if (listeners.isEmpty())
+		UserPrefs.debugTxt(getUniqueId(), "found a url to retrieve.", "url = " + path);
+		
+		// Open a url and input stream
+		URL url = null;
+		HostConnectionPool.Response response = null;
+		InputStream in = null;
+		// The copy of the page from an earlier crawl, if there is one, and its body if it is unchanged.
+		final HttpCache http_cache = HttpCache.getHttpCache();
+		final HttpCache.Entry cached = http_cache != null ? http_cache.lookup(path) : null;
+		PageBody cached_body = null;
+		Map<String, List<String>> headers = null;
+		long content_length = -1;
+		final int max_body_size = UserPrefs.getUserPrefs().getMaxBodySize();
+		final long fetch_start = System.currentTimeMillis();
+		
+		// Try to create the url reference.
+		try {
+			url = new URL(path);
+		} catch (MalformedURLException ex) {
+			executeCallback(PRCallbackType.FAIL, path, ex);
+			//UserPrefs.errorTxt(getUniqueId(), "MalformedURLException thrown while attempting to form URL reference.", "url = " + path, ex.getMessage());
+			error = true;
+		}
+		
+		RobotInstruction instruction = null;
+		if (!error) {
+			// Check the robot instructions for host.
+			try {
+				instruction = RobotTxtUtil.GetRobotInstructions(url);
+			} catch (Exception ex) {
+				executeCallback(PRCallbackType.FAIL, path, ex);
+				//UserPrefs.errorTxt(getUniqueId(), "Exception thrown while attempting to find robot instruction", "url = " + path, ex.getMessage());
+			}
+			
+			// Let the url buffer schedule the rest of this host's urls by its Crawl-delay (in seconds).
+			if (instruction != null)
+				url_buffer.setHostDelay(path, instruction.getDelay() * 1000L);
+			
+			if (instruction == null || !instruction.canCrawl()) {
+				UserPrefs.debugTxt(getUniqueId(), "robot.txt not found or reported to skip the crawling of this page; skipping...");
+				error = true;
+			}
+			
+		}
+		
+		// Try to get a response over a pooled connection to the host, and check its content type.
+		if (!error) {
+			try {
+				
+				// Ask for the page compressed, and only if it changed since it was cached.
+				final Map<String, String> request_headers = cached != null ? cached.getConditionalHeaders() : new HashMap<String, String>(2);
+				request_headers.put("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+				response = HostConnectionPool.getHostConnectionPool().get(url, request_headers, READ_TIMEOUT);
+				if (cached != null && response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					cached_body = readCachedBody(http_cache, path, cached);
+					if (cached_body != null) {
+						headers = withCachedContentType(response.getHeaderFields(), cached);
+					} else {
+						// The stored copy is unreadable and has been forgotten; ask for the page again, unconditionally.
+						response.close();
+						wire_bytes.addAndGet(response.getBytesRead());
+						request_headers.remove("If-None-Match");
+						request_headers.remove("If-Modified-Since");
+						response = HostConnectionPool.getHostConnectionPool().get(url, request_headers, READ_TIMEOUT);
+					}
+				}
+				if (cached_body != null) {
+					// Unchanged since the last crawl; parse the stored copy.
+					UserPrefs.debugTxt(getUniqueId(), "not modified; using the cached copy.", "url = " + path);
+				} else if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+					/*UserPrefs.errorTxt(getUniqueId(),
+									   "could not open connection to path[" + path + "]",
+									   "response =" + response.getStatusCode());*/
+					error = true;
+				} else if (!isValidContentType(response.getContentType())) {
+					UserPrefs.debugTxt(getUniqueId(), "invalid content type[" + response.getContentType() + "]");
+					error = true;
+				} else if (!ContentDecoder.isSupported(response.getHeader("Content-Encoding"))) {
+					UserPrefs.debugTxt(getUniqueId(), "unsupported content encoding[" + response.getHeader("Content-Encoding") + "]");
+					error = true;
+				} else if ((content_length = response.getContentLength()) > max_body_size) {
+					UserPrefs.debugTxt(getUniqueId(), "content length[" + content_length + "] over the maximum body size; skipping...");
+					error = true;
+				} else if (response.getHeader("Content-Encoding") != null) {
+					// Decompressed as it is read; the length of the page itself is not known.
+					headers = withoutContentEncoding(response.getHeaderFields());
+					in = ContentDecoder.decode(response.getInputStream(), response.getHeader("Content-Encoding"));
+					content_length = -1;
+				} else {
+					headers = response.getHeaderFields();
+					in = response.getInputStream();
+				}
+				
+			} catch (Exception ioe) {
+				executeCallback(PRCallbackType.FAIL, path, ioe);
+				//UserPrefs.errorTxt(getUniqueId(), "Exception thrown while attempting to open an input stream.", "url = " + path, "Message = " + ioe.toString(), "Caused = " + ioe.getCause());
+				error = true;
+			}
+		}
+		
+		// Try to read all data from the input stream in large chunks, as raw bytes straight into
+		// the off-heap page arena; the parser decodes them.
+		final PageArena.BodyWriter content_bytes = PageArena.getPageArena().newWriter();
+		if (!error && cached_body == null) {
+			try {
+				if (content_bytes.readFrom(in, content_length, max_body_size) > max_body_size) {
+					UserPrefs.debugTxt(getUniqueId(), "body over the maximum body size[" + max_body_size + "]; skipping...");
+					error = true;
+				}
+			} catch (IOException ioe) {
+				executeCallback(PRCallbackType.FAIL, path, ioe);
+				//UserPrefs.errorTxt(getUniqueId(), "IOException thrown while attempting read from stream.", "url = " + path, ioe.getMessage());
+				error = true;
+			} catch (Exception e) {
+				executeCallback(PRCallbackType.FAIL, path, e);
+				UserPrefs.errorTxt(getUniqueId(), "General Exception thrown while attempting to read from stream.", "url = " + path, e.getMessage());
+				error = true;
+			}
+		}
+		
+		// Close the response, giving its connection back to the pool if the whole body was read.
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException ioe) { /* Do nothing because really there is nothing we can do. */ }
+		}
+		if (response != null) {
+			response.close();
+			wire_bytes.addAndGet(response.getBytesRead());
+			decoded_bytes.addAndGet(content_bytes.length());
+		}
+		
+		// If there were no errors then save the page to the page buffer.
+		final long fetch_end = System.currentTimeMillis();
+		if (!error && (cached_body != null || content_bytes.length() > 0)) {
+			
+			// Sanity check to make sure we have not lost the reference to our page_buffer.
+			if (page_buffer == null) {
+				running = false;
+				error = true;
+				content_bytes.abort();
+				if (cached_body != null)
+					cached_body.release();
+				// Execute a fail callback without a custom null pointer exception.
+				executeCallback(PRCallbackType.FAIL, path, new NullPointerException("page_buffer was unexpectedly null"));
+				UserPrefs.errorTxt(getUniqueId(), "page_buffer was unexpectedly null", "url = " + path);
+			} else {
+				final PageBody body;
+				if (cached_body != null) {
+					content_bytes.abort();
+					body = cached_body;
+				} else {
+					body = content_bytes.finish();
+					storeInCache(http_cache, path, response, body);
+				}
+				if (isNearDuplicate(near_duplicates, body)) {
+					// The same content was already retrieved under another url; don't parse it again.
+					UserPrefs.debugTxt(getUniqueId(), "near-duplicate of a page already retrieved; skipping...", "url = " + path);
+					body.release();
+				} else {
+					// Wait for the parsers if the page buffer is over its byte budget.
+					try {
+						page_buffer.put(new PageRecord(path, headers, body, fetch_start, fetch_end));
+						done = false;
+						addPageRetrieved();
+						executeCallback(PRCallbackType.SUCCESS, path, null);
+					} catch (InterruptedException ie) {
+						// Interrupted by shutdown(..); the page has been dropped.
+						done = false;
+						error = true;
+					}
+				}
+			}
+			
+		} else {
+			content_bytes.abort();
+			// Execute a fail callback without an exception.
+			if (!error)
+				executeCallback(PRCallbackType.FAIL, path, null);
+		}
+		
+		if (done)
+			url_buffer.markDone(path);
+		
+		UserPrefs.debugTxt(getUniqueId(), "finished retrieving a url.", "url = " + path, "errors = " + error);
+		return !error;
+	}
+	
+	/**
+	 * Get the headers of a 304 response, with the Content-Type of the cached copy if it was not resent.
+	 */
+	private static Map<String, List<String>> withCachedContentType(final Map<String, List<String>> headers, final HttpCache.Entry cached) {
+		if (cached.getContentType() == null || headers.containsKey("Content-Type"))
+			return headers;
+		final Map<String, List<String>> merged = new HashMap<String, List<String>>(headers);
+		merged.put("Content-Type", Collections.singletonList(cached.getContentType()));
+		return merged;
+	}
+	
+	/**
+	 * Get the headers of a response whose body has been decoded, without those describing it as sent.
+	 */
+	private static Map<String, List<String>> withoutContentEncoding(final Map<String, List<String>> headers) {
+		final Map<String, List<String>> decoded = new HashMap<String, List<String>>(headers);
+		for (String name : headers.keySet())
+			if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length"))
+				decoded.remove(name);
+		return decoded;
+	}
+	
+	/**
+	 * Read the stored copy of a page the server reported unchanged, forgetting it if its record is unreadable
+	 * (e.g. cut short by a crash) so that it is not revalidated again.
+	 * @return The body, or null if it could not be read.
+	 */
+	private PageBody readCachedBody(final HttpCache http_cache, final String path, final HttpCache.Entry cached) {
+		try {
+			return http_cache.readBody(path, cached);
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(getUniqueId(), "IOException thrown while attempting to read a cached page; fetching it again.", "url = " + path, ioe.getMessage());
+		}
+		try {
+			http_cache.invalidate(path, cached);
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(getUniqueId(), "IOException thrown while attempting to invalidate a cached page.", "url = " + path, ioe.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * Keep a newly retrieved page in the http cache, if there is one, to revalidate on the next crawl.
+	 */
+	private void storeInCache(final HttpCache http_cache, final String path, final HostConnectionPool.Response response, final PageBody body) {
+		if (http_cache == null)
 			return;
+		try {
+			http_cache.store(path, response.getHeader("ETag"), response.getHeader("Last-Modified"), response.getContentType(), body);
+		} catch (IOException ioe) {
+			UserPrefs.errorTxt(getUniqueId(), "IOException thrown while attempting to cache a page.", "url = " + path, ioe.getMessage());
+		}
+	}
+	
+	private void executeCallback(final PRCallbackType type, final String url, final Exception e) {
 		
 		// execute the correct type of callback.
 		switch (type) {
@@ -291,18 +489,10 @@ public class PageRetriever extends Worker  {
 				super.executeCallback(WorkerCallbackType.START);
 				break;
 			case SUCCESS:
-				
-				// Call all the listeners onSuccess methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onSuccess(id, url);
-				
+				super.executeCallback(WorkerCallbackType.SUCCESS, id, url, null);
 				break;
 			case FAIL:
-				
-				// Call all the listeners onFail methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onFail(id, url, e);
-				
+				super.executeCallback(WorkerCallbackType.FAIL, id, url, e);
 				break;
 			case IDLE:
 				super.executeCallback(WorkerCallbackType.IDLE);
@@ -321,17 +511,18 @@ public class PageRetriever extends Worker  {
 	}
 	
 	/**
-	 * Check the URLConnection's content type header against the entries within the
-	 * ACCEPTABLE_CONTENT_TYPES array. This method should be used to check if the 
-	 * url should be retrieved. (Per assignment)
-	 * @param con The URLConnection from the URL object.
+	 * Check a content type header against the entries within the ACCEPTABLE_CONTENT_TYPES array.
+	 * This method should be used to check if the url should be retrieved. (Per assignment)
+	 * @param content_type The value of the Content-Type header; may be null.
 	 * @return True if the incomming type matches one of the acceptable types.
 	 */
-	private boolean isValidContentType(final URLConnection con) {
+	static boolean isValidContentType(final String content_type) {
+		if (content_type == null)
+			return false;
 		
 		// Generally the content type will contain something like "text/html; charset=UTF-8" but can contain anything really.
 		// so split by semi-colon, loop through each (trim) and check content type.
-		final String incomming_str = con.getContentType().trim();
+		final String incomming_str = content_type.trim();
 		final String[] split = incomming_str.split(";");
 		boolean rtn = false;
 		
@@ -391,6 +582,46 @@ public class PageRetriever extends Worker  {
 		}
 	}
 	
+	/**
+	 * Count a page retrieved, by any retriever.
+	 */
+	static void addPageRetrieved() {
+		pages_retrieved.incrementAndGet();
+	}
+	
+	/**
+	 * Get the number of page body bytes all PageRetrievers have read from the network, e.g. still compressed.
+	 * @return The number of bytes.
+	 */
+	public static long getWireBytes() {
+		return wire_bytes.get();
+	}
+	
+	/**
+	 * Get the number of bytes the page bodies read from the network decoded to.
+	 * @return The number of bytes.
+	 */
+	public static long getDecodedBytes() {
+		return decoded_bytes.get();
+	}
+	
+	/**
+	 * Get the number of pages retrieved by all PageRetrievers so far.
+	 * @return The number of pages retrieved.
+	 */
+	public static int getPagesRetrieved() {
+		return pages_retrieved.get();
+	}
+	
+	/**
+	 * Set the number of pages retrieved so far, e.g. when resuming a crawl from a checkpoint.
+	 * Must be called before any PageRetriever is started.
+	 * @param count The number of pages retrieved.
+	 */
+	public static void setPagesRetrieved(final int count) {
+		pages_retrieved.set(count);
+	}
+	
 	/**
 	 * The PageRetrieverListener class and methods may be subclassed to
 	 * recieve notifications of the status changes and method calls of
@@ -431,7 +662,7 @@ public class PageRetriever extends Worker  {
 		UserPrefs.getUserPrefs().setDebugMode(true);
 		
 		final StringQueue url_buffer = new StringQueue();
-		final DoubleStringQueue page_buffer = new DoubleStringQueue();
+		final PageBuffer page_buffer = new PageBuffer();
 		
 		url_buffer.addPending("http://www.w3schools.com/xml/note.xml");
 		url_buffer.addPending("https://weblogin.washington.edu/robots.txt");
@@ -449,7 +680,9 @@ public class PageRetriever extends Worker  {
 		pr.shutdown();
 		
 		while (page_buffer.hasPending()) {
-			System.out.println(page_buffer.getNextPending() + "\n\n");
+			final PageRecord page = page_buffer.getNextPending();
+			System.out.println(page + "\n\n");
+			page.getBody().release();
 		}
 		
 	}
@@ -1,5 +1,8 @@
 package com.bestos.thebestcrawler.workers;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -87,7 +90,7 @@ public class Reporter {
 	 * @param keywordMap The keywordMap
 	 * @param runningTime The runnung time
 	 */
-	public void getDataGathererInfo(int pgRtd, double totalWords, String currentUrl,
+	public synchronized void getDataGathererInfo(int pgRtd, double totalWords, String currentUrl,
 			Map<String, Integer> keywordMap, long runningTime) {
 		//long avgHitPerPg, long totalHits, long avgParsePerPg
 		
@@ -115,6 +118,48 @@ public class Reporter {
 				my_avg_parse_time_page, my_running_time, my_total_hit, my_avg_hit_per_page);
 
 	}
+	/**
+	 * Write the running totals to the given output, so that a resumed crawl can continue them.
+	 * 
+	 * @param out The output to write to
+	 * @throws IOException If the output throws
+	 */
+	public synchronized void writeState(DataOutput out) throws IOException {
+		out.writeInt(my_pages_retrieved);
+		out.writeDouble(my_total_words);
+		out.writeLong(my_running_time);
+		out.writeInt(my_total_pages);
+		out.writeInt(my_total_hit);
+		out.writeInt(key.size());
+		for (Map.Entry<String, BestOsGUI.keyMap> entry : key.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().total_hit);
+		}
+	}
+	
+	/**
+	 * Restore the running totals written by writeState.
+	 * 
+	 * @param in The input to read from
+	 * @throws IOException If the input throws
+	 */
+	public synchronized void readState(DataInput in) throws IOException {
+		my_pages_retrieved = in.readInt();
+		my_total_words = in.readDouble();
+		my_running_time = in.readLong();
+		my_total_pages = in.readInt();
+		my_total_hit = in.readInt();
+		key.clear();
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			BestOsGUI.keyMap map = new BestOsGUI.keyMap();
+			String name = in.readUTF();
+			map.total_hit = in.readInt();
+			map.avg_hit = my_total_pages > 0 ? map.total_hit / my_total_pages : 0;
+			key.put(name, map);
+		}
+	}
+	
    /**
     * Sets key word
     * 
@@ -0,0 +1,27 @@
+// UrlScorer.java
+// UrlScorer
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+/**
+ * A UrlScorer rates how promising a link found by a {@link PageParser} is, so that a
+ * best-first url buffer can retrieve the most promising links first.
+ * @author Michael Morris
+ * @version 5/9/2013
+ *
+ * @see KeywordDensityScorer
+ */
+public interface UrlScorer {
+
+	/**
+	 * Score a link. Called once the whole page containing the link has been parsed.
+	 * @param url The absolute url of the link.
+	 * @param parent The data gathered from the page the link was found on.
+	 * @param anchor_text The text between the link's anchor tags (may be empty).
+	 * @return The score of the link; higher is better.
+	 */
+	public double score(final String url, final PageData parent, final String anchor_text);
+
+}
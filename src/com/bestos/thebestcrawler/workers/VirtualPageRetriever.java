@@ -0,0 +1,253 @@
+// VirtualPageRetriever.java
+// VirtualPageRetriever
+//
+// Author: Michael Morris
+
+package com.bestos.thebestcrawler.workers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bestos.thebestcrawler.UserPrefs;
+import com.bestos.thebestcrawler.buffers.NearDuplicateIndex;
+import com.bestos.thebestcrawler.buffers.PageBuffer;
+import com.bestos.thebestcrawler.buffers.StringQueue;
+
+/**
+ * The VirtualPageRetriever retrieves pages with the same blocking code as the {@link PageRetriever},
+ * but runs every fetch in its own thread instead of one fetch at a time. On a runtime with virtual
+ * threads (Java 21 and later) each fetch gets a virtual thread, which costs a few KB while it waits
+ * on the network, so one worker can keep thousands of fetches going; on older runtimes it falls back
+ * to a pool of ordinary threads.<BR><BR>
+ * The worker's own thread only takes urls and starts fetches. The number of fetches running at once
+ * over every worker is capped by the shared {@link InFlightLimiter}, and the fetches to any one host by
+ * the shared {@link HostFetchLimiter}.
+ * @author Michael Morris
+ * @version 5/24/2013
+ *
+ */
+public class VirtualPageRetriever extends PageRetriever {
+
+	private static final String TAG = "VirtualPageRetriever";
+
+	/**
+	 * The maximum number of milliseconds to wait for a free slot or for work before re-checking the running flag.
+	 */
+	private static final int MILLIS_TO_WAIT_FOR_WORK = 250;
+
+	/** The time the worker lets the fetches running at shutdown finish. **/
+	private static final long MILLIS_TO_DRAIN = 1000;
+
+	/** Executors.newVirtualThreadPerTaskExecutor(), looked up at run time; null if not available. **/
+	private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+	/** The cap on fetches running over every worker. **/
+	private final InFlightLimiter in_flight;
+
+	/** The number of this worker's permits from the in-flight limiter. **/
+	private final AtomicInteger num_in_flight;
+
+	private final HostFetchLimiter host_limiter;
+
+	/** Runs each fetch in a thread of its own. **/
+	private final ExecutorService fetchers;
+
+	private final boolean virtual;
+
+	/**
+	 * Construct a new VirtualPageRetriever, with the shared {@link InFlightLimiter} and {@link HostFetchLimiter},
+	 * skipping near-duplicate pages with the shared {@link NearDuplicateIndex} if {@link UserPrefs#isSkipNearDuplicates()}.
+	 */
+	public VirtualPageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer) {
+		this(page_buffer, url_buffer, InFlightLimiter.getInFlightLimiter(), HostFetchLimiter.getHostFetchLimiter(),
+			 UserPrefs.getUserPrefs().isSkipNearDuplicates() ? NearDuplicateIndex.getNearDuplicateIndex() : null);
+	}
+
+	/**
+	 * Construct a new VirtualPageRetriever.
+	 * @param in_flight The limit on fetches running at once, usually shared by every retriever.
+	 * @param host_limiter The limit on fetches to each host, usually shared by every retriever.
+	 * @param near_duplicates The index of pages already retrieved, used to skip near-duplicates; null to keep every page.
+	 */
+	public VirtualPageRetriever(final PageBuffer page_buffer, final StringQueue url_buffer, final InFlightLimiter in_flight,
+								final HostFetchLimiter host_limiter, final NearDuplicateIndex near_duplicates) {
+		super(page_buffer, url_buffer, near_duplicates);
+		if (in_flight == null || host_limiter == null)
+			throw new IllegalArgumentException("must specify an in-flight limiter and a host limiter; in_flight["
+											   + in_flight + "], host_limiter[" + host_limiter + "]");
+
+		this.in_flight = in_flight;
+		this.host_limiter = host_limiter;
+		num_in_flight = new AtomicInteger();
+
+		ExecutorService executor = newVirtualExecutor();
+		virtual = executor != null;
+		if (!virtual) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, TAG + id + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		fetchers = executor;
+	}
+
+	private static Method findVirtualExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException nsme) {
+			UserPrefs.debugTxt(TAG, "virtual threads not available; fetches will run in platform threads.");
+			return null;
+		}
+	}
+
+	private static ExecutorService newVirtualExecutor() {
+		if (NEW_VIRTUAL_EXECUTOR == null)
+			return null;
+		try {
+			return (ExecutorService)NEW_VIRTUAL_EXECUTOR.invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			// e.g. a preview release run without --enable-preview.
+			UserPrefs.debugTxt(TAG, "could not create a virtual thread executor; fetches will run in platform threads.", roe.toString());
+			return null;
+		}
+	}
+
+	@Override
+	public void run() {
+
+		executeCallback(WorkerCallbackType.START);
+		UserPrefs.debugTxt(TAG+id, "started up!", "virtual threads = " + virtual);
+
+		started = true;
+
+		while (running) {
+
+			// Wait for a free slot, then for a url to fetch in it.
+			try {
+				if (!in_flight.tryAcquire(MILLIS_TO_WAIT_FOR_WORK))
+					continue;
+				num_in_flight.incrementAndGet();
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..); loop around and check the running flag.
+				continue;
+			}
+
+			String path = null;
+			try {
+				path = url_buffer.take(MILLIS_TO_WAIT_FOR_WORK);
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..); loop around and check the running flag.
+			}
+
+			if (path != null && underMaxPages()) {
+
+				// Check against manually excluded content first!
+				if (isURLBlackListed(path)) {
+					UserPrefs.errorTxt(TAG+id, "found url from black list [" + path + "]; skip processing...");
+					url_buffer.markDone(path);
+					releaseSlot();
+					continue;
+				}
+
+				if (idle)
+					executeCallback(WorkerCallbackType.WORKING);
+				idle = false;
+
+				try {
+					fetchers.execute(new Fetch(path));
+				} catch (RejectedExecutionException ree) {
+					releaseSlot();
+				}
+
+			} else {
+
+				releaseSlot();
+				if (!idle && num_in_flight.get() == 0) {
+					executeCallback(WorkerCallbackType.IDLE);
+					UserPrefs.debugTxt(TAG+id, "is idle...");
+					if (!underMaxPages())
+						UserPrefs.debugTxt(TAG+id, "***************** HIT MAX PAGES TO RETRIEVE ********************");
+					idle = true;
+				}
+			}
+		}
+
+		// Let the running fetches finish, then interrupt any still waiting for a host or the page buffer.
+		fetchers.shutdown();
+		try {
+			fetchers.awaitTermination(MILLIS_TO_DRAIN, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) { /* Shutting down anyway. */ }
+		fetchers.shutdownNow();
+
+		executeCallback(WorkerCallbackType.SHUTDOWN);
+		UserPrefs.debugTxt(TAG+id, "shutting down!");
+	}
+
+	/**
+	 * Get the number of this worker's fetches running right now, counting the slot the worker holds
+	 * while it waits for a url.
+	 * @return The number of fetches.
+	 */
+	public int getNumInFlight() {
+		return num_in_flight.get();
+	}
+
+	/**
+	 * Give back one of this worker's slots.
+	 */
+	private void releaseSlot() {
+		num_in_flight.decrementAndGet();
+		in_flight.release();
+	}
+
+	/**
+	 * Check whether this worker's fetches run in virtual threads.
+	 * @return True for virtual threads, false for a pool of platform threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	@Override
+	public String getUniqueId() {
+		return TAG+id;
+	}
+
+	/**
+	 * One url's fetch, holding one of the worker's slots.
+	 */
+	private final class Fetch implements Runnable {
+		private final String path;
+
+		Fetch(final String path) {
+			this.path = path;
+		}
+
+		@Override
+		public void run() {
+			try {
+				host_limiter.acquire(path);
+				try {
+					retrieve(path);
+				} finally {
+					host_limiter.release(path);
+				}
+			} catch (InterruptedException ie) {
+				// Interrupted by shutdown(..) while waiting for the host; drop the url.
+			} finally {
+				releaseSlot();
+			}
+		}
+	}
+
+}
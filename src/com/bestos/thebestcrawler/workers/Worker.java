@@ -6,26 +6,35 @@
 package com.bestos.thebestcrawler.workers;
 
 import java.awt.Color;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.bestos.thebestcrawler.utils.EventBus;
 import com.bestos.thebestcrawler.workers.PageRetriever.PageRetrieverListener;
 
 public abstract class Worker extends Thread {
 	
 	/** The listeners registered to this PageRetriever. **/
-	protected List<PageRetrieverListener> listeners;
+	protected final CopyOnWriteArrayList<PageRetrieverListener> listeners;
 	
 	protected Worker() {
-		listeners = new ArrayList<PageRetrieverListener>();
+		listeners = new CopyOnWriteArrayList<PageRetrieverListener>();
 	}
 	
 	public abstract String getUniqueId();
 	
+	/**
+	 * Attempt to gracefully shut down this worker, waiting a short while for it to finish.
+	 */
+	public abstract void shutdown();
+	
 	protected static enum WorkerCallbackType {
 		START, 		// First run of thread.
 		IDLE,		// Upon going from a WORKING status to an IDLE status. (not from idle to idle)
 		WORKING,    // Upon goingn from an IDLE status to a WORKING status. (not from working to working)
-		SHUTDOWN    // Upon shutdown of the thread.
+		SHUTDOWN,   // Upon shutdown of the thread.
+		SUCCESS,	// Every successful unit of work (without error).
+		FAIL		// Upon the FIRST error of every failed unit of work.
 	}
 	
 	public static enum WorkerStatus {
@@ -49,14 +58,16 @@ public abstract class Worker extends Thread {
 	
 	/**
 	 * (Thread-Safe) Add the specified PageRetrieverListener to this PageRetriever,
-	 * which will be notified of method calls.
+	 * which will be notified of method calls on the {@link EventBus}'s dispatcher thread.
 	 * @param listener The listener to add.
 	 */
 	public void addListener(final PageRetrieverListener listener) {
-		if (!listeners.contains(listener)) {
-			synchronized (listeners) {
-				listeners.add(listener);
-			}
+		if (listener == null)
+			return;
+		// Locked so that the subscription always matches whether there are listeners.
+		synchronized (listeners) {
+			if (listeners.addIfAbsent(listener) && listeners.size() == 1)
+				EventBus.getEventBus().subscribe(this, subscriber);
 		}
 	}
 	
@@ -65,10 +76,11 @@ public abstract class Worker extends Thread {
 	 * @param listener The listener to remove.
 	 */
 	public void removeListener(final PageRetrieverListener listener) {
-		if (listener != null) {
-			synchronized (listeners) {
-				listeners.remove(listener);
-			}
+		if (listener == null)
+			return;
+		synchronized (listeners) {
+			if (listeners.remove(listener) && listeners.isEmpty())
+				EventBus.getEventBus().unsubscribe(this);
 		}
 	}
 	
@@ -78,47 +90,87 @@ public abstract class Worker extends Thread {
 	public void removeAllListeners() {
 		synchronized (listeners) {
 			listeners.clear();
+			EventBus.getEventBus().unsubscribe(this);
 		}
 	}
 	
 	protected void executeCallback(final WorkerCallbackType type) {
+		executeCallback(type, -1, null, null);
+	}
+	
+	/**
+	 * Publish the desired callback, to be delivered to the listeners on the {@link EventBus}'s
+	 * dispatcher thread, so that slow listeners never hold up the worker.
+	 * @param type The type of callback.
+	 * @param id The numeric id of the worker, sent with SUCCESS and FAIL callbacks.
+	 * @param url The url worked on, sent with SUCCESS and FAIL callbacks.
+	 * @param e (Optional) the exception sent with FAIL callbacks.
+	 */
+	protected void executeCallback(final WorkerCallbackType type, final int id, final String url, final Exception e) {
 		
 		// If there are no listeners to call then why bother.
 		if (listeners.isEmpty())
 			return;
 		
-		// execute the correct type of callback.
-		switch (type) {
-			case START:
-				
-				// Call all the listeners onStart methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onStart(getUniqueId());
-				break;
-				
-			case IDLE:
-				
-				// Call all the listeners onIdle methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onIdle(getUniqueId());
-				
-				break;
-			case WORKING:
-				
-				// Call all the listeners onWorking methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onWorking(getUniqueId());
-				break;
-				
-			case SHUTDOWN:
-				
-				// Call all the listeners onShutdown methods.
-				for (PageRetrieverListener prl : listeners)
-					prl.onShutdown(getUniqueId());
-				break;
-				
+		EventBus.getEventBus().publish(new WorkerEvent(type, id, url, e));
+	}
+	
+	/**
+	 * Delivers this worker's events to its listeners, on the EventBus's dispatcher thread.
+	 */
+	private final EventBus.Subscriber subscriber = new EventBus.Subscriber() {
+		@Override
+		public void onEvents(final List<EventBus.Event> events) {
+			for (EventBus.Event event : events)
+				((WorkerEvent)event).deliver();
+		}
+	};
+	
+	/**
+	 * A callback waiting to be delivered to this worker's listeners.
+	 */
+	private final class WorkerEvent extends EventBus.Event {
+		private final WorkerCallbackType type;
+		private final int id;
+		private final String url;
+		private final Exception e;
+		
+		WorkerEvent(final WorkerCallbackType type, final int id, final String url, final Exception e) {
+			// Changes of state are never dropped, or a listener could show a worker as busy forever.
+			super(Worker.this, type == WorkerCallbackType.SUCCESS || type == WorkerCallbackType.FAIL);
+			this.type = type;
+			this.id = id;
+			this.url = url;
+			this.e = e;
 		}
 		
+		void deliver() {
+			final String unique_id = getUniqueId();
+			
+			// execute the correct type of callback.
+			for (PageRetrieverListener prl : listeners) {
+				switch (type) {
+					case START:
+						prl.onStart(unique_id);
+						break;
+					case IDLE:
+						prl.onIdle(unique_id);
+						break;
+					case WORKING:
+						prl.onWorking(unique_id);
+						break;
+					case SHUTDOWN:
+						prl.onShutdown(unique_id);
+						break;
+					case SUCCESS:
+						prl.onSuccess(id, url);
+						break;
+					case FAIL:
+						prl.onFail(id, url, e);
+						break;
+				}
+			}
+		}
 	}
 	
 	public static class WorkerListener {